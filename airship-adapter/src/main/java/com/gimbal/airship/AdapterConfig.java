@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Which Gimbal visits the adapter turns into Airship events.  Applied as a whole with
+ * {@link AirshipAdapter#configure(AdapterConfig)} and persisted across app restarts.
+ */
+public final class AdapterConfig {
+    static final AdapterConfig DEFAULT = newBuilder().build();
+
+    private final boolean trackRegionEvents;
+    private final boolean trackCustomEntryEvents;
+    private final boolean trackCustomExitEvents;
+
+    private AdapterConfig(@NonNull Builder builder) {
+        this.trackRegionEvents = builder.trackRegionEvents;
+        this.trackCustomEntryEvents = builder.trackCustomEntryEvents;
+        this.trackCustomExitEvents = builder.trackCustomExitEvents;
+    }
+
+    /**
+     * @return A new builder with every option set to its default.
+     */
+    @NonNull
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return A new builder with this config's options.
+     */
+    @NonNull
+    public Builder toBuilder() {
+        return new Builder()
+                .setTrackRegionEvents(trackRegionEvents)
+                .setTrackCustomEntryEvents(trackCustomEntryEvents)
+                .setTrackCustomExitEvents(trackCustomExitEvents);
+    }
+
+    /**
+     * @return {@code true} if place entries and departures are tracked as Airship RegionEvents.
+     */
+    public boolean isTrackRegionEvents() {
+        return trackRegionEvents;
+    }
+
+    /**
+     * @return {@code true} if place entries are tracked as Airship CustomEvents.
+     */
+    public boolean isTrackCustomEntryEvents() {
+        return trackCustomEntryEvents;
+    }
+
+    /**
+     * @return {@code true} if place departures are tracked as Airship CustomEvents.
+     */
+    public boolean isTrackCustomExitEvents() {
+        return trackCustomExitEvents;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AdapterConfig)) {
+            return false;
+        }
+        AdapterConfig other = (AdapterConfig) o;
+        return trackRegionEvents == other.trackRegionEvents
+                && trackCustomEntryEvents == other.trackCustomEntryEvents
+                && trackCustomExitEvents == other.trackCustomExitEvents;
+    }
+
+    @Override
+    public int hashCode() {
+        return (trackRegionEvents ? 1 : 0)
+                | (trackCustomEntryEvents ? 2 : 0)
+                | (trackCustomExitEvents ? 4 : 0);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "AdapterConfig{trackRegionEvents=" + trackRegionEvents
+                + ", trackCustomEntryEvents=" + trackCustomEntryEvents
+                + ", trackCustomExitEvents=" + trackCustomExitEvents + '}';
+    }
+
+    /**
+     * Builds an {@link AdapterConfig}.  Every option defaults to {@code false}.
+     */
+    public static final class Builder {
+        private boolean trackRegionEvents = false;
+        private boolean trackCustomEntryEvents = false;
+        private boolean trackCustomExitEvents = false;
+
+        private Builder() {}
+
+        /**
+         * @param trackRegionEvents Whether to track place entries AND departures as Airship
+         *                          RegionEvents.
+         * @return This builder.
+         */
+        @NonNull
+        public Builder setTrackRegionEvents(boolean trackRegionEvents) {
+            this.trackRegionEvents = trackRegionEvents;
+            return this;
+        }
+
+        /**
+         * @param trackCustomEntryEvents Whether to track place entries as Airship CustomEvents.
+         * @return This builder.
+         */
+        @NonNull
+        public Builder setTrackCustomEntryEvents(boolean trackCustomEntryEvents) {
+            this.trackCustomEntryEvents = trackCustomEntryEvents;
+            return this;
+        }
+
+        /**
+         * @param trackCustomExitEvents Whether to track place departures as Airship CustomEvents.
+         * @return This builder.
+         */
+        @NonNull
+        public Builder setTrackCustomExitEvents(boolean trackCustomExitEvents) {
+            this.trackCustomExitEvents = trackCustomExitEvents;
+            return this;
+        }
+
+        @NonNull
+        public AdapterConfig build() {
+            return new AdapterConfig(this);
+        }
+    }
+}
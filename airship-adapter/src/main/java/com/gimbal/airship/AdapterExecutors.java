@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Background threads owned by the adapter.
+ */
+final class AdapterExecutors {
+    private static final String SCHEDULER_THREAD_NAME = "gimbal-airship-adapter";
+    private static final String IO_THREAD_NAME = "gimbal-airship-adapter-io";
+
+    private static volatile ScheduledExecutorService scheduler;
+    private static volatile ScheduledExecutorService io;
+
+    private AdapterExecutors() {}
+
+    /**
+     * Single, lazily created daemon thread for the adapter's timed work: cached visit replay,
+     * debounced and dwell milestone visits, device attribute syncs, metrics export and background
+     * restores.  Its tasks call Gimbal, Airship and app listeners, so they may block for a while,
+     * and must not be relied on to run promptly.
+     */
+    @NonNull
+    static ScheduledExecutorService scheduler() {
+        ScheduledExecutorService result = scheduler;
+        if (result == null) {
+            synchronized (AdapterExecutors.class) {
+                result = scheduler;
+                if (result == null) {
+                    result = newThread(SCHEDULER_THREAD_NAME);
+                    scheduler = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Single, lazily created daemon thread for loading and writing the adapter's files: the
+     * config store, the visit journal and the dedup index.  Tasks must only do file I/O, and must
+     * not call Gimbal, Airship or app listeners, so that a slow listener never delays a write.
+     */
+    @NonNull
+    static ScheduledExecutorService io() {
+        ScheduledExecutorService result = io;
+        if (result == null) {
+            synchronized (AdapterExecutors.class) {
+                result = io;
+                if (result == null) {
+                    result = newThread(IO_THREAD_NAME);
+                    io = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    private static ScheduledExecutorService newThread(@NonNull String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Level-gated logging for the adapter, routed to {@link android.util.Log} unless the app installs
+ * its own {@link AirshipAdapter.LogHandler}.
+ * <p>
+ * Call sites that build their message per visit should check {@link #isLoggable(int)} first, so
+ * that nothing is formatted when the message would be discarded.
+ */
+final class AdapterLog {
+    static final String TAG = "GimbalAdapter";
+
+    private static final AirshipAdapter.LogHandler DEFAULT_HANDLER = (priority, message, throwable) -> {
+        if (throwable == null) {
+            Log.println(priority, TAG, message);
+        } else {
+            Log.println(priority, TAG, message + '\n' + Log.getStackTraceString(throwable));
+        }
+    };
+
+    private static volatile int level = Log.INFO;
+    private static volatile AirshipAdapter.LogHandler handler = DEFAULT_HANDLER;
+
+    private AdapterLog() {}
+
+    static void setLevel(int priority) {
+        level = priority;
+    }
+
+    static void setHandler(@Nullable AirshipAdapter.LogHandler logHandler) {
+        handler = logHandler == null ? DEFAULT_HANDLER : logHandler;
+    }
+
+    static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    static void d(@NonNull String message) {
+        log(Log.DEBUG, message, null);
+    }
+
+    static void i(@NonNull String message) {
+        log(Log.INFO, message, null);
+    }
+
+    static void w(@NonNull String message) {
+        log(Log.WARN, message, null);
+    }
+
+    static void w(@NonNull String message, @Nullable Throwable throwable) {
+        log(Log.WARN, message, throwable);
+    }
+
+    static void e(@NonNull String message) {
+        log(Log.ERROR, message, null);
+    }
+
+    static void e(@NonNull String message, @Nullable Throwable throwable) {
+        log(Log.ERROR, message, throwable);
+    }
+
+    private static void log(int priority, @NonNull String message, @Nullable Throwable throwable) {
+        if (priority >= level) {
+            handler.log(priority, message, throwable);
+        }
+    }
+}
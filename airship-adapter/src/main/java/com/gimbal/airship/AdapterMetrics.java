@@ -0,0 +1,328 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Point-in-time snapshot of the adapter's metrics, as returned by
+ * {@link AirshipAdapter#getMetrics()}.  Counts are totals since the adapter was created.
+ */
+public final class AdapterMetrics {
+
+    /**
+     * Snapshot of a histogram of durations, in microseconds.  Bucket {@code 0} counts durations
+     * under 1 µs and bucket {@code i} counts durations of at least {@code 2^(i-1)} µs and under
+     * {@code 2^i} µs.  The last bucket also counts every longer duration.
+     */
+    public static final class Histogram {
+        private final long[] bucketCounts;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        Histogram(@NonNull long[] bucketCounts, long count, long totalMicros, long maxMicros) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * @return The number of durations recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The sum of all durations recorded, in microseconds.
+         */
+        public long getTotalMicros() {
+            return totalMicros;
+        }
+
+        /**
+         * @return The longest duration recorded, in microseconds.
+         */
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * @return The mean duration, in microseconds, or {@code 0} if nothing was recorded.
+         */
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) totalMicros / count;
+        }
+
+        /**
+         * @return A copy of the per-bucket counts.
+         */
+        @NonNull
+        public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls in.
+         *
+         * @param percentile The percentile, from {@code 0} to {@code 100}.
+         * @return The estimated duration, in microseconds, or {@code 0} if nothing was recorded.
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(1L << i, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Histogram{count=" + count
+                    + ", meanMicros=" + Math.round(getMeanMicros())
+                    + ", p50Micros=" + getPercentileMicros(50)
+                    + ", p99Micros=" + getPercentileMicros(99)
+                    + ", maxMicros=" + maxMicros + '}';
+        }
+    }
+
+    private final long visitsReceived;
+    private final long visitsCached;
+    private final long visitsEmittedDirectly;
+    private final long visitsReplayed;
+    private final long duplicateVisitsSuppressed;
+    private final long visitsFiltered;
+    private final long visitsDebounced;
+    private final long cachedVisitsHighWaterMark;
+    private final long cachedVisitsDropped;
+    private final long cachedVisitsEvicted;
+    private final long cachedVisitsCoalesced;
+    private final int dispatchQueueDepth;
+    private final long dispatchQueueDropped;
+    private final long dispatchQueueCoalesced;
+    private final Histogram dispatchQueueWait;
+    private final Histogram replayDuration;
+    private final Histogram enterEventLatency;
+    private final Histogram exitEventLatency;
+    private final Map<String, Histogram> listenerCallbackTimes;
+
+    AdapterMetrics(long visitsReceived,
+                   long visitsCached,
+                   long visitsEmittedDirectly,
+                   long visitsReplayed,
+                   long duplicateVisitsSuppressed,
+                   long visitsFiltered,
+                   long visitsDebounced,
+                   long cachedVisitsHighWaterMark,
+                   long cachedVisitsDropped,
+                   long cachedVisitsEvicted,
+                   long cachedVisitsCoalesced,
+                   int dispatchQueueDepth,
+                   long dispatchQueueDropped,
+                   long dispatchQueueCoalesced,
+                   @NonNull Histogram dispatchQueueWait,
+                   @NonNull Histogram replayDuration,
+                   @NonNull Histogram enterEventLatency,
+                   @NonNull Histogram exitEventLatency,
+                   @NonNull Map<String, Histogram> listenerCallbackTimes) {
+        this.visitsReceived = visitsReceived;
+        this.visitsCached = visitsCached;
+        this.visitsEmittedDirectly = visitsEmittedDirectly;
+        this.visitsReplayed = visitsReplayed;
+        this.duplicateVisitsSuppressed = duplicateVisitsSuppressed;
+        this.visitsFiltered = visitsFiltered;
+        this.visitsDebounced = visitsDebounced;
+        this.cachedVisitsHighWaterMark = cachedVisitsHighWaterMark;
+        this.cachedVisitsDropped = cachedVisitsDropped;
+        this.cachedVisitsEvicted = cachedVisitsEvicted;
+        this.cachedVisitsCoalesced = cachedVisitsCoalesced;
+        this.dispatchQueueDepth = dispatchQueueDepth;
+        this.dispatchQueueDropped = dispatchQueueDropped;
+        this.dispatchQueueCoalesced = dispatchQueueCoalesced;
+        this.dispatchQueueWait = dispatchQueueWait;
+        this.replayDuration = replayDuration;
+        this.enterEventLatency = enterEventLatency;
+        this.exitEventLatency = exitEventLatency;
+        this.listenerCallbackTimes = Collections.unmodifiableMap(listenerCallbackTimes);
+    }
+
+    /**
+     * @return The number of visits received from Gimbal.
+     */
+    public long getVisitsReceived() {
+        return visitsReceived;
+    }
+
+    /**
+     * @return The number of visits cached because Airship was not ready.
+     */
+    public long getVisitsCached() {
+        return visitsCached;
+    }
+
+    /**
+     * @return The number of visits turned into Airship events without being cached.
+     */
+    public long getVisitsEmittedDirectly() {
+        return visitsEmittedDirectly;
+    }
+
+    /**
+     * @return The number of cached visits replayed once Airship was ready.
+     */
+    public long getVisitsReplayed() {
+        return visitsReplayed;
+    }
+
+    /**
+     * @return The number of visit entries and exits dropped as repeats of ones already emitted.
+     */
+    public long getDuplicateVisitsSuppressed() {
+        return duplicateVisitsSuppressed;
+    }
+
+    /**
+     * @return The number of visits dropped by the place filter.
+     */
+    public long getVisitsFiltered() {
+        return visitsFiltered;
+    }
+
+    /**
+     * @return The number of visit entries and exits discarded as flapping by the visit debounce.
+     */
+    public long getVisitsDebounced() {
+        return visitsDebounced;
+    }
+
+    /**
+     * @return The largest number of visits cached at once.
+     */
+    public long getCachedVisitsHighWaterMark() {
+        return cachedVisitsHighWaterMark;
+    }
+
+    /**
+     * @return The number of visits dropped because the visit cache was full or unavailable.
+     */
+    public long getCachedVisitsDropped() {
+        return cachedVisitsDropped;
+    }
+
+    /**
+     * @return The number of cached visits evicted by age or by the cache eviction policy.
+     */
+    public long getCachedVisitsEvicted() {
+        return cachedVisitsEvicted;
+    }
+
+    /**
+     * @return The number of cached visit entries folded together with their exit.
+     */
+    public long getCachedVisitsCoalesced() {
+        return cachedVisitsCoalesced;
+    }
+
+    /**
+     * @return The number of visits waiting in the asynchronous dispatch queue, or {@code 0} if
+     * asynchronous dispatch is disabled.
+     */
+    public int getDispatchQueueDepth() {
+        return dispatchQueueDepth;
+    }
+
+    /**
+     * @return The number of visits dropped by the current asynchronous dispatch queue's overflow
+     * policy.
+     */
+    public long getDispatchQueueDropped() {
+        return dispatchQueueDropped;
+    }
+
+    /**
+     * @return The number of visits that replaced a queued visit under the current asynchronous
+     * dispatch queue's {@code COALESCE} overflow policy.
+     */
+    public long getDispatchQueueCoalesced() {
+        return dispatchQueueCoalesced;
+    }
+
+    /**
+     * @return The time visits spent in the asynchronous dispatch queue.
+     */
+    @NonNull
+    public Histogram getDispatchQueueWait() {
+        return dispatchQueueWait;
+    }
+
+    /**
+     * @return The time taken to replay the cached visits, once per replayed chunk.
+     */
+    @NonNull
+    public Histogram getReplayDuration() {
+        return replayDuration;
+    }
+
+    /**
+     * @return The time taken to create, track and notify listeners of a visit's entry events.
+     */
+    @NonNull
+    public Histogram getEnterEventLatency() {
+        return enterEventLatency;
+    }
+
+    /**
+     * @return The time taken to create, track and notify listeners of a visit's exit events.
+     */
+    @NonNull
+    public Histogram getExitEventLatency() {
+        return exitEventLatency;
+    }
+
+    /**
+     * @return The time spent in each listener's callbacks, keyed by listener class name.
+     */
+    @NonNull
+    public Map<String, Histogram> getListenerCallbackTimes() {
+        return listenerCallbackTimes;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "AdapterMetrics{visitsReceived=" + visitsReceived
+                + ", visitsCached=" + visitsCached
+                + ", visitsEmittedDirectly=" + visitsEmittedDirectly
+                + ", visitsReplayed=" + visitsReplayed
+                + ", duplicateVisitsSuppressed=" + duplicateVisitsSuppressed
+                + ", visitsFiltered=" + visitsFiltered
+                + ", visitsDebounced=" + visitsDebounced
+                + ", cachedVisitsHighWaterMark=" + cachedVisitsHighWaterMark
+                + ", cachedVisitsDropped=" + cachedVisitsDropped
+                + ", cachedVisitsEvicted=" + cachedVisitsEvicted
+                + ", cachedVisitsCoalesced=" + cachedVisitsCoalesced
+                + ", dispatchQueueDepth=" + dispatchQueueDepth
+                + ", dispatchQueueDropped=" + dispatchQueueDropped
+                + ", dispatchQueueCoalesced=" + dispatchQueueCoalesced
+                + ", dispatchQueueWait=" + dispatchQueueWait
+                + ", replayDuration=" + replayDuration
+                + ", enterEventLatency=" + enterEventLatency
+                + ", exitEventLatency=" + exitEventLatency
+                + ", listenerCallbackTimes=" + listenerCallbackTimes + '}';
+    }
+}
@@ -6,27 +6,35 @@ package com.gimbal.airship;
 
 import android.app.Application;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
-import com.gimbal.android.Attributes;
-import com.gimbal.android.DeviceAttributesManager;
 import com.gimbal.android.Gimbal;
+import com.gimbal.android.Place;
 import com.gimbal.android.PlaceEventListener;
 import com.gimbal.android.PlaceManager;
 import com.gimbal.android.Visit;
 import com.urbanairship.UAirship;
 import com.urbanairship.analytics.CustomEvent;
+import com.urbanairship.analytics.Event;
 import com.urbanairship.analytics.location.RegionEvent;
 import com.urbanairship.channel.AirshipChannelListener;
 import com.urbanairship.util.DateUtils;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -34,41 +42,264 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 @SuppressWarnings({"unused"})
 public class AirshipAdapter {
-    private static final String PREFERENCE_NAME = "com.urbanairship.gimbal.preferences";
-    private static final String API_KEY_PREFERENCE = "com.urbanairship.gimbal.api_key";
-    private static final String TRACK_CUSTOM_ENTRY_PREFERENCE_KEY = "com.gimbal.track_custom_entry";
-    private static final String TRACK_CUSTOM_EXIT_PREFERENCE_KEY = "com.gimbal.track_custom_exit";
-    private static final String TRACK_REGION_EVENT_PREFERENCE_KEY = "com.gimbal.track_region_event";
-    private static final String STARTED_PREFERENCE = "com.urbanairship.gimbal.is_started";
-
-    private static final boolean TRACK_CUSTOM_ENTRY_DEFAULT = false;
-    private static final boolean TRACK_CUSTOM_EXIT_DEFAULT = false;
-    private static final boolean TRACK_REGION_EVENT_DEFAULT = false;
-
-    private static final String TAG = "GimbalAdapter";
-    private static final String SOURCE = "Gimbal";
+    /**
+     * Event type of a RegionEvent for a place entry, see {@link #addListener(Listener, int)}.
+     */
+    public static final int EVENT_REGION_ENTER = 1;
+
+    /**
+     * Event type of a CustomEvent for a place entry, see {@link #addListener(Listener, int)}.
+     */
+    public static final int EVENT_CUSTOM_ENTRY = 1 << 1;
+
+    /**
+     * Event type of a RegionEvent for a place departure, see {@link #addListener(Listener, int)}.
+     */
+    public static final int EVENT_REGION_EXIT = 1 << 2;
+
+    /**
+     * Event type of a CustomEvent for a place departure, see {@link #addListener(Listener, int)}.
+     */
+    public static final int EVENT_CUSTOM_EXIT = 1 << 3;
+
+    /**
+     * RegionEvents for both place entries and departures.
+     */
+    public static final int EVENTS_REGION = EVENT_REGION_ENTER | EVENT_REGION_EXIT;
+
+    /**
+     * CustomEvents for both place entries and departures.
+     */
+    public static final int EVENTS_CUSTOM = EVENT_CUSTOM_ENTRY | EVENT_CUSTOM_EXIT;
+
+    /**
+     * RegionEvents and CustomEvents for place entries.
+     */
+    public static final int EVENTS_ENTER = EVENT_REGION_ENTER | EVENT_CUSTOM_ENTRY;
 
-    // UA to Gimbal Device Attributes
-    private static final String GIMBAL_UA_NAMED_USER_ID = "ua.nameduser.id";
-    private static final String GIMBAL_UA_CHANNEL_ID = "ua.channel.id";
+    /**
+     * RegionEvents and CustomEvents for place departures.
+     */
+    public static final int EVENTS_EXIT = EVENT_REGION_EXIT | EVENT_CUSTOM_EXIT;
 
-    // Gimbal to UA Device Attributes
-    private static final String UA_GIMBAL_APPLICATION_INSTANCE_ID = "com.urbanairship.gimbal.aii";
+    /**
+     * Every event type.
+     */
+    public static final int EVENTS_ALL = EVENTS_ENTER | EVENTS_EXIT;
+
+    // Event routes, derived from the adapter config and the listener subscriptions
+    private static final int ROUTE_REGION_ENTER = EVENT_REGION_ENTER;
+    private static final int ROUTE_CUSTOM_ENTER = EVENT_CUSTOM_ENTRY;
+    private static final int ROUTE_REGION_EXIT = EVENT_REGION_EXIT;
+    private static final int ROUTE_CUSTOM_EXIT = EVENT_CUSTOM_EXIT;
+    private static final int ROUTE_VISIT_ENTER = 1 << 4;
+    private static final int ROUTE_VISIT_EXIT = 1 << 5;
+    private static final int ROUTES_VISIT = ROUTE_VISIT_ENTER | ROUTE_VISIT_EXIT;
+    // Dwell milestones need both the entry and the exit of a visit
+    private static final int ROUTE_DWELL = 1 << 6;
+    private static final int ROUTES_ENTER = ROUTE_REGION_ENTER | ROUTE_CUSTOM_ENTER | ROUTE_VISIT_ENTER | ROUTE_DWELL;
+    private static final int ROUTES_EXIT = ROUTE_REGION_EXIT | ROUTE_CUSTOM_EXIT | ROUTE_VISIT_EXIT | ROUTE_DWELL;
+
+    private static final String SOURCE = "Gimbal";
 
     // CustomEvent names
-    private static final String CUSTOM_ENTRY_EVENT_NAME = "gimbal_custom_entry_event";
-    private static final String CUSTOM_EXIT_EVENT_NAME = "gimbal_custom_exit_event";
+    static final String CUSTOM_ENTRY_EVENT_NAME = "gimbal_custom_entry_event";
+    static final String CUSTOM_EXIT_EVENT_NAME = "gimbal_custom_exit_event";
+    static final String CUSTOM_DWELL_EVENT_NAME = "gimbal_custom_dwell_event";
+
+    // Number of records kept by the activity trace
+    private static final int TRACE_CAPACITY = 1024;
 
-    private final SharedPreferences preferences;
+    // Number of places whose attributes are kept ready for CustomEvents
+    private static final int PLACE_PROPERTIES_CACHE_SIZE = 128;
+
+    // Default pace of cached visit replay, 400 visits per second
+    private static final int DEFAULT_REPLAY_CHUNK_SIZE = 100;
+    private static final long DEFAULT_REPLAY_CHUNK_INTERVAL_MS = 250;
+
+    @VisibleForTesting
+    final ConfigStore configStore;
     private static AirshipAdapter instance;
     private final Context context;
-    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
-    private boolean isAdapterStarted = false;
-    private final LinkedList<CachedVisit> cachedVisits = new LinkedList<>();
+    private final List<ListenerTable.Subscription> subscriptions = new ArrayList<>();
+    private final List<VisitListener> visitListeners = new ArrayList<>();
+    private volatile ListenerTable listenerTable = ListenerTable.EMPTY;
+    private volatile boolean isAdapterStarted = false;
+    private final Object lifecycleLock = new Object();
+    private final Object configLock = new Object();
+    private final List<RestoreCallback> restoreCallbacks = new ArrayList<>();
+    @Nullable private RestoreResult restoreResult;
+    @VisibleForTesting
+    final VisitJournal cachedVisits;
+    private final FanOutEventSink eventSink;
+    private final DeviceAttributeSync deviceAttributeSync;
+    private final VisitDedupIndex dedupIndex;
+    private final VisitIntake intake = new VisitIntake(new VisitIntake.Handler() {
+        @Override
+        public boolean isReady() {
+            return eventSink.isReady();
+        }
+
+        @Override
+        public boolean replay(int maxVisits) {
+            return replayCachedVisits(maxVisits);
+        }
+
+        @Override
+        public void emit(@NonNull VisitRecord record, @Nullable Visit visit) {
+            if (isDuplicate(record)) {
+                return;
+            }
+            metrics.visitsEmittedDirectly.increment();
+            createAirshipEvent(record, visit);
+        }
+
+        @Override
+        public void cache(@NonNull VisitRecord record, @Nullable Visit visit) {
+            cacheVisit(record, visit);
+        }
+    }, AdapterExecutors.scheduler(), DEFAULT_REPLAY_CHUNK_SIZE, DEFAULT_REPLAY_CHUNK_INTERVAL_MS);
+    private volatile ReplayListener replayListener;
+    private final OpenVisitRegistry openVisits = new OpenVisitRegistry();
+    private final DwellMilestoneTimer dwellMilestones =
+            new DwellMilestoneTimer(AdapterExecutors.scheduler(), this::onDwellMilestone);
+    private final TraceRecorder trace = new TraceRecorder(TRACE_CAPACITY);
+    private final MetricsRecorder metrics = new MetricsRecorder();
+    // Only accessed by the intake's consumer thread
+    private int replayedVisitCount = 0;
+    private ScheduledFuture<?> metricsExport;
+    private final PlacePropertiesCache placePropertiesCache = new PlacePropertiesCache(PLACE_PROPERTIES_CACHE_SIZE);
+    // Maximum number of cached Visits kept in memory for listeners, or 0 for as many as are cached
+    private volatile int retainedVisitLimit = 0;
+    // Only accessed by the intake's consumer thread
+    private final Map<String, Visit> retainedVisits = new LinkedHashMap<String, Visit>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Visit> eldest) {
+            int limit = retainedVisitLimit;
+            // Visits of records evicted from the cache are let go with the oldest
+            return size() > (limit > 0 ? limit : Math.max(1, cachedVisits.getPendingCount()));
+        }
+    };
     private final AtomicReference<AirshipChannelListener> airshipChannelListener = new AtomicReference<>();
+    private volatile VisitDispatcher dispatcher;
+    // Dispatcher last disabled, which visits processed on Gimbal's thread must wait out
+    private volatile VisitDispatcher retiredDispatcher;
+    private volatile VisitDebouncer debouncer;
+    private volatile PlaceFilter placeFilter;
+    // Negative until the adapter config is first read
+    private volatile int eventRoutes = -1;
+
+    /**
+     * Receives the adapter's log messages, in place of {@link Log}.
+     */
+    public interface LogHandler {
+
+        /**
+         * Called for each log message at or above the adapter's log level.
+         *
+         * @param priority The {@link Log} priority, e.g. {@link Log#INFO}.
+         * @param message The message.
+         * @param throwable The associated exception, if any.
+         */
+        void log(int priority, @NonNull String message, @Nullable Throwable throwable);
+    }
+
+    /**
+     * Notified when the adapter has finished restoring its last run state.
+     */
+    public interface RestoreCallback {
+
+        /**
+         * Called on the thread that ran the restore, or on the thread that added the callback if
+         * the restore had already finished.
+         *
+         * @param result The outcome and timing of the restore.
+         */
+        void onRestored(@NonNull RestoreResult result);
+    }
+
+    /**
+     * Notified of the progress of replaying visits cached while Airship was not ready.
+     */
+    public interface ReplayListener {
+
+        /**
+         * Called on the adapter's background thread after each chunk of cached visits is replayed.
+         *
+         * @param replayedCount The number of visits replayed so far by this replay.
+         * @param estimatedRemainingCount The estimated number of cached visits still to replay, or
+         *                                {@code -1} if unknown.
+         * @param isComplete {@code true} once every cached visit is replayed.
+         */
+        void onReplayProgress(int replayedCount, int estimatedRemainingCount, boolean isComplete);
+    }
 
     /**
-     * Adapter listener.
+     * Receives periodic snapshots of the adapter's metrics.
+     */
+    public interface MetricsExporter {
+
+        /**
+         * Called on a background thread with the latest metrics.
+         *
+         * @param metrics The metrics snapshot.
+         */
+        void export(@NonNull AdapterMetrics metrics);
+    }
+
+    /**
+     * How visits are handled when the asynchronous dispatch queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The Gimbal callback thread waits until there is room in the queue.
+         */
+        BLOCK,
+
+        /**
+         * The oldest queued visit is discarded to make room.
+         */
+        DROP_OLDEST,
+
+        /**
+         * A queued visit with the same visit ID and boundary, or a queued entry for a visit that
+         * has since ended, is replaced by the new visit.  Otherwise the oldest queued visit is
+         * discarded.
+         */
+        COALESCE
+    }
+
+    /**
+     * What to evict when a visit cached while Airship is not ready would exceed the cache's
+     * limits.  Visits older than the maximum age are evicted under every policy.
+     */
+    public enum CacheEvictionPolicy {
+        /**
+         * The new visit is dropped.
+         */
+        DROP_NEWEST,
+
+        /**
+         * The oldest cached visits are evicted to make room.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Cached entries whose exit is also cached are evicted first, so that the exit still
+         * carries the visit's dwell time, then the oldest cached visits.
+         */
+        DROP_PAIRED_ENTRIES
+    }
+
+    /**
+     * Adapter listener.  Each callback does nothing by default, so a listener need only implement
+     * the callbacks for the event types it subscribes to.
+     * <p>
+     * <b>Note:</b> Visits received while Airship is not ready are cached on disk, with their
+     * Gimbal {@link Visit}s kept in memory so that listeners are notified when the cache is
+     * replayed.  Visits cached by a previous app process are tracked as Airship events without
+     * notifying listeners, as a {@link Visit} cannot be rebuilt from the cache.  See
+     * {@link #setCachedVisitListenerLimit(int)}.
      */
     public interface Listener {
 
@@ -78,7 +309,7 @@ public class AirshipAdapter {
          * @param event The Urban Airship event.
          * @param visit The Gimbal visit.
          */
-        void onRegionEntered(@NonNull RegionEvent event, @NonNull Visit visit);
+        default void onRegionEntered(@NonNull RegionEvent event, @NonNull Visit visit) {}
 
         /**
          * Called when a Urban Airship Region exit event is created from a Gimbal Visit.
@@ -86,7 +317,7 @@ public class AirshipAdapter {
          * @param event The Urban Airship event.
          * @param visit The Gimbal visit.
          */
-        void onRegionExited(@NonNull RegionEvent event, @NonNull Visit visit);
+        default void onRegionExited(@NonNull RegionEvent event, @NonNull Visit visit) {}
 
         /**
          * Called when a Urban Airship CustomEvent entry is created from a Gimbal Visit.
@@ -94,7 +325,7 @@ public class AirshipAdapter {
          * @param event The Urban Airship event.
          * @param visit The Gimbal visit.
          */
-        void onCustomRegionEntry(@NonNull CustomEvent event, @NonNull Visit visit);
+        default void onCustomRegionEntry(@NonNull CustomEvent event, @NonNull Visit visit) {}
 
         /**
          * Called when a Urban Airship CustomEvent exit is created from a Gimbal Visit.
@@ -102,7 +333,23 @@ public class AirshipAdapter {
          * @param event The Urban Airship event.
          * @param visit The Gimbal visit.
          */
-        void onCustomRegionExit(@NonNull CustomEvent event, @NonNull Visit visit);
+        default void onCustomRegionExit(@NonNull CustomEvent event, @NonNull Visit visit) {}
+    }
+
+    /**
+     * Receives the Gimbal visits the adapter handles, without any Airship event being created.
+     * Replayed visits are delivered as for {@link Listener}.
+     */
+    public interface VisitListener {
+
+        /**
+         * Called for each place entry and departure, after any debouncing.
+         *
+         * @param visit The Gimbal visit.
+         * @param boundaryEvent {@link RegionEvent#BOUNDARY_EVENT_ENTER} or
+         *                      {@link RegionEvent#BOUNDARY_EVENT_EXIT}.
+         */
+        void onVisit(@NonNull Visit visit, int boundaryEvent);
     }
 
     /**
@@ -111,8 +358,31 @@ public class AirshipAdapter {
      * @param context The application context
      */
     private AirshipAdapter(@NonNull Context context) {
+        this(context, new AirshipEventSink());
+    }
+
+    /**
+     * Creates an adapter whose primary sink is the given sink rather than Airship's.
+     *
+     * @param context The application context
+     * @param eventSink The event sink.
+     */
+    @VisibleForTesting
+    AirshipAdapter(@NonNull Context context, @NonNull EventSink eventSink) {
         this.context = context.getApplicationContext();
-        this.preferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        this.eventSink = new FanOutEventSink(eventSink);
+        this.configStore = new ConfigStore(context,
+                new File(this.context.getFilesDir(), ConfigStore.FILE_NAME),
+                AdapterExecutors.io());
+        this.deviceAttributeSync = new DeviceAttributeSync(this.context, AdapterExecutors.scheduler());
+        this.dedupIndex = new VisitDedupIndex(
+                new File(this.context.getNoBackupFilesDir(), VisitDedupIndex.FILE_NAME),
+                VisitDedupIndex.DEFAULT_CAPACITY,
+                AdapterExecutors.io());
+        this.cachedVisits = new VisitJournal(
+                new File(this.context.getNoBackupFilesDir(), VisitJournal.FILE_NAME),
+                VisitJournal.DEFAULT_MAX_FILE_SIZE,
+                AdapterExecutors.io());
     }
 
     /**
@@ -126,6 +396,15 @@ public class AirshipAdapter {
         return instance;
     }
 
+    /**
+     * Drops the shared instance, so that the next {@link #shared(Context)} creates a new one.
+     * The dropped instance should be stopped first.
+     */
+    @VisibleForTesting
+    synchronized static void clearSharedInstance() {
+        instance = null;
+    }
+
     /**
      * Restores the last run state from a previous app lifecycle.
      *
@@ -133,21 +412,86 @@ public class AirshipAdapter {
      * background location or beacon events.  To this end, {@code restore()} is Called
      * automatically by {@code AirshipAdapterInitializer} but may be called in `Application
      * .onCreate()` if manual initialization is desired, after disabling the initializer.
+     * Registered {@link RestoreCallback}s are notified before this returns.
+     *
+     * @see #restoreInBackground()
      */
     public void restore() {
-        String apiKeyPreference = getApiKeyPreference();
-        boolean previouslyStarted = getStartedPreference();
-
-        if (apiKeyPreference != null && previouslyStarted) {
-            Log.i(TAG, "Restoring Gimbal-Airship Adapter");
-            startAdapter(apiKeyPreference);
-            if (isAdapterStarted) {
-                Log.i(TAG, "Gimbal Airship adapter restored");
-            } else {
-                Log.e(TAG, "Failed to restore Gimbal Airship adapter");
+        finishRestore(restoreState(false));
+    }
+
+    /**
+     * Restores the last run state from a previous app lifecycle on a background thread, so that
+     * loading the adapter's config and starting Gimbal do not delay app startup.  Returns
+     * immediately.
+     * <p>
+     * {@code AirshipAdapterInitializer} calls this instead of {@link #restore()} when the app's
+     * manifest sets the {@code com.gimbal.airship.RESTORE_IN_BACKGROUND} meta-data to {@code true}.
+     * Visits that arrive before Airship is ready are cached as usual.  Use
+     * {@link #addRestoreCallback(RestoreCallback)} to be notified when the restore is finished.
+     */
+    public void restoreInBackground() {
+        AdapterExecutors.scheduler().execute(() -> finishRestore(restoreState(true)));
+    }
+
+    /**
+     * Adds a callback to be notified when the adapter has been restored.  If the adapter was
+     * already restored, the callback is invoked immediately.
+     *
+     * @param callback The callback.
+     */
+    public void addRestoreCallback(@NonNull RestoreCallback callback) {
+        RestoreResult result;
+        synchronized (restoreCallbacks) {
+            result = restoreResult;
+            if (result == null) {
+                restoreCallbacks.add(callback);
+                return;
             }
-        } else if (!previouslyStarted) {
-            Log.d(TAG, "Gimbal Airship adapter not previously started, nothing to restore");
+        }
+        callback.onRestored(result);
+    }
+
+    @NonNull
+    private RestoreResult restoreState(boolean isBackground) {
+        synchronized (lifecycleLock) {
+            long start = System.nanoTime();
+            ConfigStore.State stored = configStore.get();
+            boolean previouslyStarted = stored.isStarted;
+            updateEventRoutes();
+            long configLoaded = System.nanoTime();
+
+            if (stored.apiKey != null && previouslyStarted) {
+                AdapterLog.i("Restoring Gimbal-Airship Adapter");
+                startAdapter(stored.apiKey);
+                if (isAdapterStarted) {
+                    AdapterLog.i("Gimbal Airship adapter restored");
+                } else {
+                    AdapterLog.e("Failed to restore Gimbal Airship adapter");
+                }
+            } else if (!previouslyStarted) {
+                AdapterLog.d("Gimbal Airship adapter not previously started, nothing to restore");
+            }
+
+            long end = System.nanoTime();
+            return new RestoreResult(isAdapterStarted,
+                    isBackground,
+                    TimeUnit.NANOSECONDS.toMillis(configLoaded - start),
+                    TimeUnit.NANOSECONDS.toMillis(end - configLoaded),
+                    TimeUnit.NANOSECONDS.toMillis(end - start));
+        }
+    }
+
+    private void finishRestore(@NonNull RestoreResult result) {
+        List<RestoreCallback> callbacks;
+        synchronized (restoreCallbacks) {
+            restoreResult = result;
+            callbacks = new ArrayList<>(restoreCallbacks);
+            restoreCallbacks.clear();
+        }
+        AdapterLog.d("Restore finished: " + result);
+        for (RestoreCallback callback : callbacks) {
+            callback.onRestored(result);
         }
     }
 
@@ -170,19 +514,25 @@ public class AirshipAdapter {
      * @return {@code true} if the adapter started, otherwise {@code false}.
      */
     public boolean start(@NonNull String gimbalApiKey) {
+        synchronized (lifecycleLock) {
+            return startLocked(gimbalApiKey);
+        }
+    }
+
+    private boolean startLocked(@NonNull String gimbalApiKey) {
         if (gimbalApiKey.trim().isEmpty()) {
-            Log.w(TAG, "Cannot start Gimbal with empty API key");
+            AdapterLog.w("Cannot start Gimbal with empty API key");
             return isAdapterStarted;
         }
 
-        String apiKeyPreference = getApiKeyPreference();
+        String apiKeyPreference = configStore.get().apiKey;
         if (isAdapterStarted && !gimbalApiKey.equals(apiKeyPreference)) {
-            Log.w(TAG, String.format("Detected API key change '%s' -> '%s...'",
+            AdapterLog.w(String.format("Detected API key change '%s' -> '%s...'",
                     apiKeyPreference == null ? "<null>" : apiKeyPreference.substring(0, 8) + "...",
                     gimbalApiKey.substring(0, 8)));
-            setApiKeyPreference(gimbalApiKey);
+            configStore.setApiKey(gimbalApiKey);
             Gimbal.setApiKey((Application)context.getApplicationContext(), gimbalApiKey);
-            Log.w(TAG, "Gimbal will use new API key upon next app start");
+            AdapterLog.w("Gimbal will use new API key upon next app start");
         } else {
             startAdapter(gimbalApiKey);
         }
@@ -195,15 +545,24 @@ public class AirshipAdapter {
      * If the adapter is not already started then this has no effect.
      */
     public void stop() {
+        synchronized (lifecycleLock) {
+            stopLocked();
+        }
+    }
+
+    private void stopLocked() {
         if (!isAdapterStarted) {
             return;
         }
 
         try {
-            setStartedPreference(false);
+            configStore.setStarted(false, null);
             Gimbal.stop();
             isAdapterStarted = false;
             PlaceManager.getInstance().removeListener(placeEventListener);
+            deviceAttributeSync.stop();
+            dwellMilestones.clear();
+            openVisits.clear();
             if (isAirshipReady()) {
                 UAirship.shared(airship -> {
                     synchronized (airshipChannelListener) {
@@ -214,11 +573,11 @@ public class AirshipAdapter {
                     }
                 });
             } else {
-                Log.w(TAG, "Airship not taking off or flying - unable to remove channel listener");
+                AdapterLog.w("Airship not taking off or flying - unable to remove channel listener");
             }
-            Log.i(TAG, "Adapter stopped");
+            AdapterLog.i("Adapter stopped");
         } catch (Exception e) {
-            Log.w(TAG,"Caught exception stopping Gimbal", e);
+            AdapterLog.w("Caught exception stopping Gimbal", e);
         }
     }
 
@@ -237,9 +596,9 @@ public class AirshipAdapter {
      *                                    Airship CustomEvents.
      */
     public void setShouldTrackCustomEntryEvent(boolean shouldTrackCustomEntryEvent) {
-        preferences.edit()
-                .putBoolean(TRACK_CUSTOM_ENTRY_PREFERENCE_KEY, shouldTrackCustomEntryEvent)
-                .apply();
+        synchronized (configLock) {
+            configure(getConfig().toBuilder().setTrackCustomEntryEvents(shouldTrackCustomEntryEvent).build());
+        }
     }
 
     /**
@@ -250,9 +609,9 @@ public class AirshipAdapter {
      *                                    Airship CustomEvents.
      */
     public void setShouldTrackCustomExitEvent(boolean shouldTrackCustomExitEvent) {
-        preferences.edit()
-                .putBoolean(TRACK_CUSTOM_EXIT_PREFERENCE_KEY, shouldTrackCustomExitEvent)
-                .apply();
+        synchronized (configLock) {
+            configure(getConfig().toBuilder().setTrackCustomExitEvents(shouldTrackCustomExitEvent).build());
+        }
     }
 
     /**
@@ -263,269 +622,911 @@ public class AirshipAdapter {
      *                               Airship RegionEvents.
      */
     public void setShouldTrackRegionEvent(boolean shouldTrackRegionEvent) {
-        preferences.edit()
-                .putBoolean(TRACK_REGION_EVENT_PREFERENCE_KEY, shouldTrackRegionEvent)
-                .apply();
+        synchronized (configLock) {
+            configure(getConfig().toBuilder().setTrackRegionEvents(shouldTrackRegionEvent).build());
+        }
+    }
+
+    /**
+     * Applies the adapter config as a whole.  The config is persisted across app restarts,
+     * together with the adapter's started state, in a single write.
+     *
+     * @param config The adapter config.
+     */
+    public void configure(@NonNull AdapterConfig config) {
+        synchronized (configLock) {
+            configStore.setConfig(config);
+            updateEventRoutes();
+        }
     }
 
     /**
-     * Adds an adapter listener.
+     * Gets the adapter config, as last applied by {@link #configure(AdapterConfig)} or the
+     * {@code setShouldTrack} methods.
+     *
+     * @return The adapter config.
+     */
+    @NonNull
+    public AdapterConfig getConfig() {
+        return configStore.get().config;
+    }
+
+    /**
+     * Adds an adapter listener.  The listener is notified of the events the adapter is configured
+     * to track.
      *
      * @param listener The listener.
      */
     public void addListener(@NonNull Listener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        addSubscription(new ListenerTable.Subscription(listener, EVENTS_ALL, true));
     }
 
     /**
-     * Removes an adapter listener.
+     * Adds an adapter listener for the given event types, e.g. {@link #EVENTS_REGION} or
+     * {@link #EVENT_CUSTOM_ENTRY}.  Unlike {@link #addListener(Listener)}, the listener is notified
+     * of these events whether or not they are tracked as Airship events.  Events that are neither
+     * tracked nor subscribed to are never created.
+     *
+     * @param listener The listener.
+     * @param eventTypes The event types, one or more of the {@code EVENT_} constants combined.
+     */
+    public void addListener(@NonNull Listener listener, int eventTypes) {
+        addSubscription(new ListenerTable.Subscription(listener, eventTypes & EVENTS_ALL, false));
+    }
+
+    /**
+     * Removes an adapter listener, for every event type it was added for.
      *
      * @param listener The listener.
      */
     public void removeListener(@NonNull Listener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
+        synchronized (subscriptions) {
+            Iterator<ListenerTable.Subscription> iterator = subscriptions.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().listener == listener) {
+                    iterator.remove();
+                }
+            }
+            updateListenerTable();
+        }
+    }
+
+    /**
+     * Adds a listener for the Gimbal visits themselves, notified whether or not any Airship
+     * event is tracked for them.
+     *
+     * @param listener The listener.
+     */
+    public void addVisitListener(@NonNull VisitListener listener) {
+        synchronized (subscriptions) {
+            visitListeners.add(listener);
+            updateListenerTable();
+        }
+    }
+
+    /**
+     * Removes a visit listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeVisitListener(@NonNull VisitListener listener) {
+        synchronized (subscriptions) {
+            visitListeners.remove(listener);
+            updateListenerTable();
+        }
+    }
+
+    private void addSubscription(@NonNull ListenerTable.Subscription subscription) {
+        synchronized (subscriptions) {
+            subscriptions.add(subscription);
+            updateListenerTable();
+        }
+    }
+
+    private void updateListenerTable() {
+        listenerTable = new ListenerTable(subscriptions, visitListeners, ROUTES_VISIT);
+    }
+
+    /**
+     * Sets the minimum priority of the adapter's log messages.  Defaults to {@link Log#INFO};
+     * per-visit messages are logged at {@link Log#DEBUG}.
+     *
+     * @param priority A {@link Log} priority, e.g. {@link Log#DEBUG}.
+     */
+    public static void setLogLevel(int priority) {
+        AdapterLog.setLevel(priority);
+    }
+
+    /**
+     * Sets where the adapter's log messages are sent.
+     *
+     * @param handler The log handler, or {@code null} to log to {@link Log}.
+     */
+    public static void setLogHandler(@Nullable LogHandler handler) {
+        AdapterLog.setHandler(handler);
+    }
+
+    /**
+     * Sets whether visit activity is recorded to the adapter's in-memory trace.  The trace keeps
+     * the most recent 1024 records and is enabled by default.
+     *
+     * @param enabled {@code true} to record visit activity.
+     */
+    public void setTraceEnabled(boolean enabled) {
+        trace.setEnabled(enabled);
+    }
+
+    /**
+     * Writes the adapter's trace of recent visit activity -- visits received, cached, replayed,
+     * events emitted and listeners invoked -- oldest first.  Visit and place identifiers are
+     * written as hashes.
+     *
+     * @param writer The writer to dump to.
+     */
+    public void dumpTrace(@NonNull PrintWriter writer) {
+        trace.dump(writer);
+    }
+
+    /**
+     * Gets a snapshot of the adapter's metrics -- visit counts, cache and queue usage, and the
+     * time taken to replay cached visits, create events and run listener callbacks.
+     *
+     * @return The metrics snapshot.
+     */
+    @NonNull
+    public AdapterMetrics getMetrics() {
+        VisitDispatcher dispatcher = this.dispatcher;
+        return metrics.snapshot(cachedVisits.getDroppedCount(),
+                cachedVisits.getEvictedCount(),
+                cachedVisits.getCoalescedCount(),
+                dispatcher == null ? 0 : dispatcher.size(),
+                dispatcher == null ? 0 : dispatcher.getDroppedCount(),
+                dispatcher == null ? 0 : dispatcher.getCoalescedCount());
+    }
+
+    /**
+     * Sets an exporter to periodically receive the adapter's metrics.
+     *
+     * @param exporter The exporter, or {@code null} to stop exporting.
+     * @param periodMillis The time between exports.
+     */
+    public synchronized void setMetricsExporter(@Nullable MetricsExporter exporter, long periodMillis) {
+        if (metricsExport != null) {
+            metricsExport.cancel(false);
+            metricsExport = null;
+        }
+        if (exporter != null) {
+            metricsExport = AdapterExecutors.scheduler().scheduleAtFixedRate(() -> {
+                try {
+                    exporter.export(getMetrics());
+                } catch (Exception e) {
+                    AdapterLog.e("Metrics exporter failed", e);
+                }
+            }, periodMillis, Math.max(1, periodMillis), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets rules selecting the places whose visits the adapter handles, with a sampling rate
+     * for each.  Visits that the filter drops are discarded as soon as they are received, before
+     * any debouncing, caching or event creation.
+     *
+     * @param filter The place filter, or {@code null} to handle visits to every place.
+     */
+    public void setPlaceFilter(@Nullable PlaceFilter filter) {
+        placeFilter = filter;
+    }
+
+    /**
+     * Sets how long the adapter remembers the visit entries and exits it has emitted, so that
+     * a repeat -- e.g. redelivered by Gimbal or replayed after an app restart -- is dropped rather
+     * than emitted again.  Up to 2048 entries and exits are remembered, across app restarts.
+     * Defaults to 24 hours.
+     *
+     * @param windowMillis The time to remember each entry and exit, or {@code 0} to disable
+     *                     duplicate suppression.
+     */
+    public void setDuplicateVisitWindow(long windowMillis) {
+        dedupIndex.setWindow(windowMillis);
+    }
+
+    /**
+     * Gets the visit currently open at a place.  Open visits are tracked for every place, whether
+     * or not its visits pass the place filter, and are reconciled with Gimbal's current visits
+     * when the adapter starts or is restored.
+     *
+     * @param placeIdentifier The Gimbal place identifier.
+     * @return The open visit, or {@code null} if the device is not at the place.
+     */
+    @Nullable
+    public OpenVisit getOpenVisit(@NonNull String placeIdentifier) {
+        return openVisits.get(placeIdentifier);
+    }
+
+    /**
+     * Gets a snapshot of the visits currently open, one per place, in no particular order.
+     *
+     * @return The open visits.
+     */
+    @NonNull
+    public List<OpenVisit> getOpenVisits() {
+        return openVisits.snapshot();
+    }
+
+    /**
+     * Sets the dwell times at which the adapter tracks a {@code gimbal_custom_dwell_event}
+     * CustomEvent for a visit that is still open, e.g. 5, 15 and 60 minutes after arrival.  The
+     * event has the same properties as the custom entry event, plus {@code dwellTimeInSeconds}
+     * set to the milestone reached.  Milestones apply to visits entered after they are set, and
+     * are only timed while the app process is alive.  None are set by default.
+     *
+     * @param milestoneMillis The dwell times, in milliseconds, or none to disable dwell
+     *                        milestone events.
+     */
+    public void setDwellMilestones(@NonNull long... milestoneMillis) {
+        dwellMilestones.setMilestones(milestoneMillis);
+        if (!dwellMilestones.hasMilestones()) {
+            dwellMilestones.clear();
+        }
+        updateEventRoutes();
+    }
+
+    /**
+     * Sets the pace at which visits cached while Airship was not ready are replayed once it is,
+     * so that a large backlog neither stalls the adapter nor bursts into Airship analytics.
+     * Replay runs on the adapter's background thread, one chunk at a time.  Defaults to 100
+     * visits every 250 milliseconds.
+     *
+     * @param visitsPerChunk The maximum number of visits replayed at a time.
+     * @param chunkIntervalMillis The delay between chunks.
+     */
+    public void setReplayPacing(int visitsPerChunk, long chunkIntervalMillis) {
+        intake.setReplayPacing(visitsPerChunk, chunkIntervalMillis);
+    }
+
+    /**
+     * Sets the limits of the cache of visits received while Airship is not ready, so that its
+     * size stays bounded however long Airship takes to be ready.  Defaults to 1 MB, with no limit
+     * on the number or age of visits, dropping new visits once full.
+     *
+     * @param maxVisits The maximum number of cached entries and exits.
+     * @param maxBytes The maximum size of the cache file, in bytes.
+     * @param maxAgeMillis The age past which a cached visit is evicted rather than replayed, or
+     *                     {@code 0} for no limit.
+     * @param policy What to evict when a new visit would exceed a limit.
+     */
+    public void setCachedVisitLimits(int maxVisits,
+                                     long maxBytes,
+                                     long maxAgeMillis,
+                                     @NonNull CacheEvictionPolicy policy) {
+        cachedVisits.setLimits(maxVisits, maxBytes, maxAgeMillis, policy);
+    }
+
+    /**
+     * Sets whether a cached visit entry is folded together with the visit's exit, when the exit
+     * is cached too, into a single cache record.  The entry is then replayed just before its exit
+     * rather than in its original order.  Enabled by default.
+     *
+     * @param enabled {@code true} to fold entries into exits.
+     */
+    public void setCachedVisitCoalescing(boolean enabled) {
+        cachedVisits.setCoalescing(enabled);
+    }
+
+    /**
+     * Limits how many visits cached while Airship is not ready keep their Gimbal {@link Visit} in
+     * memory, so that listeners are notified of them when the cache is replayed.  Older cached
+     * visits are still tracked as Airship events, without notifying listeners.  By default,
+     * every cached visit is kept.
+     *
+     * @param maxVisits The maximum number of cached entries and exits whose {@link Visit} is
+     *                  kept, or {@code 0} for no limit.
+     */
+    public void setCachedVisitListenerLimit(int maxVisits) {
+        retainedVisitLimit = Math.max(0, maxVisits);
+    }
+
+    /**
+     * Sets a listener to be notified of the progress of replaying cached visits.
+     *
+     * @param listener The listener, or {@code null} to remove it.
+     */
+    public void setReplayListener(@Nullable ReplayListener listener) {
+        replayListener = listener;
+    }
+
+    /**
+     * Sets the primary sink, which the adapter's events are added to in place of Airship
+     * analytics.  The primary sink decides when visits are cached: visits received while it is
+     * not ready are cached, and replayed to it once it is.  Airship must still take off for the
+     * adapter to start.  Sinks added with {@link #addEventSink(EventSink, Executor)} are given
+     * the events as well.
+     *
+     * @param sink The event sink, or {@code null} to add events to Airship analytics, the default.
+     */
+    public void setEventSink(@Nullable EventSink sink) {
+        eventSink.setPrimary(sink == null ? new AirshipEventSink() : sink);
+        if (eventSink.isReady()) {
+            intake.markReady();
         }
     }
 
+    /**
+     * Adds a sink to be given the adapter's events as well as the primary sink, on the thread
+     * that adds them to the primary sink.  See {@link #addEventSink(EventSink, Executor)}.
+     *
+     * @param sink The event sink.
+     */
+    public void addEventSink(@NonNull EventSink sink) {
+        addEventSink(sink, null);
+    }
+
+    /**
+     * Adds a sink to be given the adapter's events as well as the primary sink, Airship analytics
+     * by default.  Events are only created while the primary sink is ready, and are given to the
+     * sink only if it is ready too; a sink that is slow or throws does not hold up the primary
+     * sink or the other sinks when it has its own executor.  Use a serial executor to receive
+     * events in order.  To send events somewhere in place of Airship analytics, use
+     * {@link #setEventSink(EventSink)}.
+     *
+     * @param sink The event sink.
+     * @param executor The executor to add events to the sink on, or {@code null} to add them on
+     *                 the thread that adds them to the primary sink.
+     */
+    public void addEventSink(@NonNull EventSink sink, @Nullable Executor executor) {
+        eventSink.add(sink, executor);
+    }
+
+    /**
+     * Removes a sink added with {@link #addEventSink(EventSink, Executor)}.
+     *
+     * @param sink The event sink.
+     */
+    public void removeEventSink(@NonNull EventSink sink) {
+        eventSink.remove(sink);
+    }
+
+    /**
+     * Enables asynchronous dispatch of Gimbal visits.  Rather than creating Airship events and
+     * notifying listeners on Gimbal's callback thread, visits are handed to a bounded queue that
+     * is drained by a dedicated worker thread.
+     *
+     * @param capacity The maximum number of queued visits.
+     * @param overflowPolicy How to handle a visit when the queue is full.
+     */
+    public void enableAsyncDispatch(int capacity, @NonNull OverflowPolicy overflowPolicy) {
+        enableAsyncDispatch(capacity, overflowPolicy, null);
+    }
+
+    /**
+     * Enables asynchronous dispatch of Gimbal visits.  Rather than creating Airship events and
+     * notifying listeners on Gimbal's callback thread, visits are handed to a bounded queue that
+     * is drained by tasks run on the given executor.  Visits are still processed one at a time,
+     * in the order they were received -- including visits still queued by a previous call, which
+     * are processed first.
+     *
+     * @param capacity The maximum number of queued visits.
+     * @param overflowPolicy How to handle a visit when the queue is full.
+     * @param executor The executor to drain the queue on, or {@code null} to use a dedicated
+     *                 worker thread.
+     */
+    public void enableAsyncDispatch(int capacity,
+                                    @NonNull OverflowPolicy overflowPolicy,
+                                    @Nullable Executor executor) {
+        synchronized (this) {
+            VisitDispatcher oldDispatcher = dispatcher != null ? dispatcher : retiredDispatcher;
+            VisitDispatcher newDispatcher = new VisitDispatcher(capacity, overflowPolicy, executor,
+                    this::processVisit, metrics.dispatchQueueWait, oldDispatcher);
+            newDispatcher.start();
+            dispatcher = newDispatcher;
+            retiredDispatcher = null;
+            if (oldDispatcher != null) {
+                oldDispatcher.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Disables asynchronous dispatch -- visits are once again processed on Gimbal's callback
+     * thread.  Visits that are already queued are still processed, before any visit received
+     * after this call.
+     */
+    public void disableAsyncDispatch() {
+        synchronized (this) {
+            VisitDispatcher oldDispatcher = dispatcher;
+            dispatcher = null;
+            if (oldDispatcher != null) {
+                retiredDispatcher = oldDispatcher;
+                oldDispatcher.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Sets how visits that flap at the edge of a place are suppressed.  Each place's entry is held
+     * for {@code minDwellMillis} and discarded together with its exit if the place is left sooner.
+     * Each place's exit is held for {@code reEntryGraceMillis} and discarded together with the
+     * re-entry if the place is entered again sooner.  Both default to {@code 0}, which disables
+     * suppression.
+     * <p>
+     * Note that when a re-entry is suppressed, the eventual exit event belongs to the re-entered
+     * Gimbal visit, so it has a different visit ID than the original entry event.
+     *
+     * @param minDwellMillis The minimum time a place must be occupied for its visit to be tracked.
+     * @param reEntryGraceMillis The time a place may be left and re-entered without ending the
+     *                           visit.
+     */
+    public void setVisitDebounce(long minDwellMillis, long reEntryGraceMillis) {
+        VisitDebouncer oldDebouncer;
+        synchronized (this) {
+            oldDebouncer = debouncer;
+            debouncer = minDwellMillis <= 0 && reEntryGraceMillis <= 0 ? null
+                    : new VisitDebouncer(minDwellMillis, reEntryGraceMillis,
+                            AdapterExecutors.scheduler(), this::dispatchVisit,
+                            metrics.visitsDebounced);
+        }
+        if (oldDebouncer != null) {
+            oldDebouncer.flush();
+        }
+    }
+
+    /**
+     * Discards the cached CustomEvent properties of a place, so that its attributes are read
+     * again from Gimbal on its next visit.  Attribute changes are normally detected without this.
+     *
+     * @param placeIdentifier The Gimbal place identifier.
+     */
+    public void invalidatePlaceAttributes(@NonNull String placeIdentifier) {
+        placePropertiesCache.invalidate(placeIdentifier);
+    }
+
+    /**
+     * Discards the cached CustomEvent properties of all places.
+     */
+    public void invalidateAllPlaceAttributes() {
+        placePropertiesCache.invalidateAll();
+    }
+
+    /**
+     * @return The number of visits whose place attributes were found in the cache.
+     */
+    public long getPlaceAttributesCacheHitCount() {
+        return placePropertiesCache.getHitCount();
+    }
+
+    /**
+     * @return The number of visits whose place attributes had to be read from Gimbal.
+     */
+    public long getPlaceAttributesCacheMissCount() {
+        return placePropertiesCache.getMissCount();
+    }
+
     private void startAdapter(@NonNull String gimbalApiKey) {
         if (isAdapterStarted) {
-            Log.w(TAG, "Calling start when adapter is already started has no effect");
+            AdapterLog.w("Calling start when adapter is already started has no effect");
             return;
         } else if (!isAirshipReady()) {
-            Log.w(TAG, "Unable to start adapter when Airship is not taking off or flying");
+            AdapterLog.w("Unable to start adapter when Airship is not taking off or flying");
             return;
         }
 
         try {
-            setStartedPreference(true);
-            setApiKeyPreference(gimbalApiKey);
+            configStore.setStarted(true, gimbalApiKey);
             Gimbal.setApiKey((Application)context.getApplicationContext(), gimbalApiKey);
             Gimbal.start();
             isAdapterStarted = Gimbal.isStarted();
             PlaceManager.getInstance().addListener(placeEventListener);
+            reconcileOpenVisits();
             UAirship.shared(this::onAirshipReady);
 
-            Log.i(TAG, String.format("Gimbal Adapter started. Gimbal.isStarted: %b, Gimbal application instance identifier: %s",
+            AdapterLog.i(String.format("Gimbal Adapter started. Gimbal.isStarted: %b, Gimbal application instance identifier: %s",
                     Gimbal.isStarted(), Gimbal.getApplicationInstanceIdentifier()));
         } catch (Exception e) {
             isAdapterStarted = false;
-            Log.e(TAG,"Failed to start Gimbal.", e);
+            AdapterLog.e("Failed to start Gimbal.", e);
         }
     }
 
-    @Nullable
-    private String getApiKeyPreference() {
-        return preferences.getString(API_KEY_PREFERENCE, null);
-    }
-
-    private void setApiKeyPreference(@NonNull String gimbalApiKey) {
-        preferences.edit()
-                .putString(API_KEY_PREFERENCE, gimbalApiKey)
-                .apply();
+    /**
+     * Recomputes the event routes from the adapter config.
+     */
+    private synchronized int updateEventRoutes() {
+        AdapterConfig config = getConfig();
+        int routes = 0;
+        if (config.isTrackRegionEvents()) {
+            routes |= ROUTE_REGION_ENTER | ROUTE_REGION_EXIT;
+        }
+        if (config.isTrackCustomEntryEvents()) {
+            routes |= ROUTE_CUSTOM_ENTER;
+        }
+        if (config.isTrackCustomExitEvents()) {
+            routes |= ROUTE_CUSTOM_EXIT;
+        }
+        if (dwellMilestones.hasMilestones()) {
+            routes |= ROUTE_DWELL;
+        }
+        eventRoutes = routes;
+        return routes;
     }
 
-    private boolean getStartedPreference() {
-        return preferences.getBoolean(STARTED_PREFERENCE, false);
+    private int getEventRoutes() {
+        int routes = eventRoutes;
+        return routes < 0 ? updateEventRoutes() : routes;
     }
 
-    private void setStartedPreference(boolean started) {
-        preferences.edit()
-                .putBoolean(STARTED_PREFERENCE, started)
-                .apply();
+    private static int routesFor(int boundaryEvent) {
+        return boundaryEvent == RegionEvent.BOUNDARY_EVENT_ENTER ? ROUTES_ENTER : ROUTES_EXIT;
     }
 
-    private synchronized void onAirshipReady(@NonNull UAirship airship) {
+    private void onAirshipReady(@NonNull UAirship airship) {
         if (!isAdapterStarted || !isAirshipReady()) {
-            Log.w(TAG, "OnReadyCallback invoked when adapter or Airship is not actually ready");
+            AdapterLog.w("OnReadyCallback invoked when adapter or Airship is not actually ready");
             return;
         }
 
-        updateDeviceAttributes(airship);
+        deviceAttributeSync.start(airship);
 
         synchronized (airshipChannelListener) {
             airshipChannelListener.set(new AirshipChannelListener() {
                 @Override
                 public void onChannelCreated(@NonNull String channelId) {
-                    updateDeviceAttributes(airship);
+                    deviceAttributeSync.requestSync();
                 }
             });
             airship.getChannel().addChannelListener(airshipChannelListener.get());
         }
 
-        processCachedVisits();
+        // A primary sink other than Airship's replays the cache once it is ready itself
+        if (eventSink.isReady()) {
+            intake.markReady();
+        }
     }
 
     /**
-     * Updates Gimbal and Urban Airship device attributes.
+     * Replays visits journaled while Airship was not ready, including those journaled by a
+     * previous app process, once Airship is ready.  The replay runs on the adapter's scheduler
+     * after this returns, in one chunk.  Listeners are only notified of visits whose
+     * {@link Visit} is still retained in memory.
      */
-    private void updateDeviceAttributes(@NonNull UAirship airship) {
-        DeviceAttributesManager deviceAttributesManager = DeviceAttributesManager.getInstance();
-        if (deviceAttributesManager == null) {
+    @VisibleForTesting
+    void processCachedVisits() {
+        intake.requestReplay();
+    }
+
+    /**
+     * Replays a chunk of cached visits.  Only called by the intake's consumer on the scheduler,
+     * or directly by benchmarks while nothing else drains the intake.
+     *
+     * @return {@code true} if cached visits remain.
+     */
+    @VisibleForTesting
+    boolean replayCachedVisits(int maxVisits) {
+        long start = System.nanoTime();
+        int count = cachedVisits.drain(record -> {
+            trace.record(TraceRecorder.VISIT_REPLAYED, record.boundaryEvent,
+                    record.visitId, record.placeId, 0);
+            Visit visit = retainedVisits.isEmpty() ? null : retainedVisits.remove(retainedVisitKey(record));
+            // The journal has already moved past the record, so a failure only loses this visit
+            try {
+                if (!isDuplicate(record)) {
+                    createAirshipEvent(record, visit);
+                }
+            } catch (RuntimeException e) {
+                AdapterLog.e("Failed to replay visit " + record.visitId, e);
+            }
+        }, maxVisits);
+        boolean isComplete = cachedVisits.getPendingBytes() == 0;
+
+        replayedVisitCount += count;
+        int replayedCount = replayedVisitCount;
+        if (isComplete) {
+            // Visits of evicted records are never replayed
+            retainedVisits.clear();
+            replayedVisitCount = 0;
+        }
+        if (count > 0) {
+            metrics.visitsReplayed.add(count);
+            metrics.replayDuration.recordSince(start);
+            AdapterLog.i("Replayed " + count + " cached visits");
+        }
+
+        ReplayListener listener = replayListener;
+        if (listener != null && (count > 0 || !isComplete)) {
+            // Records that have expired by the time they are reached are not replayed
+            int estimatedRemaining = isComplete ? 0 : cachedVisits.getPendingCount();
+            listener.onReplayProgress(replayedCount, estimatedRemaining, isComplete);
+        }
+        return !isComplete;
+    }
+
+    private void onVisit(@NonNull Visit visit, int boundaryEvent) {
+        metrics.visitsReceived.increment();
+        deviceAttributeSync.onVisit();
+        Place place = visit.getPlace();
+        if (place == null) {
+            // Events are built from the place, so there is nothing to track
+            AdapterLog.w("Ignoring visit " + visit.getVisitID() + " without a place");
             return;
         }
+        trace.record(TraceRecorder.VISIT_RECEIVED, boundaryEvent,
+                visit.getVisitID(), place.getIdentifier(), 0);
 
-        String namedUserId = airship.getContact().getNamedUserId();
-        deviceAttributesManager.setDeviceAttribute(GIMBAL_UA_NAMED_USER_ID, namedUserId);
+        if (boundaryEvent == RegionEvent.BOUNDARY_EVENT_ENTER) {
+            openVisits.open(place.getIdentifier(), place.getName(), visit.getVisitID(),
+                    visit.getArrivalTimeInMillis());
+        } else {
+            openVisits.close(place.getIdentifier(), visit.getVisitID());
+        }
 
-        String channelId = airship.getChannel().getId();
-        deviceAttributesManager.setDeviceAttribute(GIMBAL_UA_CHANNEL_ID, channelId);
+        PlaceFilter filter = placeFilter;
+        if (filter != null && !filter.accepts(visit)) {
+            metrics.visitsFiltered.increment();
+            return;
+        }
 
-        String gimbalInstanceId = Gimbal.getApplicationInstanceIdentifier();
-        if (gimbalInstanceId != null) {
-            airship.getAnalytics().editAssociatedIdentifiers()
-                    .addIdentifier(UA_GIMBAL_APPLICATION_INSTANCE_ID, gimbalInstanceId).apply();
+        // Until cached visits are replayed, visits are cached whatever the routes, as tracking
+        // may be turned on or listeners added before the cache is replayed
+        int routes = intake.getState() == VisitIntake.READY
+                ? getEventRoutes() | listenerTable.untrackedEventTypes
+                : ROUTES_ENTER | ROUTES_EXIT;
+        VisitDebouncer debouncer = this.debouncer;
+        if (debouncer == null) {
+            if ((routes & routesFor(boundaryEvent)) != 0) {
+                dispatchVisit(visit, boundaryEvent);
+            }
+        } else if (routes != 0) {
+            // The debouncer pairs entries with exits, so it needs both whenever either is needed
+            debouncer.accept(visit, boundaryEvent);
         }
     }
 
-    private void processCachedVisits() {
-        synchronized (cachedVisits) {
-            for (CachedVisit cachedVisit : cachedVisits) {
-                createAirshipEvent(cachedVisit.visit, cachedVisit.regionEvent);
+    /**
+     * Replaces the open visits with those Gimbal currently reports, as visits may have started or
+     * ended while the adapter was not listening.
+     */
+    private void reconcileOpenVisits() {
+        try {
+            List<Visit> currentVisits = PlaceManager.getInstance().currentVisits();
+            openVisits.reconcile(currentVisits == null ? Collections.<Visit>emptyList() : currentVisits);
+        } catch (Exception e) {
+            AdapterLog.e("Failed to read Gimbal's current visits", e);
+        }
+    }
+
+    private void dispatchVisit(@NonNull Visit visit, int boundaryEvent) {
+        VisitDispatcher dispatcher;
+        while ((dispatcher = this.dispatcher) != null) {
+            // A dispatcher only refuses visits once it has been replaced, so retry its replacement
+            if (dispatcher.dispatch(visit, boundaryEvent)) {
+                return;
             }
-            cachedVisits.clear();
         }
+
+        VisitDispatcher retired = retiredDispatcher;
+        if (retired != null) {
+            retired.awaitDrained();
+        }
+        processVisit(visit, boundaryEvent);
+    }
+
+    private void processVisit(@NonNull Visit visit, int boundaryEvent) {
+        intake.offer(VisitRecord.from(visit, boundaryEvent, placePropertiesCache), visit);
+    }
+
+    private boolean isDuplicate(@NonNull VisitRecord record) {
+        if (!dedupIndex.isDuplicate(record.visitId, record.boundaryEvent, System.currentTimeMillis())) {
+            return false;
+        }
+        metrics.duplicateVisitsSuppressed.increment();
+        if (AdapterLog.isLoggable(Log.DEBUG)) {
+            AdapterLog.d("Dropping repeated visit " + record.visitId);
+        }
+        return true;
+    }
+
+    private void cacheVisit(@NonNull VisitRecord record, @Nullable Visit visit) {
+        boolean isCached = cachedVisits.append(record);
+        trace.record(TraceRecorder.VISIT_CACHED, record.boundaryEvent,
+                record.visitId, record.placeId, isCached ? 1 : 0);
+        if (isCached) {
+            // Only listeners read the Gimbal visit, the events are rebuilt from the record
+            if (visit != null && (listenerTable.listenedEventTypes & routesFor(record.boundaryEvent)) != 0) {
+                retainedVisits.put(retainedVisitKey(record), visit);
+            }
+            metrics.visitsCached.increment();
+            metrics.updateCachedVisitsHighWaterMark(cachedVisits.getPendingCount());
+        }
+    }
+
+    @NonNull
+    private static String retainedVisitKey(@NonNull VisitRecord record) {
+        return record.boundaryEvent + ":" + record.visitId;
     }
 
     /**
      * Listener for Gimbal place events. Creates an analytics event
      * corresponding to boundary event type, and Event type preference.
      */
-    private final PlaceEventListener placeEventListener = new PlaceEventListener() {
+    @VisibleForTesting
+    final PlaceEventListener placeEventListener = new PlaceEventListener() {
         @Override
         public void onVisitStart(@NonNull final Visit visit) {
-            Log.i(TAG, "Entered place: " + visit.getPlace().getName() + " date: " +
-                    DateUtils.createIso8601TimeStamp(visit.getArrivalTimeInMillis()));
-
-            synchronized (cachedVisits) {
-                if (isAirshipReady()) {
-                    createAirshipEvent(visit, RegionEvent.BOUNDARY_EVENT_ENTER);
-                } else {
-                    cachedVisits.add(new CachedVisit(visit, RegionEvent.BOUNDARY_EVENT_ENTER));
-                }
+            if (AdapterLog.isLoggable(Log.DEBUG)) {
+                AdapterLog.d("Entered place: " + visit.getPlace().getName() + " date: " +
+                        DateUtils.createIso8601TimeStamp(visit.getArrivalTimeInMillis()));
             }
+
+            onVisit(visit, RegionEvent.BOUNDARY_EVENT_ENTER);
         }
 
         @Override
         public void onVisitEnd(@NonNull final Visit visit) {
-            Log.i(TAG, "Exited place: " + visit.getPlace().getName() + " date: " +
-                    DateUtils.createIso8601TimeStamp(visit.getArrivalTimeInMillis()) + "Exit date:" +
-                    DateUtils.createIso8601TimeStamp(visit.getDepartureTimeInMillis()));
-
-            synchronized (cachedVisits) {
-                if (isAirshipReady()) {
-                    createAirshipEvent(visit, RegionEvent.BOUNDARY_EVENT_EXIT);
-                } else {
-                    cachedVisits.add(new CachedVisit(visit, RegionEvent.BOUNDARY_EVENT_EXIT));
-                }
+            if (AdapterLog.isLoggable(Log.DEBUG)) {
+                AdapterLog.d("Exited place: " + visit.getPlace().getName() + " date: " +
+                        DateUtils.createIso8601TimeStamp(visit.getArrivalTimeInMillis()) + "Exit date:" +
+                        DateUtils.createIso8601TimeStamp(visit.getDepartureTimeInMillis()));
             }
+
+            onVisit(visit, RegionEvent.BOUNDARY_EVENT_EXIT);
         }
     };
 
 
-    private void createAirshipEvent(Visit visit, int regionEvent) {
-        if (!isAirshipReady()) {
-            Log.w(TAG, "Airship is not ready");
+    @VisibleForTesting
+    void createAirshipEvent(@NonNull VisitRecord record, @Nullable Visit visit) {
+        int boundaryRoutes = routesFor(record.boundaryEvent);
+        int trackedRoutes = getEventRoutes() & boundaryRoutes;
+        ListenerTable table = listenerTable;
+        // Listeners can only be notified of visits that are still in memory
+        int routes = visit == null
+                ? trackedRoutes
+                : trackedRoutes | (table.untrackedEventTypes & boundaryRoutes);
+        if (routes == 0) {
             return;
         }
-        UAirship airship = UAirship.shared();
-        synchronized (listeners) {
-            if (regionEvent == RegionEvent.BOUNDARY_EVENT_ENTER) {
-                if (preferences.getBoolean(TRACK_REGION_EVENT_PREFERENCE_KEY, TRACK_REGION_EVENT_DEFAULT)) {
-                    RegionEvent event = createRegionEvent(visit, RegionEvent.BOUNDARY_EVENT_ENTER);
-
-                    airship.getAnalytics().addEvent(event);
-
-                    for (Listener listener : listeners) {
-                        listener.onRegionEntered(event, visit);
-                    }
-                }
-
-                if (preferences.getBoolean(TRACK_CUSTOM_ENTRY_PREFERENCE_KEY, TRACK_CUSTOM_ENTRY_DEFAULT)) {
-                    CustomEvent event = createCustomEvent(CUSTOM_ENTRY_EVENT_NAME, visit, RegionEvent.BOUNDARY_EVENT_ENTER);
+        long start = System.nanoTime();
+        boolean isEnter = record.boundaryEvent == RegionEvent.BOUNDARY_EVENT_ENTER;
+
+        if (visit != null && (routes & ROUTES_VISIT) != 0) {
+            for (VisitListener listener : table.visitListeners()) {
+                long listenerStart = System.nanoTime();
+                listener.onVisit(visit, record.boundaryEvent);
+                metrics.listenerCallbackTime(listener).recordSince(listenerStart);
+            }
+        }
 
-                    airship.getAnalytics().addEvent(event);
+        int regionRoute = isEnter ? ROUTE_REGION_ENTER : ROUTE_REGION_EXIT;
+        if ((routes & regionRoute) != 0) {
+            RegionEvent event = createRegionEvent(record, record.boundaryEvent);
+            boolean isTracked = (trackedRoutes & regionRoute) != 0;
+            if (isTracked) {
+                addEvent(event, record, false);
+            }
+            if (visit != null) {
+                notifyListeners(table.subscriptions(regionRoute), regionRoute, isTracked, event, visit, record);
+            }
+        }
 
-                    for (Listener listener : listeners) {
-                        listener.onCustomRegionEntry(event, visit);
-                    }
-                }
+        int customRoute = isEnter ? ROUTE_CUSTOM_ENTER : ROUTE_CUSTOM_EXIT;
+        if ((routes & customRoute) != 0) {
+            CustomEvent event = createCustomEvent(isEnter ? CUSTOM_ENTRY_EVENT_NAME : CUSTOM_EXIT_EVENT_NAME,
+                    record, record.boundaryEvent);
+            boolean isTracked = (trackedRoutes & customRoute) != 0;
+            if (isTracked) {
+                addEvent(event, record, true);
             }
+            if (visit != null) {
+                notifyListeners(table.subscriptions(customRoute), customRoute, isTracked, event, visit, record);
+            }
+        }
 
-            if (regionEvent == RegionEvent.BOUNDARY_EVENT_EXIT) {
-                if (preferences.getBoolean(TRACK_REGION_EVENT_PREFERENCE_KEY, TRACK_REGION_EVENT_DEFAULT)) {
-                    RegionEvent event = createRegionEvent(visit, RegionEvent.BOUNDARY_EVENT_EXIT);
+        if ((routes & ROUTE_DWELL) != 0) {
+            if (isEnter) {
+                dwellMilestones.open(record, System.currentTimeMillis());
+            } else {
+                dwellMilestones.close(record.visitId);
+            }
+        }
 
-                    airship.getAnalytics().addEvent(event);
+        if (isEnter) {
+            metrics.enterEventLatency.recordSince(start);
+        } else {
+            metrics.exitEventLatency.recordSince(start);
+        }
+    }
 
-                    for (Listener listener : listeners) {
-                        listener.onRegionExited(event, visit);
-                    }
-                }
+    private void notifyListeners(@NonNull ListenerTable.Subscription[] subscriptions,
+                                 int route,
+                                 boolean isTracked,
+                                 @NonNull Event event,
+                                 @NonNull Visit visit,
+                                 @NonNull VisitRecord record) {
+        int count = 0;
+        for (ListenerTable.Subscription subscription : subscriptions) {
+            if (subscription.isTrackedOnly && !isTracked) {
+                continue;
+            }
+            Listener listener = subscription.listener;
+            long listenerStart = System.nanoTime();
+            switch (route) {
+                case ROUTE_REGION_ENTER:
+                    listener.onRegionEntered((RegionEvent) event, visit);
+                    break;
+                case ROUTE_REGION_EXIT:
+                    listener.onRegionExited((RegionEvent) event, visit);
+                    break;
+                case ROUTE_CUSTOM_ENTER:
+                    listener.onCustomRegionEntry((CustomEvent) event, visit);
+                    break;
+                case ROUTE_CUSTOM_EXIT:
+                    listener.onCustomRegionExit((CustomEvent) event, visit);
+                    break;
+            }
+            metrics.listenerCallbackTime(listener).recordSince(listenerStart);
+            count++;
+        }
+        trace.record(TraceRecorder.LISTENER_INVOKED, record.boundaryEvent,
+                record.visitId, record.placeId, count);
+    }
 
-                if (preferences.getBoolean(TRACK_CUSTOM_EXIT_PREFERENCE_KEY, TRACK_CUSTOM_EXIT_DEFAULT)) {
-                    CustomEvent event = createCustomEvent(CUSTOM_EXIT_EVENT_NAME, visit, RegionEvent.BOUNDARY_EVENT_EXIT);
+    private void addEvent(@NonNull Event event, @NonNull VisitRecord record, boolean isCustom) {
+        addEvent(event, record, record.boundaryEvent, isCustom);
+    }
 
-                    airship.getAnalytics().addEvent(event);
+    private void addEvent(@NonNull Event event, @NonNull VisitRecord record, int boundaryEvent, boolean isCustom) {
+        trace.record(TraceRecorder.EVENT_EMITTED, boundaryEvent,
+                record.visitId, record.placeId, isCustom ? 1 : 0);
+        eventSink.addEvent(event);
+    }
 
-                    for (Listener listener : listeners) {
-                        listener.onCustomRegionExit(event, visit);
-                    }
-                }
-            }
+    private void onDwellMilestone(@NonNull VisitRecord entry, long milestoneMillis) {
+        if (!eventSink.isReady()) {
+            return;
         }
+        CustomEvent event = createCustomEventBuilder(CUSTOM_DWELL_EVENT_NAME, entry, RegionEvent.BOUNDARY_EVENT_ENTER)
+                .addProperty("dwellTimeInSeconds", milestoneMillis / 1000)
+                .build();
+        // Traced without a boundary, as the milestone is neither an entry nor an exit
+        addEvent(event, entry, 0, true);
     }
 
     private boolean isAirshipReady() {
         return UAirship.isFlying() || UAirship.isTakingOff();
     }
 
-    private RegionEvent createRegionEvent(Visit visit, int boundaryEvent) {
+    @VisibleForTesting
+    static RegionEvent createRegionEvent(VisitRecord record, int boundaryEvent) {
         return RegionEvent.newBuilder()
                 .setBoundaryEvent(boundaryEvent)
                 .setSource(SOURCE)
-                .setRegionId(visit.getPlace().getIdentifier())
+                .setRegionId(record.placeId)
                 .build();
     }
 
-    private CustomEvent createCustomEvent(final String eventName, final Visit visit, final int boundaryEvent) {
+    @VisibleForTesting
+    static CustomEvent createCustomEvent(final String eventName, final VisitRecord record, final int boundaryEvent) {
         if (boundaryEvent == RegionEvent.BOUNDARY_EVENT_ENTER) {
-            return createCustomEventBuilder(eventName, visit, boundaryEvent)
+            return createCustomEventBuilder(eventName, record, boundaryEvent)
                     .build();
         } else {
-            return createCustomEventBuilder(eventName, visit, boundaryEvent)
-                    .addProperty("dwellTimeInSeconds", visit.getDwellTimeInMillis() / 1000)
+            return createCustomEventBuilder(eventName, record, boundaryEvent)
+                    .addProperty("dwellTimeInSeconds", record.dwellTimeInMillis / 1000)
                     .build();
         }
     }
 
-    private CustomEvent.Builder createCustomEventBuilder(String eventName, Visit visit, final int boundaryEvent) {
-        Attributes placeAttributes = visit.getPlace().getAttributes();
-
+    private static CustomEvent.Builder createCustomEventBuilder(String eventName, VisitRecord record, final int boundaryEvent) {
+        PlaceProperties properties = record.placeProperties;
         CustomEvent.Builder builder = CustomEvent.newBuilder(eventName);
-        if (placeAttributes != null) {
-            for (String key : placeAttributes.getAllKeys()) {
-                builder.addProperty("GMBL_PA_" + key, placeAttributes.getValue(key));
-            }
+        for (int i = 0; i < properties.propertyNames.length; i++) {
+            builder.addProperty(properties.propertyNames[i], properties.propertyValues[i]);
         }
 
         return builder
-                .addProperty("visitID", visit.getVisitID())
-                .addProperty("placeIdentifier", visit.getPlace().getIdentifier())
-                .addProperty("placeName", visit.getPlace().getName())
+                .addProperty("visitID", record.visitId)
+                .addProperty("placeIdentifier", record.placeId)
+                .addProperty("placeName", record.placeName)
                 .addProperty("source", SOURCE)
                 .addProperty("boundaryEvent", boundaryEvent);
     }
-
-    private static class CachedVisit {
-        Visit visit;
-        int regionEvent;
-
-        CachedVisit(Visit visit, int event) {
-            this.visit = visit;
-            this.regionEvent = event;
-        }
-    }
 }
@@ -1,6 +1,9 @@
 package com.gimbal.airship;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
 
 import androidx.annotation.NonNull;
 import androidx.startup.Initializer;
@@ -11,14 +14,34 @@ import java.util.Collections;
 import java.util.List;
 
 public class AirshipAdapterInitializer implements Initializer<AirshipAdapter> {
+   /**
+    * Application meta-data flag that moves the adapter's restore off the main thread.
+    */
+   static final String RESTORE_IN_BACKGROUND_KEY = "com.gimbal.airship.RESTORE_IN_BACKGROUND";
+
    @NonNull
    @Override
    public AirshipAdapter create(@NonNull Context context) {
       AirshipAdapter adapter = AirshipAdapter.shared(context);
-      adapter.restore();
+      if (isRestoreInBackground(context)) {
+         adapter.restoreInBackground();
+      } else {
+         adapter.restore();
+      }
       return adapter;
    }
 
+   private static boolean isRestoreInBackground(@NonNull Context context) {
+      try {
+         ApplicationInfo info = context.getPackageManager()
+                 .getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+         Bundle metaData = info.metaData;
+         return metaData != null && metaData.getBoolean(RESTORE_IN_BACKGROUND_KEY, false);
+      } catch (PackageManager.NameNotFoundException e) {
+         return false;
+      }
+   }
+
    @NonNull
    @Override
    public List<Class<? extends Initializer<?>>> dependencies() {
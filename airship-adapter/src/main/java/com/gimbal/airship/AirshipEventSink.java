@@ -0,0 +1,27 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import com.urbanairship.UAirship;
+import com.urbanairship.analytics.Event;
+
+/**
+ * Adds events to Airship analytics.  This is the adapter's default primary sink, which decides
+ * when visits are cached, unless replaced with {@link AirshipAdapter#setEventSink(EventSink)}.
+ */
+final class AirshipEventSink implements EventSink {
+
+    @Override
+    public boolean isReady() {
+        return UAirship.isFlying() || UAirship.isTakingOff();
+    }
+
+    @Override
+    public void addEvent(@NonNull Event event) {
+        UAirship.shared().getAnalytics().addEvent(event);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The adapter's persisted state -- whether it was started, the Gimbal API key and the
+ * {@link AdapterConfig} -- kept in one small binary file.
+ * <p>
+ * The file is loaded on the adapter's I/O thread as soon as the store is created; {@link #get()}
+ * waits for the load only if it has not yet finished.  Updates take effect in memory at once and
+ * are group-committed, so a burst of updates -- e.g. {@code start()} followed by
+ * {@code configure()} -- costs a single write.  Each write goes to a temporary file which is
+ * synced and then renamed over the store, so the file on disk is always complete.
+ * <p>
+ * When no store file exists yet, the state is migrated from the adapter's SharedPreferences.
+ * <p>
+ * File layout: {@code magic}, {@code version}, a flags byte, the API key as a short-length UTF-8
+ * string ({@code -1} length if there is none) and a CRC32 of everything before it.
+ */
+final class ConfigStore {
+    static final String FILE_NAME = "com.gimbal.airship.config";
+
+    private static final int MAGIC = 0x474D4243; // "GMBC"
+    private static final int VERSION = 1;
+    private static final int MAX_FILE_SIZE = 1024;
+    private static final long GROUP_COMMIT_DELAY_MS = 200;
+
+    private static final int FLAG_STARTED = 1;
+    private static final int FLAG_TRACK_REGION_EVENTS = 1 << 1;
+    private static final int FLAG_TRACK_CUSTOM_ENTRY_EVENTS = 1 << 2;
+    private static final int FLAG_TRACK_CUSTOM_EXIT_EVENTS = 1 << 3;
+
+    // Legacy SharedPreferences, migrated on first load
+    private static final String PREFERENCE_NAME = "com.urbanairship.gimbal.preferences";
+    private static final String API_KEY_PREFERENCE = "com.urbanairship.gimbal.api_key";
+    private static final String TRACK_CUSTOM_ENTRY_PREFERENCE_KEY = "com.gimbal.track_custom_entry";
+    private static final String TRACK_CUSTOM_EXIT_PREFERENCE_KEY = "com.gimbal.track_custom_exit";
+    private static final String TRACK_REGION_EVENT_PREFERENCE_KEY = "com.gimbal.track_region_event";
+    private static final String STARTED_PREFERENCE = "com.urbanairship.gimbal.is_started";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * An immutable snapshot of the stored state.
+     */
+    static final class State {
+        static final State DEFAULT = new State(false, null, AdapterConfig.DEFAULT);
+
+        final boolean isStarted;
+        @Nullable final String apiKey;
+        @NonNull final AdapterConfig config;
+
+        State(boolean isStarted, @Nullable String apiKey, @NonNull AdapterConfig config) {
+            this.isStarted = isStarted;
+            this.apiKey = apiKey;
+            this.config = config;
+        }
+    }
+
+    private final Context context;
+    private final File file;
+    private final ScheduledExecutorService scheduler;
+    private final FutureTask<State> load;
+
+    @Nullable private State state;
+    private boolean isWriteScheduled = false;
+    private boolean isDirty = false;
+    private long writeCount = 0;
+
+    /**
+     * @param context Context used to read the legacy SharedPreferences.
+     * @param file The store file.
+     * @param scheduler Executor to load and write the store on.
+     */
+    ConfigStore(@NonNull Context context, @NonNull File file, @NonNull ScheduledExecutorService scheduler) {
+        this.context = context;
+        this.file = file;
+        this.scheduler = scheduler;
+        this.load = new FutureTask<>(this::load);
+        scheduler.execute(load);
+    }
+
+    /**
+     * @return The current state, waiting for the store to load if needed.
+     */
+    @NonNull
+    State get() {
+        synchronized (this) {
+            if (state != null) {
+                return state;
+            }
+        }
+
+        State loaded = null;
+        boolean isInterrupted = false;
+        while (loaded == null) {
+            try {
+                loaded = load.get();
+            } catch (ExecutionException e) {
+                AdapterLog.e("Unable to load adapter config", e.getCause());
+                loaded = State.DEFAULT;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (state == null) {
+                state = loaded;
+            }
+            return state;
+        }
+    }
+
+    /**
+     * @param isStarted Whether the adapter is started.
+     * @param apiKey The Gimbal API key, or {@code null} to keep the current key.
+     */
+    void setStarted(boolean isStarted, @Nullable String apiKey) {
+        // Wait for the load outside of the lock, which the load itself may need
+        get();
+        synchronized (this) {
+            update(new State(isStarted, apiKey != null ? apiKey : state.apiKey, state.config));
+        }
+    }
+
+    void setApiKey(@NonNull String apiKey) {
+        get();
+        synchronized (this) {
+            update(new State(state.isStarted, apiKey, state.config));
+        }
+    }
+
+    void setConfig(@NonNull AdapterConfig config) {
+        get();
+        synchronized (this) {
+            update(new State(state.isStarted, state.apiKey, config));
+        }
+    }
+
+    /**
+     * Writes any pending update immediately.
+     */
+    synchronized void flush() {
+        if (isDirty) {
+            write();
+        }
+    }
+
+    /**
+     * @return The number of times the store file has been written.
+     */
+    synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    private void update(@NonNull State newState) {
+        state = newState;
+        isDirty = true;
+        if (!isWriteScheduled) {
+            isWriteScheduled = true;
+            scheduler.schedule(this::flushScheduled, GROUP_COMMIT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void flushScheduled() {
+        isWriteScheduled = false;
+        flush();
+    }
+
+    private void write() {
+        State current = state;
+        isDirty = false;
+
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_FILE_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put((byte) flags(current));
+        if (current.apiKey == null) {
+            buffer.putShort((short) -1);
+        } else {
+            byte[] apiKey = current.apiKey.getBytes(UTF_8);
+            buffer.putShort((short) apiKey.length);
+            buffer.put(apiKey);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array(), 0, buffer.position());
+            out.getFD().sync();
+        } catch (IOException e) {
+            AdapterLog.e("Unable to write adapter config", e);
+            isDirty = true;
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            AdapterLog.e("Unable to replace adapter config file");
+            isDirty = true;
+            return;
+        }
+        writeCount++;
+    }
+
+    @NonNull
+    private State load() {
+        if (!file.exists()) {
+            SharedPreferences preferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+            State migrated = migrate(preferences);
+            synchronized (this) {
+                state = migrated;
+                write();
+                if (!isDirty && migrated != State.DEFAULT) {
+                    preferences.edit().clear().apply();
+                    AdapterLog.i("Migrated adapter preferences to " + FILE_NAME);
+                }
+            }
+            return migrated;
+        }
+
+        byte[] bytes = new byte[(int) Math.min(file.length(), MAX_FILE_SIZE)];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return decode(ByteBuffer.wrap(bytes, 0, read));
+        } catch (IOException | RuntimeException e) {
+            AdapterLog.e("Unable to read adapter config, using defaults", e);
+            return State.DEFAULT;
+        }
+    }
+
+    @NonNull
+    private static State decode(@NonNull ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Unrecognized adapter config file");
+        }
+        int flags = buffer.get();
+        short apiKeyLength = buffer.getShort();
+        String apiKey = null;
+        if (apiKeyLength >= 0) {
+            apiKey = new String(buffer.array(), buffer.position(), apiKeyLength, UTF_8);
+            buffer.position(buffer.position() + apiKeyLength);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        if (buffer.getLong() != crc.getValue()) {
+            throw new IOException("Corrupt adapter config file");
+        }
+
+        AdapterConfig config = AdapterConfig.newBuilder()
+                .setTrackRegionEvents((flags & FLAG_TRACK_REGION_EVENTS) != 0)
+                .setTrackCustomEntryEvents((flags & FLAG_TRACK_CUSTOM_ENTRY_EVENTS) != 0)
+                .setTrackCustomExitEvents((flags & FLAG_TRACK_CUSTOM_EXIT_EVENTS) != 0)
+                .build();
+        return new State((flags & FLAG_STARTED) != 0, apiKey, config);
+    }
+
+    private static int flags(@NonNull State state) {
+        int flags = 0;
+        if (state.isStarted) {
+            flags |= FLAG_STARTED;
+        }
+        if (state.config.isTrackRegionEvents()) {
+            flags |= FLAG_TRACK_REGION_EVENTS;
+        }
+        if (state.config.isTrackCustomEntryEvents()) {
+            flags |= FLAG_TRACK_CUSTOM_ENTRY_EVENTS;
+        }
+        if (state.config.isTrackCustomExitEvents()) {
+            flags |= FLAG_TRACK_CUSTOM_EXIT_EVENTS;
+        }
+        return flags;
+    }
+
+    @NonNull
+    private static State migrate(@NonNull SharedPreferences preferences) {
+        if (preferences.getAll().isEmpty()) {
+            return State.DEFAULT;
+        }
+
+        AdapterConfig config = AdapterConfig.newBuilder()
+                .setTrackRegionEvents(preferences.getBoolean(TRACK_REGION_EVENT_PREFERENCE_KEY, false))
+                .setTrackCustomEntryEvents(preferences.getBoolean(TRACK_CUSTOM_ENTRY_PREFERENCE_KEY, false))
+                .setTrackCustomExitEvents(preferences.getBoolean(TRACK_CUSTOM_EXIT_PREFERENCE_KEY, false))
+                .build();
+        return new State(preferences.getBoolean(STARTED_PREFERENCE, false),
+                preferences.getString(API_KEY_PREFERENCE, null),
+                config);
+    }
+}
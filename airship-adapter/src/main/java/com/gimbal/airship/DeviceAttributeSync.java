@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.gimbal.android.DeviceAttributesManager;
+import com.gimbal.android.Gimbal;
+import com.urbanairship.UAirship;
+import com.urbanairship.app.ActivityMonitor;
+import com.urbanairship.app.ApplicationListener;
+import com.urbanairship.app.GlobalActivityMonitor;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the Airship identifiers in Gimbal's device attributes, and the Gimbal application
+ * instance identifier in Airship's associated identifiers, in sync.
+ * <p>
+ * Sync requests are debounced, so a burst of them results in one sync, which runs on the
+ * scheduler.  Each sync compares the current values with those it last pushed and only writes
+ * the ones that changed.  As Airship does not report named user changes, the named user is
+ * compared with the one last pushed whenever the app comes to the foreground, and on visits, at
+ * most once a second, so that a change made while the app is in use is pushed by the next visit.
+ */
+final class DeviceAttributeSync {
+    // UA to Gimbal Device Attributes
+    private static final String GIMBAL_UA_NAMED_USER_ID = "ua.nameduser.id";
+    private static final String GIMBAL_UA_CHANNEL_ID = "ua.channel.id";
+
+    // Gimbal to UA Device Attributes
+    private static final String UA_GIMBAL_APPLICATION_INSTANCE_ID = "com.urbanairship.gimbal.aii";
+
+    private static final long DEBOUNCE_MS = 500;
+    private static final long VISIT_CHECK_INTERVAL_MS = 1000;
+
+    private final Context context;
+    private final ScheduledExecutorService scheduler;
+    @Nullable private final ActivityMonitor activityMonitor;
+    @Nullable private final DeviceAttributesManager deviceAttributesManager;
+    private final AtomicBoolean isSyncScheduled = new AtomicBoolean(false);
+    @Nullable private volatile UAirship airship;
+
+    // Values last pushed, only written on the scheduler thread
+    private volatile boolean hasPushedNamedUserId = false;
+    @Nullable private volatile String pushedNamedUserId;
+    private boolean hasPushedChannelId = false;
+    @Nullable private String pushedChannelId;
+    @Nullable private String pushedInstanceId;
+    private volatile long lastVisitCheckMillis = 0;
+
+    private final ApplicationListener applicationListener = new ApplicationListener() {
+        @Override
+        public void onForeground(long milliseconds) {
+            checkNamedUser();
+        }
+
+        @Override
+        public void onBackground(long milliseconds) {}
+    };
+
+    DeviceAttributeSync(@NonNull Context context, @NonNull ScheduledExecutorService scheduler) {
+        this(context, scheduler, null, null);
+    }
+
+    /**
+     * Creates a sync that uses the given activity monitor and device attributes manager rather
+     * than Airship's and Gimbal's shared ones.
+     */
+    @VisibleForTesting
+    DeviceAttributeSync(@NonNull Context context,
+                        @NonNull ScheduledExecutorService scheduler,
+                        @Nullable ActivityMonitor activityMonitor,
+                        @Nullable DeviceAttributesManager deviceAttributesManager) {
+        this.context = context;
+        this.scheduler = scheduler;
+        this.activityMonitor = activityMonitor;
+        this.deviceAttributesManager = deviceAttributesManager;
+    }
+
+    /**
+     * Starts syncing with the given Airship instance, and requests a sync.
+     */
+    synchronized void start(@NonNull UAirship airship) {
+        if (this.airship == null) {
+            activityMonitor().addApplicationListener(applicationListener);
+        }
+        this.airship = airship;
+        requestSync();
+    }
+
+    /**
+     * Stops syncing.  A sync that is already scheduled does nothing.
+     */
+    synchronized void stop() {
+        if (airship != null) {
+            activityMonitor().removeApplicationListener(applicationListener);
+        }
+        airship = null;
+    }
+
+    /**
+     * Requests a sync, unless one is already scheduled.
+     */
+    void requestSync() {
+        if (airship != null && isSyncScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::sync, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called for each visit.  Requests a sync if the named user has changed since it was last
+     * pushed, checking at most once a second.
+     */
+    void onVisit() {
+        if (airship == null || isSyncScheduled.get()) {
+            return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis - lastVisitCheckMillis < VISIT_CHECK_INTERVAL_MS) {
+            return;
+        }
+        lastVisitCheckMillis = nowMillis;
+        checkNamedUser();
+    }
+
+    /**
+     * Requests a sync if the named user has changed since it was last pushed.
+     */
+    private void checkNamedUser() {
+        UAirship airship = this.airship;
+        if (airship == null) {
+            return;
+        }
+        try {
+            String namedUserId = airship.getContact().getNamedUserId();
+            if (!hasPushedNamedUserId || !equals(namedUserId, pushedNamedUserId)) {
+                requestSync();
+            }
+        } catch (Exception e) {
+            AdapterLog.w("Failed to check the named user", e);
+        }
+    }
+
+    private void sync() {
+        isSyncScheduled.set(false);
+        UAirship airship = this.airship;
+        DeviceAttributesManager deviceAttributesManager = this.deviceAttributesManager != null
+                ? this.deviceAttributesManager
+                : DeviceAttributesManager.getInstance();
+        if (airship == null || deviceAttributesManager == null) {
+            return;
+        }
+
+        try {
+            String namedUserId = airship.getContact().getNamedUserId();
+            if (!hasPushedNamedUserId || !equals(namedUserId, pushedNamedUserId)) {
+                deviceAttributesManager.setDeviceAttribute(GIMBAL_UA_NAMED_USER_ID, namedUserId);
+                pushedNamedUserId = namedUserId;
+                hasPushedNamedUserId = true;
+            }
+
+            String channelId = airship.getChannel().getId();
+            if (!hasPushedChannelId || !equals(channelId, pushedChannelId)) {
+                deviceAttributesManager.setDeviceAttribute(GIMBAL_UA_CHANNEL_ID, channelId);
+                pushedChannelId = channelId;
+                hasPushedChannelId = true;
+            }
+
+            String gimbalInstanceId = Gimbal.getApplicationInstanceIdentifier();
+            if (gimbalInstanceId != null && !gimbalInstanceId.equals(pushedInstanceId)) {
+                airship.getAnalytics().editAssociatedIdentifiers()
+                        .addIdentifier(UA_GIMBAL_APPLICATION_INSTANCE_ID, gimbalInstanceId).apply();
+                pushedInstanceId = gimbalInstanceId;
+            }
+        } catch (Exception e) {
+            AdapterLog.w("Failed to sync device attributes", e);
+        }
+    }
+
+    @NonNull
+    private ActivityMonitor activityMonitor() {
+        return activityMonitor != null ? activityMonitor : GlobalActivityMonitor.shared(context);
+    }
+
+    private static boolean equals(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports when open visits reach their dwell milestones.
+ * <p>
+ * Each open visit holds one timer, for its next milestone.  All timers share a single scheduled
+ * wakeup, armed for the earliest deadline and re-armed once it fires, so the process is only
+ * woken when a milestone is due, whatever the number of open visits.  Milestones are measured
+ * from the visit's arrival time, so a visit that is opened late only reports the milestones
+ * still ahead of it.
+ */
+final class DwellMilestoneTimer {
+
+    /**
+     * Notified on the scheduler thread when an open visit reaches a milestone.
+     */
+    interface Consumer {
+        void onMilestone(@NonNull VisitRecord entry, long milestoneMillis);
+    }
+
+    static final int MAX_OPEN_VISITS = 1024;
+
+    private static final class Timer implements Comparable<Timer> {
+        final VisitRecord entry;
+        final long[] milestones;
+        int milestoneIndex = -1;
+        long deadline;
+
+        Timer(VisitRecord entry, long[] milestones) {
+            this.entry = entry;
+            this.milestones = milestones;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Consumer consumer;
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final PriorityQueue<Timer> deadlines = new PriorityQueue<>();
+    private long[] milestones = new long[0];
+    @Nullable private ScheduledFuture<?> wakeup;
+    private long wakeupDeadline = Long.MAX_VALUE;
+
+    DwellMilestoneTimer(@NonNull ScheduledExecutorService scheduler, @NonNull Consumer consumer) {
+        this.scheduler = scheduler;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Sets the milestones, in milliseconds of dwell time.  Visits already open keep the
+     * milestones they were opened with.
+     */
+    synchronized void setMilestones(@NonNull long[] milestoneMillis) {
+        long[] sorted = milestoneMillis.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (long milestone : sorted) {
+            if (milestone > 0 && (count == 0 || sorted[count - 1] != milestone)) {
+                sorted[count++] = milestone;
+            }
+        }
+        milestones = Arrays.copyOf(sorted, count);
+    }
+
+    synchronized boolean hasMilestones() {
+        return milestones.length > 0;
+    }
+
+    /**
+     * Starts timing a visit from its entry.
+     */
+    synchronized void open(@NonNull VisitRecord entry, long nowMillis) {
+        if (milestones.length == 0 || timers.containsKey(entry.visitId)) {
+            return;
+        }
+        if (timers.size() >= MAX_OPEN_VISITS) {
+            AdapterLog.w("Too many open visits, not timing dwell milestones for " + entry.visitId);
+            return;
+        }
+
+        Timer timer = new Timer(entry, milestones);
+        if (schedule(timer, nowMillis, now())) {
+            timers.put(entry.visitId, timer);
+            arm();
+        }
+    }
+
+    /**
+     * Stops timing a visit, e.g. on its exit.
+     */
+    synchronized void close(@NonNull String visitId) {
+        Timer timer = timers.remove(visitId);
+        if (timer != null) {
+            deadlines.remove(timer);
+            arm();
+        }
+    }
+
+    /**
+     * Stops timing every open visit.
+     */
+    synchronized void clear() {
+        timers.clear();
+        deadlines.clear();
+        arm();
+    }
+
+    synchronized int getOpenCount() {
+        return timers.size();
+    }
+
+    private void onWakeup() {
+        List<Timer> fired = new ArrayList<>();
+        synchronized (this) {
+            wakeup = null;
+            wakeupDeadline = Long.MAX_VALUE;
+            long now = now();
+            while (!deadlines.isEmpty() && deadlines.peek().deadline <= now) {
+                fired.add(deadlines.poll());
+            }
+        }
+
+        for (Timer timer : fired) {
+            long milestone = timer.milestones[timer.milestoneIndex];
+            try {
+                consumer.onMilestone(timer.entry, milestone);
+            } catch (Exception e) {
+                AdapterLog.e("Failed to report dwell milestone", e);
+            }
+        }
+
+        synchronized (this) {
+            for (Timer timer : fired) {
+                // Skip timers closed while the milestone was being reported
+                if (timers.get(timer.entry.visitId) != timer) {
+                    continue;
+                }
+                long[] milestones = timer.milestones;
+                int index = timer.milestoneIndex;
+                if (index + 1 < milestones.length) {
+                    // Milestones passed during a late wakeup are reported rather than skipped
+                    timer.milestoneIndex = index + 1;
+                    timer.deadline += milestones[index + 1] - milestones[index];
+                    deadlines.add(timer);
+                } else {
+                    timers.remove(timer.entry.visitId);
+                }
+            }
+            arm();
+        }
+    }
+
+    /**
+     * Queues the timer for its first milestone still ahead of {@code nowMillis}.
+     *
+     * @return {@code false} if the visit has no milestones left.
+     */
+    private boolean schedule(@NonNull Timer timer, long nowMillis, long now) {
+        long[] milestones = timer.milestones;
+        long dwellMillis = nowMillis - timer.entry.arrivalTimeInMillis;
+        int index = 0;
+        while (index < milestones.length && milestones[index] <= dwellMillis) {
+            index++;
+        }
+        if (index >= milestones.length) {
+            return false;
+        }
+
+        timer.milestoneIndex = index;
+        timer.deadline = now + milestones[index] - dwellMillis;
+        deadlines.add(timer);
+        return true;
+    }
+
+    /**
+     * Arms the wakeup for the earliest deadline, or cancels it if no timer is pending.
+     */
+    private void arm() {
+        Timer next = deadlines.peek();
+        long deadline = next == null ? Long.MAX_VALUE : next.deadline;
+        if (deadline == wakeupDeadline) {
+            return;
+        }
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+        wakeupDeadline = deadline;
+        if (next != null) {
+            wakeup = scheduler.schedule(this::onWakeup,
+                    Math.max(0, deadline - now()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
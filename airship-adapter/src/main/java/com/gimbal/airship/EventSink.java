@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import com.urbanairship.analytics.Event;
+
+/**
+ * Destination of the Airship events created from Gimbal visits.  The adapter adds its events to
+ * a primary sink -- Airship analytics, unless replaced with
+ * {@link AirshipAdapter#setEventSink(EventSink)} -- and also to any sinks added with
+ * {@link AirshipAdapter#addEventSink(EventSink, java.util.concurrent.Executor)}.
+ */
+public interface EventSink {
+
+    /**
+     * @return {@code true} if events may be added now.  Visits are cached until the primary sink
+     * is ready, while events are not given to added sinks that are not ready.
+     */
+    boolean isReady();
+
+    /**
+     * Adds an event.  Only called while the sink is ready.
+     *
+     * @param event The event.
+     */
+    void addEvent(@NonNull Event event);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.urbanairship.analytics.Event;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Adds each event to a primary sink, which decides readiness and can be replaced, and to any
+ * number of secondary sinks, each called inline or on its own executor.
+ * <p>
+ * Secondary sinks are kept in a copy-on-write array, so adding an event neither locks nor
+ * allocates when there are none.  A secondary sink that is not ready, or that throws, misses the
+ * event without affecting the primary sink or the other sinks.
+ */
+final class FanOutEventSink implements EventSink {
+
+    private static final class Target {
+        final EventSink sink;
+        @Nullable final Executor executor;
+
+        Target(@NonNull EventSink sink, @Nullable Executor executor) {
+            this.sink = sink;
+            this.executor = executor;
+        }
+    }
+
+    private static final Target[] NO_TARGETS = new Target[0];
+
+    private volatile EventSink primary;
+    private volatile Target[] targets = NO_TARGETS;
+
+    FanOutEventSink(@NonNull EventSink primary) {
+        this.primary = primary;
+    }
+
+    /**
+     * Replaces the primary sink.  Events being added meanwhile may go to either sink.
+     */
+    void setPrimary(@NonNull EventSink primary) {
+        this.primary = primary;
+    }
+
+    /**
+     * Adds a secondary sink, replacing its executor if it was already added.
+     */
+    synchronized void add(@NonNull EventSink sink, @Nullable Executor executor) {
+        Target[] current = targets;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].sink == sink) {
+                Target[] updated = current.clone();
+                updated[i] = new Target(sink, executor);
+                targets = updated;
+                return;
+            }
+        }
+        Target[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Target(sink, executor);
+        targets = updated;
+    }
+
+    /**
+     * Removes a secondary sink.  Events already handed to its executor are still added.
+     */
+    synchronized boolean remove(@NonNull EventSink sink) {
+        Target[] current = targets;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].sink == sink) {
+                Target[] updated = new Target[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                targets = updated.length == 0 ? NO_TARGETS : updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isReady() {
+        return primary.isReady();
+    }
+
+    @Override
+    public void addEvent(@NonNull Event event) {
+        primary.addEvent(event);
+        for (Target target : targets) {
+            Executor executor = target.executor;
+            if (executor == null) {
+                deliver(target.sink, event);
+                continue;
+            }
+            try {
+                executor.execute(() -> deliver(target.sink, event));
+            } catch (RejectedExecutionException e) {
+                AdapterLog.w("Event sink executor rejected an event for " + target.sink.getClass().getName());
+            }
+        }
+    }
+
+    private static void deliver(@NonNull EventSink sink, @NonNull Event event) {
+        try {
+            if (sink.isReady()) {
+                sink.addEvent(event);
+            }
+        } catch (Exception e) {
+            AdapterLog.e("Event sink " + sink.getClass().getName() + " failed to add an event", e);
+        }
+    }
+}
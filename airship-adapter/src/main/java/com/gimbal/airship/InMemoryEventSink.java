@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import com.urbanairship.analytics.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event sink that keeps the events it is given in memory, e.g. to check the adapter's events in
+ * tests or to stand in for Airship locally.
+ */
+public final class InMemoryEventSink implements EventSink {
+    private final List<Event> events = new ArrayList<>();
+    private volatile boolean isReady = true;
+
+    /**
+     * Sets whether the sink accepts events.  Defaults to {@code true}.
+     *
+     * @param ready {@code true} to accept events.
+     */
+    public void setReady(boolean ready) {
+        isReady = ready;
+    }
+
+    @Override
+    public boolean isReady() {
+        return isReady;
+    }
+
+    @Override
+    public void addEvent(@NonNull Event event) {
+        synchronized (events) {
+            events.add(event);
+        }
+    }
+
+    /**
+     * @return A copy of the events added, oldest first.
+     */
+    @NonNull
+    public List<Event> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    /**
+     * @return The number of events added.
+     */
+    public int getEventCount() {
+        synchronized (events) {
+            return events.size();
+        }
+    }
+
+    /**
+     * Discards the events added so far.
+     */
+    public void clear() {
+        synchronized (events) {
+            events.clear();
+        }
+    }
+}
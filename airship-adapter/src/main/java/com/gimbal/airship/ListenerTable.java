@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable dispatch table of the adapter's listeners, indexed by event type, so that dispatching
+ * an event neither locks nor filters listeners that have not subscribed to it.  Rebuilt whenever a
+ * listener is added or removed.
+ */
+final class ListenerTable {
+    static final ListenerTable EMPTY = new ListenerTable(
+            Collections.<Subscription>emptyList(), Collections.<AirshipAdapter.VisitListener>emptyList(), 0);
+
+    // Event types occupy the low bits, one table row each
+    private static final int EVENT_TYPE_COUNT = 4;
+
+    /**
+     * A listener's subscription to a set of event types.
+     */
+    static final class Subscription {
+        @NonNull final AirshipAdapter.Listener listener;
+        final int eventTypes;
+        // Notified only of events that are also tracked as Airship events
+        final boolean isTrackedOnly;
+
+        Subscription(@NonNull AirshipAdapter.Listener listener, int eventTypes, boolean isTrackedOnly) {
+            this.listener = listener;
+            this.eventTypes = eventTypes;
+            this.isTrackedOnly = isTrackedOnly;
+        }
+    }
+
+    private final Subscription[][] subscriptionsByType = new Subscription[EVENT_TYPE_COUNT][];
+    private final AirshipAdapter.VisitListener[] visitListeners;
+
+    /**
+     * Event types that at least one listener needs whether or not they are tracked, plus
+     * {@code visitEventTypes} if there are any visit listeners.
+     */
+    final int untrackedEventTypes;
+
+    /**
+     * Event types that at least one listener is notified of, plus {@code visitEventTypes} if
+     * there are any visit listeners.
+     */
+    final int listenedEventTypes;
+
+    /**
+     * @param subscriptions The listener subscriptions, in the order listeners were added.
+     * @param visitListeners The visit listeners, in the order they were added.
+     * @param visitEventTypes The event types that stand for the raw enter and exit visits.
+     */
+    ListenerTable(@NonNull Collection<Subscription> subscriptions,
+                  @NonNull Collection<AirshipAdapter.VisitListener> visitListeners,
+                  int visitEventTypes) {
+        int untracked = 0;
+        int listened = 0;
+        for (int i = 0; i < EVENT_TYPE_COUNT; i++) {
+            int eventType = 1 << i;
+            List<Subscription> row = new ArrayList<>();
+            for (Subscription subscription : subscriptions) {
+                if ((subscription.eventTypes & eventType) != 0) {
+                    row.add(subscription);
+                    if (!subscription.isTrackedOnly) {
+                        untracked |= eventType;
+                    }
+                }
+            }
+            subscriptionsByType[i] = row.toArray(new Subscription[0]);
+            if (!row.isEmpty()) {
+                listened |= eventType;
+            }
+        }
+        this.visitListeners = visitListeners.toArray(new AirshipAdapter.VisitListener[0]);
+        if (this.visitListeners.length > 0) {
+            untracked |= visitEventTypes;
+            listened |= visitEventTypes;
+        }
+        this.untrackedEventTypes = untracked;
+        this.listenedEventTypes = listened;
+    }
+
+    /**
+     * @param eventType A single event type.
+     * @return The subscriptions to the event type.
+     */
+    @NonNull
+    Subscription[] subscriptions(int eventType) {
+        return subscriptionsByType[Integer.numberOfTrailingZeros(eventType)];
+    }
+
+    @NonNull
+    AirshipAdapter.VisitListener[] visitListeners() {
+        return visitListeners;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the adapter's metrics with striped counters and fixed-bucket histograms, so that
+ * recording from Gimbal, dispatch and Airship threads neither locks nor allocates.
+ */
+final class MetricsRecorder {
+    private static final int STRIPES = 8;
+    // Counters of different stripes are a cache line apart
+    private static final int STRIPE_PADDING = 8;
+    private static final int HISTOGRAM_BUCKETS = 24;
+
+    /**
+     * Counter striped by thread, to avoid contention between the threads that update it.
+     */
+    static final class Counter {
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIPE_PADDING);
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long value) {
+            cells.getAndAdd(stripe() * STRIPE_PADDING, value);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * STRIPE_PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Histogram of durations in power-of-two microsecond buckets.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        private final Counter total = new Counter();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} value.
+         */
+        void recordSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        void record(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.getAndIncrement(bucket);
+            total.add(micros);
+
+            long currentMax = max.get();
+            while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+                currentMax = max.get();
+            }
+        }
+
+        @NonNull
+        AdapterMetrics.Histogram snapshot() {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+            long sum = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                sum += counts[i];
+            }
+            return new AdapterMetrics.Histogram(counts, sum, total.sum(), max.get());
+        }
+    }
+
+    final Counter visitsReceived = new Counter();
+    final Counter visitsCached = new Counter();
+    final Counter visitsEmittedDirectly = new Counter();
+    final Counter visitsReplayed = new Counter();
+    final Counter duplicateVisitsSuppressed = new Counter();
+    final Counter visitsFiltered = new Counter();
+    final Counter visitsDebounced = new Counter();
+    final Histogram dispatchQueueWait = new Histogram();
+    final Histogram replayDuration = new Histogram();
+    final Histogram enterEventLatency = new Histogram();
+    final Histogram exitEventLatency = new Histogram();
+
+    private final AtomicLong cachedVisitsHighWaterMark = new AtomicLong();
+    private final ConcurrentHashMap<String, Histogram> listenerCallbackTimes = new ConcurrentHashMap<>();
+
+    void updateCachedVisitsHighWaterMark(long cachedVisits) {
+        long current = cachedVisitsHighWaterMark.get();
+        while (cachedVisits > current && !cachedVisitsHighWaterMark.compareAndSet(current, cachedVisits)) {
+            current = cachedVisitsHighWaterMark.get();
+        }
+    }
+
+    @NonNull
+    Histogram listenerCallbackTime(@NonNull Object listener) {
+        String name = listener.getClass().getName();
+        Histogram histogram = listenerCallbackTimes.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = listenerCallbackTimes.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    @NonNull
+    AdapterMetrics snapshot(long cachedVisitsDropped,
+                            long cachedVisitsEvicted,
+                            long cachedVisitsCoalesced,
+                            int dispatchQueueDepth,
+                            long dispatchQueueDropped,
+                            long dispatchQueueCoalesced) {
+        Map<String, AdapterMetrics.Histogram> listenerTimes = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : listenerCallbackTimes.entrySet()) {
+            listenerTimes.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new AdapterMetrics(visitsReceived.sum(),
+                visitsCached.sum(),
+                visitsEmittedDirectly.sum(),
+                visitsReplayed.sum(),
+                duplicateVisitsSuppressed.sum(),
+                visitsFiltered.sum(),
+                visitsDebounced.sum(),
+                cachedVisitsHighWaterMark.get(),
+                cachedVisitsDropped,
+                cachedVisitsEvicted,
+                cachedVisitsCoalesced,
+                dispatchQueueDepth,
+                dispatchQueueDropped,
+                dispatchQueueCoalesced,
+                dispatchQueueWait.snapshot(),
+                replayDuration.snapshot(),
+                enterEventLatency.snapshot(),
+                exitEventLatency.snapshot(),
+                listenerTimes);
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
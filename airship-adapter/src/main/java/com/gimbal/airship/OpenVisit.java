@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A Gimbal visit that has started and not yet ended, as returned by
+ * {@link AirshipAdapter#getOpenVisit(String)} and {@link AirshipAdapter#getOpenVisits()}.
+ */
+public final class OpenVisit {
+    private final String placeIdentifier;
+    @Nullable private final String placeName;
+    private final String visitId;
+    private final long arrivalTimeInMillis;
+
+    OpenVisit(@NonNull String placeIdentifier,
+              @Nullable String placeName,
+              @NonNull String visitId,
+              long arrivalTimeInMillis) {
+        this.placeIdentifier = placeIdentifier;
+        this.placeName = placeName;
+        this.visitId = visitId;
+        this.arrivalTimeInMillis = arrivalTimeInMillis;
+    }
+
+    /**
+     * @return The Gimbal place identifier.
+     */
+    @NonNull
+    public String getPlaceIdentifier() {
+        return placeIdentifier;
+    }
+
+    /**
+     * @return The Gimbal place name.
+     */
+    @Nullable
+    public String getPlaceName() {
+        return placeName;
+    }
+
+    /**
+     * @return The Gimbal visit ID.
+     */
+    @NonNull
+    public String getVisitId() {
+        return visitId;
+    }
+
+    /**
+     * @return The time the visit started, in milliseconds since the epoch.
+     */
+    public long getArrivalTimeInMillis() {
+        return arrivalTimeInMillis;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "OpenVisit{placeIdentifier='" + placeIdentifier + '\''
+                + ", placeName='" + placeName + '\''
+                + ", visitId='" + visitId + '\''
+                + ", arrivalTimeInMillis=" + arrivalTimeInMillis + '}';
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Index of the currently open visits, one per place.
+ * <p>
+ * Visits are kept in parallel arrays forming an open-addressed hash table keyed by place
+ * identifier, rather than as {@link Visit} objects, so lookups take constant time and an open
+ * visit costs a few array slots.  {@link OpenVisit} objects are only created when queried.
+ */
+final class OpenVisitRegistry {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int mask = INITIAL_CAPACITY - 1;
+    // A null place identifier marks an empty slot
+    private String[] placeIds = new String[INITIAL_CAPACITY];
+    private String[] placeNames = new String[INITIAL_CAPACITY];
+    private String[] visitIds = new String[INITIAL_CAPACITY];
+    private long[] arrivalTimes = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Records a visit start, replacing any visit open at the same place.  Does nothing if the
+     * place or visit identifier is missing.
+     */
+    synchronized void open(@Nullable String placeId,
+                           @Nullable String placeName,
+                           @Nullable String visitId,
+                           long arrivalTimeInMillis) {
+        if (placeId == null || visitId == null) {
+            return;
+        }
+        int index = find(placeId);
+        if (index < 0) {
+            if ((size + 1) * 2 > placeIds.length) {
+                resize(placeIds.length * 2);
+            }
+            index = ~find(placeId);
+            placeIds[index] = placeId;
+            size++;
+        }
+        placeNames[index] = placeName;
+        visitIds[index] = visitId;
+        arrivalTimes[index] = arrivalTimeInMillis;
+    }
+
+    /**
+     * Records a visit end.  Does nothing if another visit has since opened at the place, or if
+     * the place or visit identifier is missing.
+     */
+    synchronized void close(@Nullable String placeId, @Nullable String visitId) {
+        if (placeId == null || visitId == null) {
+            return;
+        }
+        int index = find(placeId);
+        if (index >= 0 && visitId.equals(visitIds[index])) {
+            removeAt(index);
+            size--;
+        }
+    }
+
+    /**
+     * Replaces the open visits with the given visits, e.g. those Gimbal reports as current.
+     */
+    synchronized void reconcile(@NonNull Collection<Visit> currentVisits) {
+        clear();
+        for (Visit visit : currentVisits) {
+            Place place = visit.getPlace();
+            if (place != null) {
+                open(place.getIdentifier(), place.getName(), visit.getVisitID(),
+                        visit.getArrivalTimeInMillis());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        Arrays.fill(placeIds, null);
+        Arrays.fill(placeNames, null);
+        Arrays.fill(visitIds, null);
+        size = 0;
+    }
+
+    @Nullable
+    synchronized OpenVisit get(@NonNull String placeId) {
+        int index = find(placeId);
+        return index < 0 ? null : at(index);
+    }
+
+    @NonNull
+    synchronized List<OpenVisit> snapshot() {
+        List<OpenVisit> visits = new ArrayList<>(size);
+        for (int i = 0; i < placeIds.length; i++) {
+            if (placeIds[i] != null) {
+                visits.add(at(i));
+            }
+        }
+        return visits;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    @NonNull
+    private OpenVisit at(int index) {
+        return new OpenVisit(placeIds[index], placeNames[index], visitIds[index], arrivalTimes[index]);
+    }
+
+    /**
+     * @return The index of the place, or the bitwise complement of the empty slot it would take.
+     */
+    private int find(@NonNull String placeId) {
+        int index = index(placeId);
+        while (placeIds[index] != null) {
+            if (placeIds[index].equals(placeId)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return ~index;
+    }
+
+    /**
+     * Removes a table entry, shifting back later entries of the same probe run.
+     */
+    private void removeAt(int index) {
+        int gap = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            String placeId = placeIds[next];
+            if (placeId == null) {
+                break;
+            }
+            int ideal = index(placeId);
+            // Move the entry into the gap unless its ideal slot lies cyclically in (gap, next]
+            boolean isBetween = gap <= next
+                    ? gap < ideal && ideal <= next
+                    : gap < ideal || ideal <= next;
+            if (!isBetween) {
+                placeIds[gap] = placeId;
+                placeNames[gap] = placeNames[next];
+                visitIds[gap] = visitIds[next];
+                arrivalTimes[gap] = arrivalTimes[next];
+                gap = next;
+            }
+        }
+        placeIds[gap] = null;
+        placeNames[gap] = null;
+        visitIds[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        String[] oldPlaceIds = placeIds;
+        String[] oldPlaceNames = placeNames;
+        String[] oldVisitIds = visitIds;
+        long[] oldArrivalTimes = arrivalTimes;
+
+        mask = capacity - 1;
+        placeIds = new String[capacity];
+        placeNames = new String[capacity];
+        visitIds = new String[capacity];
+        arrivalTimes = new long[capacity];
+        for (int i = 0; i < oldPlaceIds.length; i++) {
+            if (oldPlaceIds[i] != null) {
+                int index = ~find(oldPlaceIds[i]);
+                placeIds[index] = oldPlaceIds[i];
+                placeNames[index] = oldPlaceNames[i];
+                visitIds[index] = oldVisitIds[i];
+                arrivalTimes[index] = oldArrivalTimes[i];
+            }
+        }
+    }
+
+    private int index(@NonNull String placeId) {
+        int hash = placeId.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Rules selecting the Gimbal places whose visits the adapter handles, each with a sampling rate.
+ * Set with {@link AirshipAdapter#setPlaceFilter(PlaceFilter)}.
+ * <p>
+ * A visit is matched against the rules in this order, and the first matching rule decides:
+ * place identifier, place attribute key and value (keys in the order they were first added),
+ * exact place name, then place name patterns in the order they were added.  Visits that match
+ * no rule use the default sampling rate, which is {@code 0} -- i.e. they are dropped.  Sampling
+ * is decided by the visit ID, so a visit's entry and exit are always both kept or both dropped.
+ */
+public final class PlaceFilter {
+    private final Map<String, Double> placeIdRates;
+    private final Map<String, Map<String, Double>> attributeRates;
+    private final Map<String, Double> placeNameRates;
+    private final Pattern[] placeNamePatterns;
+    private final double[] placeNamePatternRates;
+    private final double defaultRate;
+
+    private PlaceFilter(@NonNull Builder builder) {
+        this.placeIdRates = new HashMap<>(builder.placeIdRates);
+        this.attributeRates = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Double>> entry : builder.attributeRates.entrySet()) {
+            attributeRates.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        this.placeNameRates = new HashMap<>(builder.placeNameRates);
+        this.placeNamePatterns = builder.placeNamePatterns.toArray(new Pattern[0]);
+        this.placeNamePatternRates = new double[placeNamePatterns.length];
+        for (int i = 0; i < placeNamePatternRates.length; i++) {
+            placeNamePatternRates[i] = builder.placeNamePatternRates.get(i);
+        }
+        this.defaultRate = builder.defaultRate;
+    }
+
+    /**
+     * @return A new builder with no rules.
+     */
+    @NonNull
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return {@code true} if the visit passes the filter.
+     */
+    boolean accepts(@NonNull Visit visit) {
+        return isSampled(visit.getVisitID(), rateFor(visit.getPlace()));
+    }
+
+    private double rateFor(@NonNull Place place) {
+        Double rate = placeIdRates.get(place.getIdentifier());
+        if (rate != null) {
+            return rate;
+        }
+
+        if (!attributeRates.isEmpty()) {
+            Attributes attributes = place.getAttributes();
+            if (attributes != null) {
+                for (Map.Entry<String, Map<String, Double>> entry : attributeRates.entrySet()) {
+                    String value = attributes.getValue(entry.getKey());
+                    if (value != null && (rate = entry.getValue().get(value)) != null) {
+                        return rate;
+                    }
+                }
+            }
+        }
+
+        String name = place.getName();
+        if (name != null) {
+            rate = placeNameRates.get(name);
+            if (rate != null) {
+                return rate;
+            }
+            for (int i = 0; i < placeNamePatterns.length; i++) {
+                if (placeNamePatterns[i].matcher(name).matches()) {
+                    return placeNamePatternRates[i];
+                }
+            }
+        }
+        return defaultRate;
+    }
+
+    private static boolean isSampled(@Nullable String visitId, double rate) {
+        if (rate >= 1) {
+            return true;
+        } else if (rate <= 0 || visitId == null) {
+            return false;
+        }
+        int hash = visitId.hashCode() * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & 0x7FFFFFFF) < rate * 0x80000000L;
+    }
+
+    /**
+     * Builds a {@link PlaceFilter}.  Sampling rates range from {@code 0}, drop every visit, to
+     * {@code 1}, keep every visit, and any other rate is rejected with an
+     * {@link IllegalArgumentException}.  A later rule for the same place identifier, attribute value
+     * or place name replaces an earlier one.
+     */
+    public static final class Builder {
+        private final Map<String, Double> placeIdRates = new HashMap<>();
+        private final Map<String, Map<String, Double>> attributeRates = new LinkedHashMap<>();
+        private final Map<String, Double> placeNameRates = new HashMap<>();
+        private final List<Pattern> placeNamePatterns = new ArrayList<>();
+        private final List<Double> placeNamePatternRates = new ArrayList<>();
+        private double defaultRate = 0;
+
+        private Builder() {}
+
+        /**
+         * Matches the place with the given Gimbal place identifier.
+         *
+         * @return This builder.
+         */
+        @NonNull
+        public Builder addPlaceId(@NonNull String placeId, double sampleRate) {
+            checkSampleRate(sampleRate);
+            placeIdRates.put(placeId, sampleRate);
+            return this;
+        }
+
+        /**
+         * Matches places whose attributes include the given key and value.
+         *
+         * @return This builder.
+         */
+        @NonNull
+        public Builder addAttribute(@NonNull String key, @NonNull String value, double sampleRate) {
+            checkSampleRate(sampleRate);
+            Map<String, Double> values = attributeRates.get(key);
+            if (values == null) {
+                values = new HashMap<>();
+                attributeRates.put(key, values);
+            }
+            values.put(value, sampleRate);
+            return this;
+        }
+
+        /**
+         * Matches places with exactly the given name.
+         *
+         * @return This builder.
+         */
+        @NonNull
+        public Builder addPlaceName(@NonNull String name, double sampleRate) {
+            checkSampleRate(sampleRate);
+            placeNameRates.put(name, sampleRate);
+            return this;
+        }
+
+        /**
+         * Matches places whose whole name matches the given regular expression.
+         *
+         * @return This builder.
+         */
+        @NonNull
+        public Builder addPlaceNamePattern(@NonNull String regex, double sampleRate) {
+            checkSampleRate(sampleRate);
+            placeNamePatterns.add(Pattern.compile(regex));
+            placeNamePatternRates.add(sampleRate);
+            return this;
+        }
+
+        /**
+         * Sets the sampling rate of visits that match no rule.  Defaults to {@code 0}.
+         *
+         * @return This builder.
+         */
+        @NonNull
+        public Builder setDefaultSampleRate(double sampleRate) {
+            checkSampleRate(sampleRate);
+            this.defaultRate = sampleRate;
+            return this;
+        }
+
+        @NonNull
+        public PlaceFilter build() {
+            return new PlaceFilter(this);
+        }
+
+        private static void checkSampleRate(double sampleRate) {
+            // Also rejects NaN
+            if (!(sampleRate >= 0 && sampleRate <= 1)) {
+                throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + sampleRate);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Attributes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of a Gimbal place's attributes, along with the {@code GMBL_PA_} prefixed
+ * CustomEvent property names they map to.
+ */
+final class PlaceProperties {
+    static final String PROPERTY_PREFIX = "GMBL_PA_";
+
+    static final PlaceProperties EMPTY = new PlaceProperties(Collections.emptyMap());
+
+    @NonNull final Map<String, String> attributes;
+    @NonNull final String[] propertyNames;
+    @NonNull final String[] propertyValues;
+
+    private PlaceProperties(@NonNull Map<String, String> attributes) {
+        this.attributes = attributes;
+        this.propertyNames = new String[attributes.size()];
+        this.propertyValues = new String[attributes.size()];
+        int i = 0;
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            propertyNames[i] = PROPERTY_PREFIX + attribute.getKey();
+            propertyValues[i] = attribute.getValue();
+            i++;
+        }
+    }
+
+    @NonNull
+    static PlaceProperties of(@NonNull Map<String, String> attributes) {
+        if (attributes.isEmpty()) {
+            return EMPTY;
+        }
+        return new PlaceProperties(Collections.unmodifiableMap(attributes));
+    }
+
+    @NonNull
+    static PlaceProperties of(@Nullable Attributes attributes) {
+        List<String> keys = attributes == null ? null : attributes.getAllKeys();
+        if (keys == null || keys.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, String> copy = new LinkedHashMap<>(keys.size() * 2);
+        for (String key : keys) {
+            copy.put(key, attributes.getValue(key));
+        }
+        return of(copy);
+    }
+
+    /**
+     * Compares Gimbal attributes with the ones these properties were built from, entry by entry,
+     * without copying them.
+     */
+    boolean matches(@Nullable Attributes attributes) {
+        List<String> keys = attributes == null ? null : attributes.getAllKeys();
+        if (keys == null) {
+            return this.attributes.isEmpty();
+        }
+        if (keys.size() != this.attributes.size()) {
+            return false;
+        }
+        for (String key : keys) {
+            String value = attributes.getValue(key);
+            String cachedValue = this.attributes.get(key);
+            if (cachedValue == null
+                    ? value != null || !this.attributes.containsKey(key)
+                    : !cachedValue.equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Attributes;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of {@link PlaceProperties}, keyed by place identifier.
+ * <p>
+ * An entry is reused as-is when Gimbal hands over the same {@link Attributes} instance it was
+ * built from.  Otherwise the attributes are compared with the cached ones entry by entry, which
+ * reads them without copying or prefixing, and the entry is reused if they are all equal.
+ */
+final class PlacePropertiesCache {
+
+    private static final class Entry {
+        final PlaceProperties properties;
+        WeakReference<Attributes> source;
+
+        Entry(PlaceProperties properties, Attributes source) {
+            this.properties = properties;
+            this.source = new WeakReference<>(source);
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    PlacePropertiesCache(final int maxSize) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @NonNull
+    synchronized PlaceProperties get(@Nullable String placeId, @Nullable Attributes attributes) {
+        if (placeId == null || attributes == null) {
+            return PlaceProperties.of(attributes);
+        }
+
+        Entry entry = entries.get(placeId);
+        if (entry != null) {
+            if (entry.source.get() == attributes) {
+                hitCount++;
+                return entry.properties;
+            }
+            if (entry.properties.matches(attributes)) {
+                entry.source = new WeakReference<>(attributes);
+                hitCount++;
+                return entry.properties;
+            }
+        }
+
+        missCount++;
+        PlaceProperties properties = PlaceProperties.of(attributes);
+        entries.put(placeId, new Entry(properties, attributes));
+        return properties;
+    }
+
+    synchronized void invalidate(@NonNull String placeId) {
+        entries.remove(placeId);
+    }
+
+    synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Outcome and timing of restoring the adapter's last run state, as passed to
+ * {@link AirshipAdapter.RestoreCallback}.
+ */
+public final class RestoreResult {
+    private final boolean isStarted;
+    private final boolean isBackground;
+    private final long configLoadMillis;
+    private final long gimbalStartMillis;
+    private final long totalMillis;
+
+    RestoreResult(boolean isStarted,
+                  boolean isBackground,
+                  long configLoadMillis,
+                  long gimbalStartMillis,
+                  long totalMillis) {
+        this.isStarted = isStarted;
+        this.isBackground = isBackground;
+        this.configLoadMillis = configLoadMillis;
+        this.gimbalStartMillis = gimbalStartMillis;
+        this.totalMillis = totalMillis;
+    }
+
+    /**
+     * @return {@code true} if the adapter is started once the restore is finished.
+     */
+    public boolean isStarted() {
+        return isStarted;
+    }
+
+    /**
+     * @return {@code true} if the restore ran on a background thread.
+     */
+    public boolean isBackground() {
+        return isBackground;
+    }
+
+    /**
+     * @return The time spent waiting for the adapter's config to load from disk.
+     */
+    public long getConfigLoadMillis() {
+        return configLoadMillis;
+    }
+
+    /**
+     * @return The time spent setting the Gimbal API key and starting Gimbal, or {@code 0} if the
+     * adapter was not previously started.
+     */
+    public long getGimbalStartMillis() {
+        return gimbalStartMillis;
+    }
+
+    /**
+     * @return The total time taken by the restore.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "RestoreResult{isStarted=" + isStarted
+                + ", isBackground=" + isBackground
+                + ", configLoadMillis=" + configLoadMillis
+                + ", gimbalStartMillis=" + gimbalStartMillis
+                + ", totalMillis=" + totalMillis + '}';
+    }
+}
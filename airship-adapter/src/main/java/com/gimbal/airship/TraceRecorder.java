@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free ring buffer of adapter activity.
+ * <p>
+ * Each record is four {@code long}s -- sequence, wall clock time, packed type / boundary /
+ * argument, and packed visit / place ID hashes -- so recording allocates nothing and formats
+ * nothing.  Writers claim a slot with a single atomic increment and publish the record by writing
+ * its sequence last; {@link #dump(PrintWriter)} skips slots that are overwritten while it reads.
+ */
+final class TraceRecorder {
+    static final int VISIT_RECEIVED = 1;
+    static final int VISIT_CACHED = 2;
+    static final int VISIT_REPLAYED = 3;
+    static final int EVENT_EMITTED = 4;
+    static final int LISTENER_INVOKED = 5;
+
+    private static final String[] TYPE_NAMES = {
+            "?", "received", "cached", "replayed", "emitted", "listener"
+    };
+
+    private static final int LONGS_PER_RECORD = 4;
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean isEnabled = true;
+
+    /**
+     * @param capacity The number of records kept, rounded up to a power of two.
+     */
+    TraceRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * LONGS_PER_RECORD);
+    }
+
+    void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param type One of the record type constants.
+     * @param boundaryEvent The region boundary event, or {@code 0}.
+     * @param visitId The Gimbal visit ID, hashed into the record.
+     * @param placeId The Gimbal place identifier, hashed into the record.
+     * @param argument A type-specific value, e.g. the number of listeners invoked.
+     */
+    void record(int type, int boundaryEvent, @Nullable String visitId, @Nullable String placeId, int argument) {
+        if (!isEnabled) {
+            return;
+        }
+
+        long seq = sequence.getAndIncrement();
+        int base = (int) (seq & mask) * LONGS_PER_RECORD;
+        // Invalidate the slot before overwriting it, so a concurrent dump can detect the change
+        slots.set(base, 0);
+        slots.lazySet(base + 1, System.currentTimeMillis());
+        slots.lazySet(base + 2, ((long) type << 56)
+                | ((long) (boundaryEvent & 0xFF) << 48)
+                | (argument & 0xFFFFFFFFL));
+        slots.lazySet(base + 3, ((long) hash(visitId) << 32) | (hash(placeId) & 0xFFFFFFFFL));
+        slots.set(base, seq + 1);
+    }
+
+    /**
+     * Writes the recorded events, oldest first.
+     */
+    void dump(@NonNull PrintWriter writer) {
+        long end = sequence.get();
+        long start = Math.max(0, end - (mask + 1));
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+
+        writer.println("Gimbal Airship adapter trace (" + (end - start) + " of " + end + " records)");
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & mask) * LONGS_PER_RECORD;
+            if (slots.get(base) != seq + 1) {
+                continue;
+            }
+            long time = slots.get(base + 1);
+            long packed = slots.get(base + 2);
+            long ids = slots.get(base + 3);
+            if (slots.get(base) != seq + 1) {
+                continue;
+            }
+
+            int type = (int) (packed >>> 56);
+            writer.println(String.format(Locale.US, "%d %s %-8s boundary=%d visit=%08x place=%08x arg=%d",
+                    seq,
+                    format.format(new Date(time)),
+                    type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0],
+                    (int) (packed >>> 48) & 0xFF,
+                    (int) (ids >>> 32),
+                    (int) ids,
+                    (int) packed));
+        }
+        writer.flush();
+    }
+
+    private static int hash(@Nullable String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+}
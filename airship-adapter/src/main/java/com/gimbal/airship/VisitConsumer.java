@@ -0,0 +1,21 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import com.gimbal.android.Visit;
+
+/**
+ * Next stage in the adapter's handling of a Gimbal visit.
+ */
+interface VisitConsumer {
+    /**
+     * @param visit The Gimbal visit.
+     * @param boundaryEvent {@code RegionEvent.BOUNDARY_EVENT_ENTER} or
+     *                      {@code RegionEvent.BOUNDARY_EVENT_EXIT}.
+     */
+    void accept(@NonNull Visit visit, int boundaryEvent);
+}
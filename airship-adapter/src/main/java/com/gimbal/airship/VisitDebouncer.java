@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppresses visits that flap at the edge of a place, per place identifier.
+ * <p>
+ * An entry is held for the minimum dwell time; if the place is exited before then, both the
+ * entry and the exit are discarded.  An exit is held for the re-entry grace period; if the place
+ * is entered again before then, both the exit and the re-entry are discarded and the place is
+ * considered never to have been left.  Otherwise held visits are released to the consumer once
+ * their deadline passes.
+ * <p>
+ * All held visits share a single scheduled wakeup, armed for the earliest deadline.  The
+ * consumer is called with this debouncer's lock held, so that visits are released in order.
+ */
+final class VisitDebouncer {
+
+    private static final class Held implements Comparable<Held> {
+        final String placeId;
+        final Visit visit;
+        final int boundaryEvent;
+        final long deadline;
+        boolean isCancelled = false;
+
+        Held(String placeId, Visit visit, int boundaryEvent, long deadline) {
+            this.placeId = placeId;
+            this.visit = visit;
+            this.boundaryEvent = boundaryEvent;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Held other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    private final long minDwellMillis;
+    private final long reEntryGraceMillis;
+    private final ScheduledExecutorService scheduler;
+    private final VisitConsumer consumer;
+    private final MetricsRecorder.Counter suppressed;
+
+    private final Map<String, Held> heldByPlace = new HashMap<>();
+    private final PriorityQueue<Held> deadlines = new PriorityQueue<>();
+    @Nullable private ScheduledFuture<?> wakeup;
+    private long wakeupDeadline = Long.MAX_VALUE;
+
+    VisitDebouncer(long minDwellMillis,
+                   long reEntryGraceMillis,
+                   @NonNull ScheduledExecutorService scheduler,
+                   @NonNull VisitConsumer consumer,
+                   @NonNull MetricsRecorder.Counter suppressed) {
+        this.minDwellMillis = Math.max(0, minDwellMillis);
+        this.reEntryGraceMillis = Math.max(0, reEntryGraceMillis);
+        this.scheduler = scheduler;
+        this.consumer = consumer;
+        this.suppressed = suppressed;
+    }
+
+    /**
+     * Handles a visit, releasing it to the consumer immediately, later, or not at all.
+     */
+    synchronized void accept(@NonNull Visit visit, int boundaryEvent) {
+        String placeId = visit.getPlace().getIdentifier();
+        Held held = heldByPlace.remove(placeId);
+        if (held != null) {
+            held.isCancelled = true;
+            if (held.boundaryEvent != boundaryEvent) {
+                // Entry within the grace period of an exit, or exit within the minimum dwell
+                suppressed.add(2);
+                return;
+            }
+            // Repeated boundary for the same place, release what was held first
+            consumer.accept(held.visit, held.boundaryEvent);
+        }
+
+        long delay = boundaryEvent == RegionEvent.BOUNDARY_EVENT_ENTER
+                ? minDwellMillis : reEntryGraceMillis;
+        if (delay == 0) {
+            consumer.accept(visit, boundaryEvent);
+        } else {
+            hold(new Held(placeId, visit, boundaryEvent, now() + delay));
+        }
+    }
+
+    /**
+     * Releases every held visit immediately.
+     */
+    synchronized void flush() {
+        releaseExpired(Long.MAX_VALUE);
+    }
+
+    private void hold(@NonNull Held held) {
+        heldByPlace.put(held.placeId, held);
+        deadlines.add(held);
+        if (held.deadline < wakeupDeadline) {
+            if (wakeup != null) {
+                wakeup.cancel(false);
+            }
+            wakeupDeadline = held.deadline;
+            wakeup = scheduler.schedule(this::onWakeup,
+                    Math.max(0, held.deadline - now()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void onWakeup() {
+        wakeup = null;
+        wakeupDeadline = Long.MAX_VALUE;
+        releaseExpired(now());
+
+        Held next = deadlines.peek();
+        if (next != null) {
+            wakeupDeadline = next.deadline;
+            wakeup = scheduler.schedule(this::onWakeup,
+                    Math.max(0, next.deadline - now()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void releaseExpired(long now) {
+        while (!deadlines.isEmpty() && deadlines.peek().deadline <= now) {
+            Held held = deadlines.poll();
+            if (!held.isCancelled) {
+                heldByPlace.remove(held.placeId);
+                consumer.accept(held.visit, held.boundaryEvent);
+            }
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
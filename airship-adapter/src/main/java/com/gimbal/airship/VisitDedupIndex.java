@@ -0,0 +1,306 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-windowed index of the visit boundaries already emitted, used to drop repeats.
+ * <p>
+ * Each visit ID and boundary is kept as a 64-bit hash, in a ring ordered by the time it was
+ * recorded and in an open-addressed hash table pointing into the ring.  Lookups and inserts take
+ * constant time; entries leave the ring once they are older than the window or, when the ring is
+ * full, oldest first.  The ring is saved to disk shortly after it changes, and loaded on the
+ * executor as soon as the index is created, so repeats are caught across app restarts.  Lookups
+ * wait for the load only if it has not yet finished.
+ * <p>
+ * File layout: {@code magic}, {@code version}, {@code count}, then {@code count} pairs of
+ * {@code [long hash][long timeMillis]}, oldest first.
+ */
+final class VisitDedupIndex {
+    static final String FILE_NAME = "com.gimbal.airship.visits.dedup";
+
+    private static final int MAGIC = 0x474D4244; // "GMBD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final long SAVE_DELAY_MS = 1000;
+
+    static final int DEFAULT_CAPACITY = 2048;
+    static final long DEFAULT_WINDOW_MS = TimeUnit.DAYS.toMillis(1);
+
+    private final File file;
+    private final ScheduledExecutorService scheduler;
+    private final int capacity;
+    private final FutureTask<Void> load;
+
+    // Ring of entries, oldest at head
+    private final long[] ringHashes;
+    private final long[] ringTimes;
+    private int head = 0;
+    private int size = 0;
+
+    // Open-addressed table of hash to ring index, zero hash marks an empty slot
+    private final int mask;
+    private final long[] tableHashes;
+    private final int[] tableSlots;
+
+    private long windowMillis = DEFAULT_WINDOW_MS;
+    private volatile boolean isLoaded = false;
+    private boolean isSaveScheduled = false;
+    private boolean isDirty = false;
+
+    VisitDedupIndex(@NonNull File file, int capacity, @NonNull ScheduledExecutorService scheduler) {
+        this.file = file;
+        this.scheduler = scheduler;
+        this.capacity = Math.max(1, capacity);
+        this.ringHashes = new long[this.capacity];
+        this.ringTimes = new long[this.capacity];
+        int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.tableHashes = new long[tableSize];
+        this.tableSlots = new int[tableSize];
+        this.load = new FutureTask<>(this::load, null);
+        scheduler.execute(load);
+    }
+
+    /**
+     * @param windowMillis How long a visit boundary is remembered, or {@code 0} to remember none.
+     */
+    synchronized void setWindow(long windowMillis) {
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+
+    /**
+     * Records a visit boundary, unless it was already recorded within the window.  Visits
+     * without an ID are never repeats.
+     *
+     * @return {@code true} if the visit boundary is a repeat.
+     */
+    boolean isDuplicate(@Nullable String visitId, int boundaryEvent, long nowMillis) {
+        if (visitId == null) {
+            return false;
+        }
+        // The load holds the lock while it reads the file, so it is awaited first
+        awaitLoad();
+        synchronized (this) {
+            if (windowMillis == 0) {
+                return false;
+            }
+            evictOlderThan(nowMillis - windowMillis);
+
+            long hash = hash(visitId, boundaryEvent);
+            if (find(hash) >= 0) {
+                return true;
+            }
+            insert(hash, nowMillis);
+            scheduleSave();
+            return false;
+        }
+    }
+
+    /**
+     * Saves any pending change immediately.
+     */
+    synchronized void flush() {
+        if (isDirty) {
+            save();
+        }
+    }
+
+    private void insert(long hash, long timeMillis) {
+        if (size == capacity) {
+            removeOldest();
+        }
+        int slot = (head + size) % capacity;
+        ringHashes[slot] = hash;
+        ringTimes[slot] = timeMillis;
+        size++;
+
+        int index = index(hash);
+        while (tableHashes[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        tableHashes[index] = hash;
+        tableSlots[index] = slot;
+    }
+
+    private void evictOlderThan(long oldestMillis) {
+        while (size > 0 && ringTimes[head] < oldestMillis) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        int index = find(ringHashes[head]);
+        if (index >= 0 && tableSlots[index] == head) {
+            removeAt(index);
+        }
+        head = (head + 1) % capacity;
+        size--;
+    }
+
+    private int find(long hash) {
+        int index = index(hash);
+        while (tableHashes[index] != 0) {
+            if (tableHashes[index] == hash) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a table entry, shifting back later entries of the same probe run.
+     */
+    private void removeAt(int index) {
+        int gap = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            long hash = tableHashes[next];
+            if (hash == 0) {
+                break;
+            }
+            int ideal = index(hash);
+            // Move the entry into the gap unless its ideal slot lies cyclically in (gap, next]
+            boolean isBetween = gap <= next
+                    ? gap < ideal && ideal <= next
+                    : gap < ideal || ideal <= next;
+            if (!isBetween) {
+                tableHashes[gap] = hash;
+                tableSlots[gap] = tableSlots[next];
+                gap = next;
+            }
+        }
+        tableHashes[gap] = 0;
+    }
+
+    private int index(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void scheduleSave() {
+        isDirty = true;
+        if (!isSaveScheduled) {
+            isSaveScheduled = true;
+            scheduler.schedule(this::flushScheduled, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void flushScheduled() {
+        isSaveScheduled = false;
+        flush();
+    }
+
+    private void save() {
+        isDirty = false;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size * 16);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % capacity;
+            buffer.putLong(ringHashes[slot]).putLong(ringTimes[slot]);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array(), 0, buffer.position());
+            out.getFD().sync();
+        } catch (IOException e) {
+            AdapterLog.e("Unable to save visit dedup index", e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            AdapterLog.e("Unable to replace visit dedup index file");
+        }
+    }
+
+    private void awaitLoad() {
+        if (isLoaded) {
+            return;
+        }
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                load.get();
+                break;
+            } catch (ExecutionException e) {
+                AdapterLog.e("Unable to load visit dedup index", e.getCause());
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void load() {
+        try {
+            read();
+        } finally {
+            isLoaded = true;
+        }
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < HEADER_SIZE
+                    || in.readInt() != MAGIC
+                    || in.readInt() != VERSION) {
+                AdapterLog.w("Unrecognized visit dedup index, ignoring it");
+                return;
+            }
+            // A truncated file keeps the entries that were written in full
+            int count = (int) Math.max(0, Math.min(in.readInt(), (in.length() - HEADER_SIZE) / 16));
+            // Only the newest entries fit when the index was saved with a larger capacity
+            int skipped = Math.max(0, count - capacity);
+            in.seek(HEADER_SIZE + skipped * 16L);
+            byte[] bytes = new byte[(count - skipped) * 16];
+            in.readFully(bytes);
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.remaining() >= 16) {
+                long hash = buffer.getLong();
+                long time = buffer.getLong();
+                if (hash != 0 && find(hash) < 0) {
+                    insert(hash, time);
+                }
+            }
+        } catch (IOException e) {
+            AdapterLog.e("Unable to load visit dedup index", e);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the visit ID and boundary, never zero.
+     */
+    private static long hash(@NonNull String visitId, int boundaryEvent) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < visitId.length(); i++) {
+            hash ^= visitId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= boundaryEvent;
+        hash *= 0x100000001b3L;
+        return hash == 0 ? 1 : hash;
+    }
+}
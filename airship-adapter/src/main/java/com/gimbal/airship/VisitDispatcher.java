@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Visit;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue that hands Gimbal visits off to a single consumer, either a dedicated worker
+ * thread or tasks submitted to a host-supplied {@link Executor}.  Visits are always consumed one
+ * at a time and in the order they were accepted.
+ * <p>
+ * A dispatcher that replaces another is given it as its predecessor, and consumes nothing until
+ * the predecessor has consumed every visit it accepted, so that switching dispatchers never
+ * reorders visits.
+ */
+final class VisitDispatcher {
+    private static final String THREAD_NAME = "gimbal-airship-dispatch";
+
+    private static final class Item {
+        final Visit visit;
+        final String visitId;
+        final int boundaryEvent;
+        final long enqueuedAtNanos;
+
+        Item(Visit visit, int boundaryEvent) {
+            this.visit = visit;
+            this.visitId = visit.getVisitID();
+            this.boundaryEvent = boundaryEvent;
+            this.enqueuedAtNanos = System.nanoTime();
+        }
+    }
+
+    private final int capacity;
+    private final AirshipAdapter.OverflowPolicy overflowPolicy;
+    @Nullable private final Executor executor;
+    private final VisitConsumer consumer;
+    private final MetricsRecorder.Histogram queueWait;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final ArrayDeque<Item> queue;
+
+    private boolean isShutdown = false;
+    private boolean isDrainScheduled = false;
+    // Set while the consumer is handling a visit taken from the queue
+    private boolean isConsuming = false;
+    private long droppedCount = 0;
+    private long coalescedCount = 0;
+
+    // Only accessed by the consumer, cleared once the predecessor is drained
+    @Nullable private VisitDispatcher predecessor;
+
+    /**
+     * @param predecessor The dispatcher this one replaces, if any, which must be shut down.
+     */
+    VisitDispatcher(int capacity,
+                    @NonNull AirshipAdapter.OverflowPolicy overflowPolicy,
+                    @Nullable Executor executor,
+                    @NonNull VisitConsumer consumer,
+                    @NonNull MetricsRecorder.Histogram queueWait,
+                    @Nullable VisitDispatcher predecessor) {
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.executor = executor;
+        this.consumer = consumer;
+        this.queueWait = queueWait;
+        this.queue = new ArrayDeque<>(this.capacity);
+        this.predecessor = predecessor;
+    }
+
+    /**
+     * Starts the dedicated worker thread when no executor was supplied.
+     */
+    void start() {
+        if (executor != null) {
+            return;
+        }
+        Thread thread = new Thread(this::runWorker, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops accepting visits.  Visits already accepted are still consumed.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            isShutdown = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every visit accepted so far has been consumed.  Must not be called by this
+     * dispatcher's consumer.
+     */
+    void awaitDrained() {
+        lock.lock();
+        try {
+            while (!queue.isEmpty() || isConsuming) {
+                drained.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a visit, applying the overflow policy if the queue is full.
+     *
+     * @return {@code false} if the visit was not accepted because the dispatcher is shut down.
+     */
+    boolean dispatch(@NonNull Visit visit, int boundaryEvent) {
+        Item item = new Item(visit, boundaryEvent);
+        boolean scheduleDrain = false;
+
+        lock.lock();
+        try {
+            while (!isShutdown && queue.size() >= capacity) {
+                if (overflowPolicy == AirshipAdapter.OverflowPolicy.BLOCK) {
+                    notFull.awaitUninterruptibly();
+                } else if (overflowPolicy == AirshipAdapter.OverflowPolicy.COALESCE && coalesce(item)) {
+                    coalescedCount++;
+                    return true;
+                } else {
+                    Item dropped = queue.pollFirst();
+                    droppedCount++;
+                    AdapterLog.w("Dispatch queue full, dropping visit " + dropped.visitId);
+                }
+            }
+            if (isShutdown) {
+                return false;
+            }
+
+            queue.addLast(item);
+            if (executor == null) {
+                notEmpty.signal();
+            } else if (!isDrainScheduled) {
+                isDrainScheduled = true;
+                scheduleDrain = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (scheduleDrain) {
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of visits currently queued.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces, in place, the newest queued item for the same visit that is either a duplicate of
+     * the new item or an entry superseded by the new item's exit.
+     */
+    private boolean coalesce(@NonNull Item item) {
+        Iterator<Item> iterator = queue.descendingIterator();
+        while (iterator.hasNext()) {
+            Item queued = iterator.next();
+            if (queued.visitId != null && queued.visitId.equals(item.visitId)
+                    && queued.boundaryEvent <= item.boundaryEvent) {
+                replace(queued, item);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void replace(@NonNull Item queued, @NonNull Item item) {
+        ArrayDeque<Item> copy = new ArrayDeque<>(queue.size());
+        for (Item existing : queue) {
+            copy.addLast(existing == queued ? item : existing);
+        }
+        queue.clear();
+        queue.addAll(copy);
+    }
+
+    private void scheduleDrain() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            AdapterLog.e("Dispatch executor rejected task, consuming visits on caller thread", e);
+            drain();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Item item;
+            lock.lock();
+            try {
+                isConsuming = false;
+                item = queue.pollFirst();
+                if (item == null) {
+                    isDrainScheduled = false;
+                    drained.signalAll();
+                    return;
+                }
+                isConsuming = true;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            consume(item);
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Item item;
+            lock.lock();
+            try {
+                isConsuming = false;
+                if (queue.isEmpty()) {
+                    drained.signalAll();
+                }
+                while (queue.isEmpty() && !isShutdown) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                item = queue.pollFirst();
+                if (item == null) {
+                    return;
+                }
+                isConsuming = true;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            consume(item);
+        }
+    }
+
+    private void consume(@NonNull Item item) {
+        VisitDispatcher predecessor = this.predecessor;
+        if (predecessor != null) {
+            predecessor.awaitDrained();
+            this.predecessor = null;
+        }
+        queueWait.recordSince(item.enqueuedAtNanos);
+        try {
+            consumer.accept(item.visit, item.boundaryEvent);
+        } catch (Exception e) {
+            AdapterLog.e("Failed to process visit " + item.visitId, e);
+        }
+    }
+}
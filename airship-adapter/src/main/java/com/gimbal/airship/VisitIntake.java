@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Visit;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands visits from any number of threads to a single consumer, without locking.
+ * <p>
+ * Visits are added to a lock-free queue.  Whichever thread finds the queue idle becomes its
+ * consumer and drains it -- including visits added by other threads meanwhile -- while every other
+ * thread returns as soon as its visit is queued.  Until the handler is ready, drained visits are
+ * cached.  Once it is, the cached visits are replayed in chunks, paced by the chunk interval.
+ * Chunks only ever run in a task on the scheduler: when a chunk falls due while another thread is
+ * draining, that thread runs the task again as soon as it is done, rather than running the chunk
+ * itself.  Visits drained while the replay is in progress are cached behind the backlog, so
+ * visits are always handled in the order they were added.  A chunk that fails is retried.
+ * <p>
+ * Readiness moves one way, {@link #NOT_READY} to {@link #REPLAYING} to {@link #READY}, and the
+ * handler's readiness is only polled while {@link #NOT_READY}.
+ */
+final class VisitIntake {
+    static final int NOT_READY = 0;
+    static final int REPLAYING = 1;
+    static final int READY = 2;
+
+    // Minimum delay before a failed chunk is retried
+    private static final long RETRY_DELAY_MS = 1000;
+
+    /**
+     * Handles drained visits.  Every method is called by the single consumer thread of the
+     * moment, and {@link #replay(int)} only on the scheduler.
+     */
+    interface Handler {
+        /**
+         * @return {@code true} once visits may be emitted.
+         */
+        boolean isReady();
+
+        /**
+         * Replays cached visits, oldest first.
+         *
+         * @param maxVisits The maximum number of visits to replay.
+         * @return {@code true} if cached visits remain.
+         */
+        boolean replay(int maxVisits);
+
+        void emit(@NonNull VisitRecord record, @Nullable Visit visit);
+
+        void cache(@NonNull VisitRecord record, @Nullable Visit visit);
+    }
+
+    private static final class Item {
+        final VisitRecord record;
+        @Nullable final Visit visit;
+
+        Item(@NonNull VisitRecord record, @Nullable Visit visit) {
+            this.record = record;
+            this.visit = visit;
+        }
+    }
+
+    private final Handler handler;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<>();
+    // Drain requests outstanding; the thread that raises it from zero is the consumer
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final AtomicInteger state = new AtomicInteger(NOT_READY);
+    private volatile boolean isReplayRequested = false;
+    // Set by a chunk's task before it tries to become the consumer
+    private volatile boolean isChunkDue = false;
+    private volatile int chunkSize;
+    private volatile long chunkIntervalMillis;
+
+    // Only accessed by the consumer thread
+    private boolean isChunkPending = false;
+
+    VisitIntake(@NonNull Handler handler,
+                @NonNull ScheduledExecutorService scheduler,
+                int chunkSize,
+                long chunkIntervalMillis) {
+        this.handler = handler;
+        this.scheduler = scheduler;
+        setReplayPacing(chunkSize, chunkIntervalMillis);
+    }
+
+    /**
+     * Sets the pace of replays that start after this call.
+     *
+     * @param chunkSize The maximum number of visits replayed per chunk.
+     * @param chunkIntervalMillis The delay between chunks.
+     */
+    void setReplayPacing(int chunkSize, long chunkIntervalMillis) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.chunkIntervalMillis = Math.max(0, chunkIntervalMillis);
+    }
+
+    /**
+     * Adds a visit, handling it on this thread if no other thread is already draining.
+     */
+    void offer(@NonNull VisitRecord record, @Nullable Visit visit) {
+        queue.offer(new Item(record, visit));
+        drain(false);
+    }
+
+    /**
+     * Marks the handler ready, starting the replay of the cached visits on the scheduler.
+     */
+    void markReady() {
+        state.compareAndSet(NOT_READY, REPLAYING);
+        drain(false);
+    }
+
+    /**
+     * Replays the rest of the cached visits in one chunk, without pacing, on the scheduler.  Has
+     * no effect once the replay is complete.
+     */
+    void requestReplay() {
+        isReplayRequested = true;
+        scheduler.execute(this::runChunk);
+    }
+
+    /**
+     * @return {@link #NOT_READY}, {@link #REPLAYING} or {@link #READY}.
+     */
+    int getState() {
+        return state.get();
+    }
+
+    /**
+     * Drains the queue if no other thread is draining it.
+     *
+     * @param isChunkTask {@code true} if called from a chunk's task on the scheduler, the only
+     *                    caller that may run a due chunk.
+     */
+    private void drain(boolean isChunkTask) {
+        if (isChunkTask) {
+            // Whoever holds the consumer role resubmits the task when it is done
+            if (!drainRequests.compareAndSet(0, 1)) {
+                return;
+            }
+        } else if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+
+        int requests = 1;
+        do {
+            if (state.get() == NOT_READY && handler.isReady()) {
+                state.compareAndSet(NOT_READY, REPLAYING);
+            }
+            if (state.get() == REPLAYING) {
+                if (isChunkTask && isChunkDue) {
+                    isChunkDue = false;
+                    runChunkLocked();
+                } else if (!isChunkPending) {
+                    isChunkPending = true;
+                    scheduleChunk(0);
+                }
+            } else if (isChunkTask) {
+                // Nothing to replay yet, or any more
+                isChunkDue = false;
+            }
+
+            boolean isReady = state.get() == READY;
+            Item item;
+            while ((item = queue.poll()) != null) {
+                try {
+                    if (isReady) {
+                        handler.emit(item.record, item.visit);
+                    } else {
+                        handler.cache(item.record, item.visit);
+                    }
+                } catch (RuntimeException e) {
+                    AdapterLog.e("Failed to handle visit " + item.record.visitId, e);
+                }
+            }
+
+            requests = drainRequests.addAndGet(-requests);
+        } while (requests != 0);
+
+        if (isChunkDue) {
+            // A chunk fell due while this thread was draining, so leave it to the scheduler
+            scheduler.execute(() -> drain(true));
+        }
+    }
+
+    private void runChunkLocked() {
+        boolean isUnpaced = isReplayRequested;
+        isReplayRequested = false;
+        isChunkPending = false;
+        try {
+            if (handler.replay(isUnpaced ? Integer.MAX_VALUE : chunkSize)) {
+                isChunkPending = true;
+                scheduleChunk(chunkIntervalMillis);
+            } else {
+                state.set(READY);
+            }
+        } catch (RuntimeException e) {
+            // Live visits keep being cached behind the backlog until it is replayed
+            AdapterLog.e("Failed to replay cached visits, retrying", e);
+            isReplayRequested = isUnpaced;
+            isChunkPending = true;
+            scheduleChunk(Math.max(chunkIntervalMillis, RETRY_DELAY_MS));
+        }
+    }
+
+    private void scheduleChunk(long delayMillis) {
+        scheduler.schedule(this::runChunk, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runChunk() {
+        isChunkDue = true;
+        drain(true);
+    }
+}
@@ -0,0 +1,1013 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.urbanairship.analytics.location.RegionEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only, bounded file of {@link VisitRecord}s that are waiting for Airship to be ready.
+ * <p>
+ * Appends are only staged in memory.  Opening the file, committing staged appends and compacting
+ * all run on the executor, which group-commits the staged appends shortly after the first, or at
+ * once when a write buffer's worth is staged.  Replay streams the file through a fixed-size
+ * buffer, copies out the records it reads and checkpoints its read offset in the file header
+ * before handing them to the consumer, so a replay interrupted by process death resumes after
+ * the records it last copied.  Once fully drained the file is truncated back to its header.
+ * <p>
+ * The journal is bounded by a number of visits, a file size and a visit age.  An exit committed
+ * while its visit's entry is pending is folded into a single record: the entry is overwritten in
+ * place with a tombstone and the exit is marked as carrying it.  When a commit would exceed a
+ * limit, the journal is compacted -- rewritten without tombstones, expired records and whatever
+ * the eviction policy selects -- and the record is dropped only if it still does not fit.
+ * <p>
+ * File layout: a 16 byte header ({@code magic}, {@code version}, {@code readOffset}) followed by
+ * records of {@code [int length][payload]}, where the payload starts with the record kind.  All
+ * methods are thread-safe.  File state is guarded by {@code fileLock}, and staged appends and the
+ * counts read by other threads by this journal's monitor, always taken in that order.
+ */
+final class VisitJournal {
+    static final String FILE_NAME = "com.gimbal.airship.visits.journal";
+
+    private static final int MAGIC = 0x474D424A; // "GMBJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int READ_OFFSET_POSITION = 8;
+    // Offset of the visit ID in a record payload, after the kind and three times
+    private static final int VISIT_ID_POSITION = 25;
+
+    // Record kinds, the first payload byte.  Entries and exits use their region boundary event
+    private static final byte KIND_TOMBSTONE = 0;
+    private static final byte KIND_ENTER = (byte) RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final byte KIND_EXIT = (byte) RegionEvent.BOUNDARY_EVENT_EXIT;
+    private static final byte KIND_ENTER_AND_EXIT = 3;
+
+    static final int MAX_RECORD_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+    private static final long GROUP_COMMIT_DELAY_MS = 200;
+    // Number of places whose identifier, name and attributes are shared by replayed records
+    private static final int MAX_PLACE_TEMPLATES = 64;
+    // Eviction frees this fraction of each limit beyond what an append needs, so that a full
+    // journal is not compacted on every append
+    private static final double EVICTION_HEADROOM = 0.1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives replayed records, in the order they were appended.  A folded entry and exit are
+     * replayed as two records, the entry first.
+     */
+    interface Consumer {
+        void accept(@NonNull VisitRecord record);
+    }
+
+    /**
+     * Parsed header of a record read during compaction.
+     */
+    private static final class StoredRecord {
+        final byte[] payload;
+        final String visitId;
+        final long timeMillis;
+
+        StoredRecord(byte[] payload, String visitId, long timeMillis) {
+            this.payload = payload;
+            this.visitId = visitId;
+            this.timeMillis = timeMillis;
+        }
+
+        byte kind() {
+            return payload[0];
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long offset, @NonNull ByteBuffer payload);
+    }
+
+    private final File file;
+    private final ScheduledExecutorService scheduler;
+    private final Object fileLock = new Object();
+
+    // Guarded by this journal's monitor
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    private ByteBuffer stagingBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    @Nullable private ByteBuffer spareBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private int stagedVisits = 0;
+    // Staged appends being committed, and the committed records, as of the last commit or drain
+    private int committingVisits = 0;
+    private long committingBytes = 0;
+    private int committedVisits = 0;
+    private long committedBytes = 0;
+    private boolean isCommitScheduled = false;
+    private boolean isCommitDue = false;
+
+    // Changed with both locks held, so read with either
+    private long maxFileSize;
+    private int maxVisits = Integer.MAX_VALUE;
+    private long maxAgeMillis = 0;
+    private AirshipAdapter.CacheEvictionPolicy evictionPolicy = AirshipAdapter.CacheEvictionPolicy.DROP_NEWEST;
+    private boolean isCoalescing = true;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    // Guarded by fileLock
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    @Nullable private FileChannel channel;
+    private volatile boolean isOpened = false;
+    private volatile boolean openFailed = false;
+    private long readOffset = HEADER_SIZE;
+    private long fileEnd = HEADER_SIZE;
+    // Set when compaction could not make room, so that commits to a full journal drop records
+    // without compacting again until records are drained or the limits change
+    private boolean isExhausted = false;
+    // Pending entries and exits on disk, a folded record counting as two
+    private int pendingVisits = 0;
+    // Offsets of pending entry records, by visit ID
+    private final Map<String, Long> pendingEntries = new HashMap<>();
+    // Last record replayed for each place, whose place fields later records of the place share
+    private final Map<String, VisitRecord> placeTemplates = new LinkedHashMap<String, VisitRecord>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VisitRecord> eldest) {
+            return size() > MAX_PLACE_TEMPLATES;
+        }
+    };
+
+    VisitJournal(@NonNull File file, long maxFileSize, @NonNull ScheduledExecutorService scheduler) {
+        this.file = file;
+        this.maxFileSize = Math.max(maxFileSize, HEADER_SIZE + MAX_RECORD_SIZE);
+        this.scheduler = scheduler;
+        scheduler.execute(this::awaitOpen);
+    }
+
+    /**
+     * Sets the journal's limits, applied from the next commit or replay.
+     *
+     * @param maxVisits The maximum number of pending entries and exits.
+     * @param maxFileSize The maximum file size, in bytes.
+     * @param maxAgeMillis The age past which a record is discarded, or {@code 0} for no limit.
+     * @param policy What to evict when a commit would exceed a limit.
+     */
+    void setLimits(int maxVisits,
+                   long maxFileSize,
+                   long maxAgeMillis,
+                   @NonNull AirshipAdapter.CacheEvictionPolicy policy) {
+        synchronized (fileLock) {
+            synchronized (this) {
+                this.maxVisits = Math.max(1, maxVisits);
+                this.maxFileSize = Math.max(maxFileSize, HEADER_SIZE + MAX_RECORD_SIZE);
+                this.maxAgeMillis = Math.max(0, maxAgeMillis);
+                this.evictionPolicy = policy;
+            }
+            isExhausted = false;
+        }
+    }
+
+    /**
+     * Sets whether an exit committed while its entry is pending is folded into one record.
+     */
+    void setCoalescing(boolean coalescing) {
+        synchronized (fileLock) {
+            synchronized (this) {
+                isCoalescing = coalescing;
+            }
+        }
+    }
+
+    /**
+     * Stages a record, to be committed to disk by the group commit that follows.  The journal's
+     * limits are applied when the record is committed, so a staged record may still be dropped,
+     * and counted by {@link #getDroppedCount()}, if compaction cannot make room for it.
+     *
+     * @return {@code false} if the record was dropped at once, because it is too large, the
+     * journal is unavailable or a full journal's worth of appends is already staged.
+     */
+    synchronized boolean append(@NonNull VisitRecord record) {
+        if (openFailed) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        recordBuffer.clear();
+        try {
+            encode(record, recordBuffer);
+        } catch (BufferOverflowException e) {
+            AdapterLog.w("Visit too large to journal, dropping visit " + record.visitId);
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        recordBuffer.flip();
+
+        // Staging is bounded in case commits fall behind, as by a stalled disk
+        int size = 4 + recordBuffer.remaining();
+        if (stagingBuffer.position() + size > maxFileSize - HEADER_SIZE) {
+            AdapterLog.w("Visit journal full, dropping visit " + record.visitId);
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (stagingBuffer.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(stagingBuffer.capacity() * 2, stagingBuffer.position() + size));
+            stagingBuffer.flip();
+            grown.put(stagingBuffer);
+            stagingBuffer = grown;
+        }
+        stagingBuffer.putInt(recordBuffer.remaining());
+        stagingBuffer.put(recordBuffer);
+        stagedVisits++;
+        scheduleCommit();
+        return true;
+    }
+
+    /**
+     * @return {@code true} if there are appended records that have not yet been drained.
+     */
+    boolean hasPending() {
+        return getPendingBytes() > 0;
+    }
+
+    /**
+     * @return The size of the appended records that have not yet been drained, in bytes.
+     */
+    long getPendingBytes() {
+        awaitOpen();
+        synchronized (this) {
+            return committedBytes + committingBytes + stagingBuffer.position();
+        }
+    }
+
+    /**
+     * @return The number of entries and exits that have not yet been drained.
+     */
+    int getPendingCount() {
+        awaitOpen();
+        synchronized (this) {
+            return committedVisits + committingVisits + stagedVisits;
+        }
+    }
+
+    /**
+     * @return The number of records dropped on append or commit since this journal was created.
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return The number of entries and exits evicted by age or by the eviction policy since this
+     * journal was created.
+     */
+    long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * @return The number of exits folded into their entry since this journal was created.
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Replays every pending record to the consumer, then truncates the journal.
+     *
+     * @return The number of records replayed.
+     */
+    int drain(@NonNull Consumer consumer) {
+        return drain(consumer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Replays up to {@code maxRecords} pending records to the consumer, truncating the journal
+     * once every record is replayed.  Records older than the maximum age are discarded rather
+     * than replayed.  The records are read and checkpointed first, and the consumer is called
+     * without any of this journal's locks held.
+     *
+     * @return The number of records replayed.
+     */
+    int drain(@NonNull Consumer consumer, int maxRecords) {
+        List<VisitRecord> records = new ArrayList<>();
+        synchronized (fileLock) {
+            if (!flush()) {
+                return 0;
+            }
+            read(records, maxRecords);
+            publish();
+        }
+
+        for (VisitRecord record : records) {
+            consumer.accept(record);
+        }
+        return records.size();
+    }
+
+    /**
+     * Reads up to {@code maxRecords} pending records into {@code records}, checkpointing the read
+     * offset past them.
+     */
+    private void read(@NonNull List<VisitRecord> records, int maxRecords) {
+        FileChannel channel = this.channel;
+        long nowMillis = System.currentTimeMillis();
+        isExhausted = false;
+        try {
+            long position = readOffset;
+            while (position < fileEnd && records.size() < maxRecords) {
+                readBuffer.clear();
+                while (readBuffer.hasRemaining() && position + readBuffer.position() < fileEnd) {
+                    if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+                        break;
+                    }
+                }
+                readBuffer.flip();
+
+                int consumed = 0;
+                while (readBuffer.remaining() >= 4 && records.size() < maxRecords) {
+                    int length = readBuffer.getInt(readBuffer.position());
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        AdapterLog.e("Corrupt visit journal record at " + (position + consumed)
+                                + ", discarding remaining records");
+                        position = fileEnd;
+                        consumed = 0;
+                        break;
+                    }
+                    if (readBuffer.remaining() < 4 + length) {
+                        break;
+                    }
+
+                    readBuffer.getInt();
+                    int payloadEnd = readBuffer.position() + length;
+                    int limit = readBuffer.limit();
+                    byte kind = readBuffer.get(readBuffer.position());
+                    readBuffer.limit(payloadEnd);
+                    VisitRecord record = kind == KIND_TOMBSTONE ? null : decode(readBuffer);
+                    readBuffer.limit(limit);
+                    readBuffer.position(payloadEnd);
+
+                    if (record != null) {
+                        replay(position + consumed, kind, record, nowMillis, records);
+                    }
+                    consumed += 4 + length;
+                }
+
+                if (consumed == 0 && position < fileEnd) {
+                    AdapterLog.e("Truncated visit journal record at " + position
+                            + ", discarding remaining records");
+                    position = fileEnd;
+                    break;
+                }
+                position += consumed;
+                writeReadOffset(position);
+            }
+
+            if (position >= fileEnd) {
+                reset();
+                placeTemplates.clear();
+            }
+        } catch (IOException e) {
+            AdapterLog.e("Failed to replay visit journal", e);
+        }
+    }
+
+    /**
+     * Adds a decoded record to those to replay, unless it has expired.
+     */
+    private void replay(long offset, byte kind, @NonNull VisitRecord record, long nowMillis,
+                        @NonNull List<VisitRecord> records) {
+        int visits = kind == KIND_ENTER_AND_EXIT ? 2 : 1;
+        pendingVisits = Math.max(0, pendingVisits - visits);
+        if (kind == KIND_ENTER) {
+            Long entryOffset = pendingEntries.get(record.visitId);
+            if (entryOffset != null && entryOffset == offset) {
+                pendingEntries.remove(record.visitId);
+            }
+        }
+
+        if (isExpired(kind == KIND_ENTER ? record.arrivalTimeInMillis : record.departureTimeInMillis, nowMillis)) {
+            evictedCount.addAndGet(visits);
+            return;
+        }
+        if (kind == KIND_ENTER_AND_EXIT) {
+            records.add(new VisitRecord(RegionEvent.BOUNDARY_EVENT_ENTER,
+                    record.visitId,
+                    record.placeId,
+                    record.placeName,
+                    record.arrivalTimeInMillis,
+                    0,
+                    0,
+                    record.placeProperties));
+        }
+        records.add(record);
+    }
+
+    /**
+     * Commits any staged appends to disk, opening the journal first if needed.  Called by the
+     * group commit on the executor, and by replay.
+     *
+     * @return {@code false} if the journal is unavailable or the write failed.
+     */
+    boolean flush() {
+        synchronized (fileLock) {
+            ByteBuffer staged;
+            int visits;
+            synchronized (this) {
+                isCommitScheduled = false;
+                isCommitDue = false;
+                staged = stagingBuffer;
+                visits = stagedVisits;
+                if (staged.position() > 0) {
+                    stagingBuffer = spareBuffer != null ? spareBuffer : ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+                    spareBuffer = null;
+                    stagedVisits = 0;
+                    committingVisits = visits;
+                    committingBytes = staged.position();
+                }
+            }
+            if (!open()) {
+                synchronized (this) {
+                    committingVisits = 0;
+                    committingBytes = 0;
+                }
+                droppedCount.addAndGet(visits);
+                return false;
+            }
+            if (staged.position() == 0) {
+                return true;
+            }
+
+            staged.flip();
+            boolean isCommitted = commit(staged, visits);
+            staged.clear();
+            synchronized (this) {
+                committingVisits = 0;
+                committingBytes = 0;
+                if (staged.capacity() == WRITE_BUFFER_SIZE) {
+                    spareBuffer = staged;
+                }
+            }
+            publish();
+            return isCommitted;
+        }
+    }
+
+    /**
+     * Writes staged records to disk, folding exits into their pending entries and compacting the
+     * journal, or dropping records, to keep within its limits.
+     */
+    private boolean commit(@NonNull ByteBuffer staged, int visits) {
+        int committed = 0;
+        while (staged.remaining() >= 4) {
+            int length = staged.getInt();
+            int start = staged.position();
+            int end = start + length;
+            byte kind = staged.get(start);
+            staged.position(start + VISIT_ID_POSITION);
+            String visitId = getString(staged);
+            staged.position(start);
+            committed++;
+
+            // Folding an exit into its entry leaves the entry's bytes behind, so every record
+            // needs room for one more visit and the whole record
+            int size = 4 + length;
+            if (!fits(size) && (isExhausted || !compact(size, System.currentTimeMillis()) || !fits(size))) {
+                isExhausted = true;
+                AdapterLog.w("Visit journal full, dropping visit " + visitId);
+                droppedCount.incrementAndGet();
+                staged.position(end);
+                continue;
+            }
+            if (writeBuffer.remaining() < size && !writeOut()) {
+                droppedCount.addAndGet(visits - committed + 1);
+                recount();
+                return false;
+            }
+
+            if (isCoalescing && kind == KIND_EXIT) {
+                Long entryOffset = pendingEntries.remove(visitId);
+                if (entryOffset != null && writeKind(entryOffset, KIND_TOMBSTONE)) {
+                    staged.put(start, KIND_ENTER_AND_EXIT);
+                    coalescedCount.incrementAndGet();
+                }
+            }
+
+            long offset = fileEnd + writeBuffer.position();
+            int limit = staged.limit();
+            staged.limit(end);
+            writeBuffer.putInt(length);
+            writeBuffer.put(staged);
+            staged.limit(limit);
+            if (kind == KIND_ENTER) {
+                pendingEntries.put(visitId, offset);
+            }
+            pendingVisits++;
+        }
+
+        if (!writeOut()) {
+            recount();
+            return false;
+        }
+        try {
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            AdapterLog.e("Failed to write visit journal", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the write buffer to the end of the journal, without forcing it to disk.
+     *
+     * @return {@code false} if the write failed, dropping what was buffered.
+     */
+    private boolean writeOut() {
+        if (writeBuffer.position() == 0) {
+            return true;
+        }
+
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                fileEnd += channel.write(writeBuffer, fileEnd);
+            }
+            return true;
+        } catch (IOException e) {
+            AdapterLog.e("Failed to write visit journal", e);
+            return false;
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Makes the pending records on disk visible to the counts read by other threads.
+     */
+    private void publish() {
+        int visits = pendingVisits;
+        long bytes = channel == null ? 0 : fileEnd - readOffset;
+        synchronized (this) {
+            committedVisits = visits;
+            committedBytes = bytes;
+        }
+    }
+
+    private boolean fits(int size) {
+        return fileEnd + writeBuffer.position() + size <= maxFileSize && pendingVisits < maxVisits;
+    }
+
+    private boolean isExpired(long timeMillis, long nowMillis) {
+        return maxAgeMillis > 0 && nowMillis - timeMillis > maxAgeMillis;
+    }
+
+    /**
+     * Rewrites the pending records without tombstones, expired records and, unless the policy is
+     * to drop new visits, the records the eviction policy selects to make room for an append of
+     * {@code size} bytes.
+     *
+     * @return {@code false} if the journal could not be rewritten.
+     */
+    private boolean compact(int size, long nowMillis) {
+        if (!writeOut()) {
+            return false;
+        }
+
+        final List<StoredRecord> records = new ArrayList<>();
+        final int[] tombstones = new int[1];
+        try {
+            scan(readOffset, (offset, payload) -> {
+                byte kind = payload.get(payload.position());
+                if (kind == KIND_TOMBSTONE) {
+                    tombstones[0]++;
+                    return;
+                }
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                ByteBuffer header = ByteBuffer.wrap(bytes);
+                header.position(1);
+                long arrival = header.getLong();
+                long departure = header.getLong();
+                header.getLong();
+                String visitId = getString(header);
+                records.add(new StoredRecord(bytes, visitId, kind == KIND_ENTER ? arrival : departure));
+            });
+        } catch (IOException | BufferUnderflowException e) {
+            AdapterLog.e("Failed to read visit journal for compaction", e);
+            return false;
+        }
+
+        // Tombstones and drained records are reclaimed by any rewrite
+        boolean isChanged = readOffset > HEADER_SIZE || tombstones[0] > 0;
+        long bytes = HEADER_SIZE;
+        int visits = 0;
+        List<StoredRecord> kept = new ArrayList<>(records.size());
+        for (StoredRecord record : records) {
+            if (isExpired(record.timeMillis, nowMillis)) {
+                evictedCount.addAndGet(visitsOf(record));
+                isChanged = true;
+                continue;
+            }
+            kept.add(record);
+            bytes += 4 + record.payload.length;
+            visits += visitsOf(record);
+        }
+
+        if (evictionPolicy != AirshipAdapter.CacheEvictionPolicy.DROP_NEWEST) {
+            long targetBytes = maxFileSize - size - (long) (maxFileSize * EVICTION_HEADROOM);
+            int targetVisits = maxVisits - 1 - (int) (maxVisits * EVICTION_HEADROOM);
+
+            if (evictionPolicy == AirshipAdapter.CacheEvictionPolicy.DROP_PAIRED_ENTRIES
+                    && (bytes > targetBytes || visits > targetVisits)) {
+                Set<String> exited = new HashSet<>();
+                for (StoredRecord record : kept) {
+                    if (record.kind() == KIND_EXIT) {
+                        exited.add(record.visitId);
+                    }
+                }
+                for (int i = 0; i < kept.size() && (bytes > targetBytes || visits > targetVisits); i++) {
+                    StoredRecord record = kept.get(i);
+                    if (record.kind() == KIND_ENTER_AND_EXIT) {
+                        record.payload[0] = KIND_EXIT;
+                        visits--;
+                        evictedCount.incrementAndGet();
+                        isChanged = true;
+                    } else if (record.kind() == KIND_ENTER && exited.contains(record.visitId)) {
+                        kept.remove(i--);
+                        bytes -= 4 + record.payload.length;
+                        visits--;
+                        evictedCount.incrementAndGet();
+                        isChanged = true;
+                    }
+                }
+            }
+
+            int evicted = 0;
+            while (evicted < kept.size() && (bytes > targetBytes || visits > targetVisits)) {
+                StoredRecord record = kept.get(evicted++);
+                bytes -= 4 + record.payload.length;
+                visits -= visitsOf(record);
+                evictedCount.addAndGet(visitsOf(record));
+            }
+            kept = kept.subList(evicted, kept.size());
+            isChanged |= evicted > 0;
+        }
+
+        if (!isChanged) {
+            return true;
+        }
+        if (!rewrite(kept)) {
+            return false;
+        }
+        AdapterLog.i("Compacted visit journal, " + pendingVisits + " visits pending");
+        return true;
+    }
+
+    private static int visitsOf(@NonNull StoredRecord record) {
+        return record.kind() == KIND_ENTER_AND_EXIT ? 2 : 1;
+    }
+
+    /**
+     * Replaces the journal with one holding only the given records.
+     */
+    private boolean rewrite(@NonNull List<StoredRecord> records) {
+        File temp = new File(file.getPath() + ".tmp");
+        FileChannel rewritten = null;
+        try {
+            rewritten = new RandomAccessFile(temp, "rw").getChannel();
+            rewritten.truncate(0);
+            headerBuffer.clear();
+            headerBuffer.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+            rewritten.write(headerBuffer, 0);
+
+            long position = HEADER_SIZE;
+            pendingEntries.clear();
+            pendingVisits = 0;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (StoredRecord record : records) {
+                if (record.kind() == KIND_ENTER) {
+                    pendingEntries.put(record.visitId, position);
+                }
+                pendingVisits += visitsOf(record);
+                length.clear();
+                length.putInt(record.payload.length).flip();
+                position += rewritten.write(length, position);
+                ByteBuffer payload = ByteBuffer.wrap(record.payload);
+                while (payload.hasRemaining()) {
+                    position += rewritten.write(payload, position);
+                }
+            }
+            rewritten.force(false);
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+            closeQuietly(channel);
+            channel = rewritten;
+            fileEnd = position;
+            readOffset = HEADER_SIZE;
+            return true;
+        } catch (IOException e) {
+            AdapterLog.e("Failed to compact visit journal", e);
+            closeQuietly(rewritten);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            // The journal may no longer match the pending counts, so recount it
+            recount();
+            return false;
+        }
+    }
+
+    /**
+     * Overwrites the kind of the record at {@code offset}, whether staged or on disk.
+     */
+    private boolean writeKind(long offset, byte kind) {
+        if (offset >= fileEnd) {
+            writeBuffer.put((int) (offset - fileEnd) + 4, kind);
+            return true;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            buffer.put(kind).flip();
+            channel.write(buffer, offset + 4);
+            return true;
+        } catch (IOException e) {
+            AdapterLog.e("Failed to update visit journal record", e);
+            return false;
+        }
+    }
+
+    /**
+     * Counts the pending visits and indexes the pending entries of a journal opened from disk.
+     */
+    private void recount() {
+        pendingVisits = 0;
+        pendingEntries.clear();
+        try {
+            scan(readOffset, (offset, payload) -> {
+                byte kind = payload.get(payload.position());
+                if (kind == KIND_TOMBSTONE) {
+                    return;
+                }
+                pendingVisits += kind == KIND_ENTER_AND_EXIT ? 2 : 1;
+                if (kind == KIND_ENTER) {
+                    payload.position(payload.position() + VISIT_ID_POSITION);
+                    pendingEntries.put(getString(payload), offset);
+                }
+            });
+        } catch (IOException | BufferUnderflowException e) {
+            AdapterLog.e("Failed to read visit journal", e);
+        }
+    }
+
+    /**
+     * Visits every complete record on disk from {@code from}, stopping at the first corrupt or
+     * truncated record.
+     */
+    private void scan(long from, @NonNull RecordVisitor visitor) throws IOException {
+        long position = from;
+        while (position < fileEnd) {
+            readBuffer.clear();
+            while (readBuffer.hasRemaining() && position + readBuffer.position() < fileEnd) {
+                if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            readBuffer.flip();
+
+            int consumed = 0;
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length <= 0 || length > MAX_RECORD_SIZE || readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                readBuffer.getInt();
+                int payloadEnd = readBuffer.position() + length;
+                int limit = readBuffer.limit();
+                readBuffer.limit(payloadEnd);
+                visitor.visit(position + consumed, readBuffer);
+                readBuffer.limit(limit);
+                readBuffer.position(payloadEnd);
+                consumed += 4 + length;
+            }
+            if (consumed == 0) {
+                return;
+            }
+            position += consumed;
+        }
+    }
+
+    private void scheduleCommit() {
+        if (stagingBuffer.position() >= WRITE_BUFFER_SIZE) {
+            if (!isCommitDue) {
+                isCommitDue = true;
+                scheduler.execute(this::flush);
+            }
+        } else if (!isCommitScheduled) {
+            isCommitScheduled = true;
+            scheduler.schedule(this::flush, GROUP_COMMIT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens the journal, unless the executor has already.
+     */
+    private void awaitOpen() {
+        if (!isOpened) {
+            synchronized (fileLock) {
+                open();
+            }
+        }
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(HEADER_SIZE);
+        fileEnd = HEADER_SIZE;
+        pendingVisits = 0;
+        pendingEntries.clear();
+        writeReadOffset(HEADER_SIZE);
+        channel.force(false);
+    }
+
+    private void writeReadOffset(long offset) throws IOException {
+        readOffset = offset;
+        headerBuffer.clear();
+        headerBuffer.putLong(offset).flip();
+        channel.write(headerBuffer, READ_OFFSET_POSITION);
+    }
+
+    private boolean open() {
+        if (channel != null) {
+            return true;
+        } else if (openFailed) {
+            return false;
+        }
+
+        try {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            long size = channel.size();
+            headerBuffer.clear();
+            if (size >= HEADER_SIZE) {
+                channel.read(headerBuffer, 0);
+                headerBuffer.flip();
+            }
+
+            if (size >= HEADER_SIZE
+                    && headerBuffer.getInt() == MAGIC
+                    && headerBuffer.getInt() == VERSION) {
+                fileEnd = size;
+                readOffset = Math.min(Math.max(headerBuffer.getLong(), HEADER_SIZE), size);
+            } else {
+                if (size > 0) {
+                    AdapterLog.w("Unrecognized visit journal, discarding " + size + " bytes");
+                }
+                headerBuffer.clear();
+                headerBuffer.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+                channel.truncate(0);
+                channel.write(headerBuffer, 0);
+                channel.force(false);
+                fileEnd = HEADER_SIZE;
+                readOffset = HEADER_SIZE;
+            }
+            this.channel = channel;
+            if (readOffset < fileEnd) {
+                recount();
+            }
+            publish();
+            return true;
+        } catch (IOException e) {
+            AdapterLog.e("Unable to open visit journal " + file, e);
+            openFailed = true;
+            return false;
+        } finally {
+            isOpened = true;
+        }
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                AdapterLog.w("Failed to close visit journal", e);
+            }
+        }
+    }
+
+    private static void encode(@NonNull VisitRecord record, @NonNull ByteBuffer buffer) {
+        buffer.put((byte) record.boundaryEvent);
+        buffer.putLong(record.arrivalTimeInMillis);
+        buffer.putLong(record.departureTimeInMillis);
+        buffer.putLong(record.dwellTimeInMillis);
+        putString(buffer, record.visitId);
+        putString(buffer, record.placeId);
+        putString(buffer, record.placeName);
+        Map<String, String> attributes = record.placeProperties.attributes;
+        buffer.putShort((short) attributes.size());
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            putString(buffer, attribute.getKey());
+            putString(buffer, attribute.getValue());
+        }
+    }
+
+    /**
+     * Decodes a record.  Records of a recently replayed place share its identifier, name and
+     * attribute snapshot, so a large backlog holds each place's data once rather than per visit.
+     */
+    @Nullable
+    private VisitRecord decode(@NonNull ByteBuffer buffer) {
+        try {
+            int boundaryEvent = buffer.get();
+            if (boundaryEvent == KIND_ENTER_AND_EXIT) {
+                boundaryEvent = RegionEvent.BOUNDARY_EVENT_EXIT;
+            }
+            long arrival = buffer.getLong();
+            long departure = buffer.getLong();
+            long dwell = buffer.getLong();
+            String visitId = getString(buffer);
+            String placeId = getString(buffer);
+            String placeName = getString(buffer);
+
+            int attributeCount = buffer.getShort() & 0xFFFF;
+            PlaceProperties properties = PlaceProperties.EMPTY;
+            if (attributeCount > 0) {
+                Map<String, String> attributes = new LinkedHashMap<>(attributeCount * 2);
+                for (int i = 0; i < attributeCount; i++) {
+                    attributes.put(getString(buffer), getString(buffer));
+                }
+                properties = PlaceProperties.of(attributes);
+            }
+
+            VisitRecord template = placeId == null ? null : placeTemplates.get(placeId);
+            if (template != null) {
+                placeId = template.placeId;
+                if (placeName != null && placeName.equals(template.placeName)) {
+                    placeName = template.placeName;
+                }
+                if (properties.attributes.equals(template.placeProperties.attributes)) {
+                    properties = template.placeProperties;
+                }
+            }
+            VisitRecord record = new VisitRecord(boundaryEvent, visitId, placeId, placeName,
+                    arrival, departure, dwell, properties);
+            if (placeId != null) {
+                placeTemplates.put(placeId, record);
+            }
+            return record;
+        } catch (BufferUnderflowException e) {
+            AdapterLog.e("Skipping malformed visit journal record");
+            return null;
+        }
+    }
+
+    private static void putString(@NonNull ByteBuffer buffer, @Nullable String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new BufferOverflowException();
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    @Nullable
+    private static String getString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+
+/**
+ * The subset of a Gimbal {@link Visit} needed to create Airship events, detached from the
+ * Gimbal object graph so that it may be journaled and replayed in a later app process.
+ */
+final class VisitRecord {
+    final int boundaryEvent;
+    final String visitId;
+    final String placeId;
+    @Nullable final String placeName;
+    final long arrivalTimeInMillis;
+    final long departureTimeInMillis;
+    final long dwellTimeInMillis;
+    @NonNull final PlaceProperties placeProperties;
+
+    VisitRecord(int boundaryEvent,
+                String visitId,
+                String placeId,
+                @Nullable String placeName,
+                long arrivalTimeInMillis,
+                long departureTimeInMillis,
+                long dwellTimeInMillis,
+                @NonNull PlaceProperties placeProperties) {
+        this.boundaryEvent = boundaryEvent;
+        this.visitId = visitId;
+        this.placeId = placeId;
+        this.placeName = placeName;
+        this.arrivalTimeInMillis = arrivalTimeInMillis;
+        this.departureTimeInMillis = departureTimeInMillis;
+        this.dwellTimeInMillis = dwellTimeInMillis;
+        this.placeProperties = placeProperties;
+    }
+
+    @NonNull
+    static VisitRecord from(@NonNull Visit visit, int boundaryEvent, @NonNull PlacePropertiesCache cache) {
+        Place place = visit.getPlace();
+        return new VisitRecord(boundaryEvent,
+                visit.getVisitID(),
+                place.getIdentifier(),
+                place.getName(),
+                visit.getArrivalTimeInMillis(),
+                visit.getDepartureTimeInMillis(),
+                visit.getDwellTimeInMillis(),
+                cache.get(place.getIdentifier(), place.getAttributes()));
+    }
+}
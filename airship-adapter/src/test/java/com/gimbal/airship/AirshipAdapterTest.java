@@ -0,0 +1,348 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import androidx.annotation.NonNull;
+
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.CustomEvent;
+import com.urbanairship.analytics.Event;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class AirshipAdapterTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final int EXIT = RegionEvent.BOUNDARY_EVENT_EXIT;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryEventSink sink = new InMemoryEventSink();
+    private final Visit visit = TestFakes.visit("v1");
+    private AirshipAdapter adapter;
+
+    @Before
+    public void setUp() {
+        adapter = new AirshipAdapter(TestFakes.context(folder.getRoot()), sink);
+    }
+
+    @After
+    public void tearDown() {
+        adapter.configStore.flush();
+    }
+
+    @Test
+    public void untrackedEventsAreNotCreated() {
+        adapter.createAirshipEvent(TestFakes.record("v1", ENTER), visit);
+        adapter.createAirshipEvent(TestFakes.record("v1", EXIT), visit);
+
+        assertEquals(0, sink.getEventCount());
+    }
+
+    @Test
+    public void eventsAreCreatedForTrackedRoutesOnly() {
+        adapter.setShouldTrackCustomEntryEvent(true);
+        adapter.createAirshipEvent(TestFakes.record("v1", ENTER), visit);
+        adapter.createAirshipEvent(TestFakes.record("v1", EXIT), visit);
+
+        assertEquals(Collections.singletonList(AirshipAdapter.CUSTOM_ENTRY_EVENT_NAME), describe(sink.getEvents()));
+    }
+
+    @Test
+    public void regionEventsAreTrackedForEntriesAndExits() {
+        adapter.setShouldTrackRegionEvent(true);
+        adapter.createAirshipEvent(TestFakes.record("v1", ENTER), visit);
+        adapter.createAirshipEvent(TestFakes.record("v1", EXIT), visit);
+
+        assertEquals(Arrays.asList("region:" + ENTER, "region:" + EXIT), describe(sink.getEvents()));
+    }
+
+    @Test
+    public void trackingChangesApplyToLaterVisits() {
+        adapter.setShouldTrackCustomExitEvent(true);
+        adapter.createAirshipEvent(TestFakes.record("v1", EXIT), visit);
+        adapter.configure(adapter.getConfig().toBuilder().setTrackCustomExitEvents(false).build());
+        adapter.createAirshipEvent(TestFakes.record("v2", EXIT), visit);
+
+        assertEquals(Collections.singletonList(AirshipAdapter.CUSTOM_EXIT_EVENT_NAME), describe(sink.getEvents()));
+    }
+
+    @Test
+    public void subscribedListenersAreNotifiedOfUntrackedEvents() {
+        List<String> notified = new ArrayList<>();
+        adapter.addListener(new AirshipAdapter.Listener() {
+            @Override
+            public void onRegionExited(@NonNull RegionEvent event, @NonNull Visit visit) {
+                notified.add(visit.getVisitID());
+            }
+        }, AirshipAdapter.EVENT_REGION_EXIT);
+
+        adapter.createAirshipEvent(TestFakes.record("v1", ENTER), visit);
+        adapter.createAirshipEvent(TestFakes.record("v1", EXIT), visit);
+
+        assertEquals(Collections.singletonList("v1"), notified);
+        assertEquals(0, sink.getEventCount());
+    }
+
+    @Test
+    public void visitsAreCachedWhateverTheRoutesUntilAirshipIsReady() {
+        sink.setReady(false);
+        adapter.placeEventListener.onVisitStart(visit);
+        adapter.placeEventListener.onVisitEnd(visit);
+        assertEquals(2, adapter.cachedVisits.getPendingCount());
+
+        // Tracking turned on before the replay applies to the cached visits
+        adapter.setShouldTrackRegionEvent(true);
+        sink.setReady(true);
+        assertFalse(adapter.replayCachedVisits(Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("region:" + ENTER, "region:" + EXIT), describe(sink.getEvents()));
+    }
+
+    @Test
+    public void setEventSinkReplacesThePrimarySink() {
+        InMemoryEventSink replacement = new InMemoryEventSink();
+        adapter.setEventSink(replacement);
+        adapter.setShouldTrackRegionEvent(true);
+        adapter.createAirshipEvent(TestFakes.record("v1", ENTER), visit);
+
+        assertEquals(0, sink.getEventCount());
+        assertEquals(Collections.singletonList("region:" + ENTER), describe(replacement.getEvents()));
+    }
+
+    @Test
+    public void visitsCachedForTheOldSinkAreReplayedToANewReadySink() throws InterruptedException {
+        sink.setReady(false);
+        adapter.setShouldTrackRegionEvent(true);
+        adapter.placeEventListener.onVisitStart(visit);
+        assertEquals(1, adapter.cachedVisits.getPendingCount());
+
+        InMemoryEventSink replacement = new InMemoryEventSink();
+        adapter.setEventSink(replacement);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (replacement.getEventCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList("region:" + ENTER), describe(replacement.getEvents()));
+    }
+
+    @Test
+    public void nullEventSinkRestoresAirship() {
+        adapter.setEventSink(null);
+        adapter.setShouldTrackRegionEvent(true);
+        adapter.placeEventListener.onVisitStart(visit);
+
+        // Airship is never ready in unit tests, so the visit is cached
+        assertEquals(1, adapter.cachedVisits.getPendingCount());
+        assertEquals(0, sink.getEventCount());
+    }
+
+    @Test
+    public void visitsWithoutIdentifiersOrPlaceAreHandled() {
+        sink.setReady(false);
+        Place placeWithoutId = TestFakes.place("p1", "Place");
+        when(placeWithoutId.getIdentifier()).thenReturn(null);
+        Visit withoutIds = TestFakes.visit("v1", placeWithoutId);
+        when(withoutIds.getVisitID()).thenReturn(null);
+        Visit withoutPlace = TestFakes.visit("v2");
+        when(withoutPlace.getPlace()).thenReturn(null);
+
+        adapter.placeEventListener.onVisitStart(withoutIds);
+        adapter.placeEventListener.onVisitEnd(withoutIds);
+        adapter.placeEventListener.onVisitStart(withoutPlace);
+        adapter.placeEventListener.onVisitEnd(withoutPlace);
+
+        assertTrue(adapter.getOpenVisits().isEmpty());
+        // Only the visits with a place are cached
+        assertEquals(2, adapter.cachedVisits.getPendingCount());
+    }
+
+    @Test
+    public void replayMovesPastVisitsThatFailToBeHandled() {
+        List<String> attempted = new ArrayList<>();
+        AirshipAdapter failing = new AirshipAdapter(TestFakes.context(folder.getRoot()), new EventSink() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void addEvent(@NonNull Event event) {
+                attempted.add(((RegionEvent) event).getBoundaryEvent() + "");
+                throw new IllegalStateException("Always fails");
+            }
+        });
+        failing.setShouldTrackRegionEvent(true);
+        // Neither a missing visit ID nor a disabled dedup window hides the failed visits
+        failing.setDuplicateVisitWindow(0);
+        failing.cachedVisits.append(new VisitRecord(ENTER, null, "place", "Place",
+                1_600_000_000_000L, 0, 0, PlaceProperties.EMPTY));
+        failing.cachedVisits.append(TestFakes.record("v1", ENTER));
+        failing.cachedVisits.append(TestFakes.record("v1", EXIT));
+
+        assertFalse(failing.replayCachedVisits(Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("" + ENTER, "" + ENTER, "" + EXIT), attempted);
+        assertEquals(0, failing.cachedVisits.getPendingCount());
+        failing.configStore.flush();
+    }
+
+    @Test
+    public void restoreNotifiesCallbacksBeforeReturning() {
+        List<RestoreResult> results = new ArrayList<>();
+        adapter.addRestoreCallback(results::add);
+        adapter.restore();
+
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).isStarted());
+        assertFalse(results.get(0).isBackground());
+
+        // Callbacks added once the adapter is restored are called at once
+        adapter.addRestoreCallback(results::add);
+        assertEquals(2, results.size());
+        assertSame(results.get(0), results.get(1));
+    }
+
+    @Test
+    public void restoreKeepsTheStartedStateWhenAirshipIsNotReady() throws IOException {
+        File directory = folder.newFolder();
+        ConfigStore stored = new ConfigStore(TestFakes.context(directory),
+                new File(directory, ConfigStore.FILE_NAME), AdapterExecutors.io());
+        stored.setStarted(true, "api-key");
+        stored.flush();
+
+        AirshipAdapter restored = new AirshipAdapter(TestFakes.context(directory), sink);
+        restored.restore();
+
+        // Airship is never ready in unit tests, so the start is left to the next restore
+        assertFalse(restored.isStarted());
+        assertTrue(restored.configStore.get().isStarted);
+        assertEquals("api-key", restored.configStore.get().apiKey);
+    }
+
+    @Test
+    public void restoreInBackgroundReturnsBeforeRestoring() throws InterruptedException {
+        LinkedBlockingQueue<RestoreResult> results = new LinkedBlockingQueue<>();
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        adapter.addRestoreCallback(result -> {
+            threads.add(Thread.currentThread());
+            results.add(result);
+        });
+
+        CountDownLatch release = new CountDownLatch(1);
+        AdapterExecutors.scheduler().execute(() -> awaitQuietly(release));
+        try {
+            adapter.restoreInBackground();
+            assertTrue(results.isEmpty());
+        } finally {
+            release.countDown();
+        }
+
+        RestoreResult result = results.poll(5, TimeUnit.SECONDS);
+        assertTrue(result.isBackground());
+        assertFalse(result.isStarted());
+        assertNotSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void stopWaitsForABackgroundRestore() throws Exception {
+        Thread scheduler = threadOf(AdapterExecutors.scheduler());
+        LinkedBlockingQueue<RestoreResult> results = new LinkedBlockingQueue<>();
+
+        // The restore is held up loading the config, with the lifecycle lock held
+        CountDownLatch release = new CountDownLatch(1);
+        AdapterExecutors.io().execute(() -> awaitQuietly(release));
+        AirshipAdapter restored = new AirshipAdapter(TestFakes.context(folder.newFolder()), sink);
+        Thread stopping = new Thread(restored::stop);
+        try {
+            restored.addRestoreCallback(results::add);
+            restored.restoreInBackground();
+            awaitState(scheduler, "restoreState");
+
+            stopping.start();
+            awaitState(stopping, null);
+            assertEquals(Thread.State.BLOCKED, stopping.getState());
+            assertTrue(results.isEmpty());
+        } finally {
+            release.countDown();
+        }
+
+        stopping.join(5000);
+        assertFalse(stopping.isAlive());
+        assertFalse(results.poll(5, TimeUnit.SECONDS).isStarted());
+    }
+
+    private static Thread threadOf(Executor executor) throws Exception {
+        LinkedBlockingQueue<Thread> thread = new LinkedBlockingQueue<>();
+        executor.execute(() -> thread.add(Thread.currentThread()));
+        return thread.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits until {@code thread} is inside {@code method}, or blocked if {@code method} is null.
+     */
+    private static void awaitState(Thread thread, String method) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (method == null ? thread.getState() == Thread.State.BLOCKED : isIn(thread, method)) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail(thread.getName() + " did not reach " + (method == null ? "a lock" : method));
+    }
+
+    private static boolean isIn(Thread thread, String method) {
+        for (StackTraceElement element : thread.getStackTrace()) {
+            if (element.getMethodName().equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<String> describe(List<Event> events) {
+        List<String> descriptions = new ArrayList<>(events.size());
+        for (Event event : events) {
+            if (event instanceof RegionEvent) {
+                descriptions.add("region:" + ((RegionEvent) event).getBoundaryEvent());
+            } else {
+                descriptions.add(((CustomEvent) event).getEventName());
+            }
+        }
+        return descriptions;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class ConfigStoreTest {
+    private static final String PREFERENCE_NAME = "com.urbanairship.gimbal.preferences";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Object> legacyPreferences = new HashMap<>();
+    private final SharedPreferences preferences = mock(SharedPreferences.class);
+    private final SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+    private final Context context = mock(Context.class);
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), ConfigStore.FILE_NAME);
+        when(context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE)).thenReturn(preferences);
+        when(preferences.getAll()).thenAnswer(invocation -> legacyPreferences);
+        when(preferences.getBoolean(anyString(), anyBoolean())).thenAnswer(invocation -> {
+            Object value = legacyPreferences.get(invocation.<String>getArgument(0));
+            return value == null ? invocation.getArgument(1) : value;
+        });
+        when(preferences.getString(anyString(), nullable(String.class))).thenAnswer(invocation -> {
+            Object value = legacyPreferences.get(invocation.<String>getArgument(0));
+            return value == null ? invocation.getArgument(1) : value;
+        });
+        when(preferences.edit()).thenReturn(editor);
+        when(editor.clear()).thenReturn(editor);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void storedStateIsReloaded() {
+        ConfigStore store = store();
+        store.setStarted(true, "api-key");
+        store.setConfig(AdapterConfig.newBuilder().setTrackCustomExitEvents(true).build());
+        store.flush();
+
+        ConfigStore.State state = store().get();
+        assertTrue(state.isStarted);
+        assertEquals("api-key", state.apiKey);
+        assertEquals(AdapterConfig.newBuilder().setTrackCustomExitEvents(true).build(), state.config);
+    }
+
+    @Test
+    public void updatesInQuickSuccessionAreWrittenOnce() {
+        ConfigStore store = store();
+        // Waits for the load, which writes the store file when there is none yet
+        store.get();
+        long writes = store.getWriteCount();
+        store.setStarted(true, "api-key");
+        store.setApiKey("other-key");
+        store.setConfig(AdapterConfig.newBuilder().setTrackRegionEvents(true).build());
+        store.flush();
+        store.flush();
+
+        assertEquals(writes + 1, store.getWriteCount());
+    }
+
+    @Test
+    public void corruptFileFallsBackToDefaults() throws IOException {
+        ConfigStore store = store();
+        store.setStarted(true, "api-key");
+        store.flush();
+
+        // Flip a byte of the API key, so that the CRC no longer matches
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(12);
+            int value = out.read();
+            out.seek(12);
+            out.write(value ^ 0xFF);
+        }
+
+        ConfigStore.State state = store().get();
+        assertFalse(state.isStarted);
+        assertNull(state.apiKey);
+        assertEquals(AdapterConfig.DEFAULT, state.config);
+    }
+
+    @Test
+    public void truncatedFileFallsBackToDefaults() throws IOException {
+        ConfigStore store = store();
+        store.setStarted(true, "api-key");
+        store.flush();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 3);
+        }
+
+        ConfigStore.State state = store().get();
+        assertFalse(state.isStarted);
+        assertNull(state.apiKey);
+    }
+
+    @Test
+    public void legacyPreferencesAreMigratedAndCleared() {
+        legacyPreferences.put("com.urbanairship.gimbal.is_started", true);
+        legacyPreferences.put("com.urbanairship.gimbal.api_key", "legacy-key");
+        legacyPreferences.put("com.gimbal.track_region_event", true);
+        legacyPreferences.put("com.gimbal.track_custom_entry", true);
+
+        ConfigStore.State state = store().get();
+        assertTrue(state.isStarted);
+        assertEquals("legacy-key", state.apiKey);
+        assertTrue(state.config.isTrackRegionEvents());
+        assertTrue(state.config.isTrackCustomEntryEvents());
+        assertFalse(state.config.isTrackCustomExitEvents());
+        assertTrue(file.exists());
+        verify(editor).clear();
+        verify(editor).apply();
+
+        // Once migrated, the store file is read and the preferences are not consulted again
+        legacyPreferences.clear();
+        assertEquals("legacy-key", store().get().apiKey);
+    }
+
+    @Test
+    public void missingLegacyPreferencesAreNotCleared() {
+        ConfigStore.State state = store().get();
+
+        assertFalse(state.isStarted);
+        assertNull(state.apiKey);
+        verify(preferences, never()).edit();
+    }
+
+    @Test
+    public void corruptFileDoesNotMigrateLegacyPreferencesAgain() throws IOException {
+        ConfigStore store = store();
+        store.get();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(2);
+        }
+        legacyPreferences.put("com.urbanairship.gimbal.api_key", "stale-key");
+
+        assertNull(store().get().apiKey);
+        verify(preferences, never()).getString(anyString(), nullable(String.class));
+    }
+
+    private ConfigStore store() {
+        return new ConfigStore(context, file, scheduler);
+    }
+}
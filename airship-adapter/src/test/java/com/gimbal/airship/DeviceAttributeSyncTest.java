@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import com.gimbal.android.DeviceAttributesManager;
+import com.urbanairship.UAirship;
+import com.urbanairship.app.ActivityMonitor;
+import com.urbanairship.app.ApplicationListener;
+import com.urbanairship.channel.AirshipChannel;
+import com.urbanairship.contacts.Contact;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+public class DeviceAttributeSyncTest {
+    private static final String NAMED_USER_ID = "ua.nameduser.id";
+    // Longer than the sync's debounce
+    private static final long SYNC_TIMEOUT_MS = 5000;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final ActivityMonitor activityMonitor = mock(ActivityMonitor.class);
+    private final DeviceAttributesManager deviceAttributesManager = mock(DeviceAttributesManager.class);
+    private final Contact contact = mock(Contact.class);
+    private final UAirship airship = mock(UAirship.class);
+    private final DeviceAttributeSync sync = new DeviceAttributeSync(mock(Context.class), scheduler,
+            activityMonitor, deviceAttributesManager);
+
+    @Before
+    public void setUp() {
+        AirshipChannel channel = mock(AirshipChannel.class);
+        when(channel.getId()).thenReturn("channel");
+        when(airship.getChannel()).thenReturn(channel);
+        when(airship.getContact()).thenReturn(contact);
+        when(contact.getNamedUserId()).thenReturn("alice");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void namedUserChangesArePushedOnTheNextVisit() {
+        sync.start(airship);
+        verify(deviceAttributesManager, timeout(SYNC_TIMEOUT_MS)).setDeviceAttribute(NAMED_USER_ID, "alice");
+
+        when(contact.getNamedUserId()).thenReturn("bob");
+        sync.onVisit();
+        verify(deviceAttributesManager, timeout(SYNC_TIMEOUT_MS)).setDeviceAttribute(NAMED_USER_ID, "bob");
+    }
+
+    @Test
+    public void visitsDoNotSyncAnUnchangedNamedUser() {
+        sync.start(airship);
+        verify(deviceAttributesManager, timeout(SYNC_TIMEOUT_MS)).setDeviceAttribute(NAMED_USER_ID, "alice");
+        awaitIdle();
+
+        sync.onVisit();
+        assertEquals(0, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void namedUserIsCheckedOnForeground() {
+        sync.start(airship);
+        verify(deviceAttributesManager, timeout(SYNC_TIMEOUT_MS)).setDeviceAttribute(NAMED_USER_ID, "alice");
+        ArgumentCaptor<ApplicationListener> listener = ArgumentCaptor.forClass(ApplicationListener.class);
+        verify(activityMonitor).addApplicationListener(listener.capture());
+
+        when(contact.getNamedUserId()).thenReturn("bob");
+        listener.getValue().onForeground(0);
+        verify(deviceAttributesManager, timeout(SYNC_TIMEOUT_MS)).setDeviceAttribute(NAMED_USER_ID, "bob");
+    }
+
+    @Test
+    public void visitsAreIgnoredOnceStopped() {
+        sync.start(airship);
+        verify(deviceAttributesManager, timeout(SYNC_TIMEOUT_MS)).setDeviceAttribute(NAMED_USER_ID, "alice");
+        sync.stop();
+        verify(activityMonitor).removeApplicationListener(any(ApplicationListener.class));
+
+        when(contact.getNamedUserId()).thenReturn("bob");
+        sync.onVisit();
+        assertEquals(0, scheduler.getQueue().size());
+        verify(deviceAttributesManager, never()).setDeviceAttribute(NAMED_USER_ID, "bob");
+    }
+
+    private void awaitIdle() {
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+        while (scheduler.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+}
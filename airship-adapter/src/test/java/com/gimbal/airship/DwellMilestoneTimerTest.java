@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+public class DwellMilestoneTimerTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    // Long enough that nothing fires while a test runs
+    private static final long FAR_MILLIS = 60_000;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final List<String> reached = Collections.synchronizedList(new ArrayList<>());
+    private final DwellMilestoneTimer timer = new DwellMilestoneTimer(scheduler,
+            (entry, milestoneMillis) -> reached.add(entry.visitId + ":" + milestoneMillis));
+
+    public DwellMilestoneTimerTest() {
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void setMilestonesSortsAndDropsInvalidMilestones() {
+        timer.setMilestones(new long[] {0, -5});
+        assertFalse(timer.hasMilestones());
+
+        timer.setMilestones(new long[] {FAR_MILLIS, 20, 20});
+        assertTrue(timer.hasMilestones());
+    }
+
+    @Test
+    public void openVisitsShareOneOneShotWakeup() {
+        timer.setMilestones(new long[] {FAR_MILLIS, 2 * FAR_MILLIS});
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            timer.open(entry("v" + i, now), now);
+        }
+
+        assertEquals(100, timer.getOpenCount());
+        assertEquals(1, scheduler.getQueue().size());
+        assertFalse(((RunnableScheduledFuture<?>) scheduler.getQueue().peek()).isPeriodic());
+    }
+
+    @Test
+    public void closingTheLastVisitCancelsTheWakeup() {
+        timer.setMilestones(new long[] {FAR_MILLIS});
+        long now = System.currentTimeMillis();
+        timer.open(entry("v1", now), now);
+        timer.open(entry("v2", now), now);
+
+        timer.close("v1");
+        assertEquals(1, scheduler.getQueue().size());
+        timer.close("v2");
+        assertEquals(0, timer.getOpenCount());
+        assertEquals(0, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void milestonesAreReportedInOrderAndRearmed() throws InterruptedException {
+        timer.setMilestones(new long[] {20, 60});
+        long now = System.currentTimeMillis();
+        timer.open(entry("v1", now), now);
+        timer.open(entry("v2", now + 20), now);
+
+        awaitReached(4);
+        assertEquals(Arrays.asList("v1:20", "v2:20", "v1:60", "v2:60"), reached);
+        assertEquals(0, timer.getOpenCount());
+        assertEquals(0, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void lateOpenSkipsMilestonesAlreadyPassed() throws InterruptedException {
+        timer.setMilestones(new long[] {10, 20, 50});
+        long now = System.currentTimeMillis();
+        timer.open(entry("v1", now - 30), now);
+
+        awaitReached(1);
+        assertEquals(Collections.singletonList("v1:50"), reached);
+    }
+
+    @Test
+    public void closedVisitsAreNotReported() throws InterruptedException {
+        timer.setMilestones(new long[] {20});
+        long now = System.currentTimeMillis();
+        timer.open(entry("v1", now), now);
+        timer.open(entry("v2", now), now);
+        timer.close("v1");
+
+        awaitReached(1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("v2:20"), reached);
+    }
+
+    private void awaitReached(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reached.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static VisitRecord entry(String visitId, long arrivalTimeInMillis) {
+        return new VisitRecord(ENTER, visitId, "place", "Place",
+                arrivalTimeInMillis, 0, 0, PlaceProperties.EMPTY);
+    }
+}
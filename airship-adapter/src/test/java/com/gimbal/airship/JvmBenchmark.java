@@ -0,0 +1,354 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.Event;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.Assume;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adapter code on the JVM that runs the unit tests, so that regressions show up
+ * between builds without a device.  Benchmarks are skipped unless the unit tests are run with
+ * {@code -Pbenchmark}, and write their results as JSON to
+ * {@code airship-adapter/build/outputs/jvm-benchmark/}.
+ * <p>
+ * Allocation is read from HotSpot's per-thread allocation counters and garbage collections from
+ * its GC MXBeans; both are {@code -1} on JVMs without them.  HotSpot's JIT and collectors are not
+ * ART's, so results are only comparable between runs on the same machine and JDK.
+ */
+final class JvmBenchmark {
+    static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long MEASURE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    // The unit tests compile against android.jar, which has no java.lang.management
+    private static final Object THREAD_BEAN;
+    private static final Method THREAD_ALLOCATED_BYTES;
+    private static final List<Object> GC_BEANS = new ArrayList<>();
+    private static final Method GC_COLLECTION_COUNT;
+
+    static {
+        Object threadBean = null;
+        Method allocatedBytes = null;
+        Method collectionCount = null;
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> hotSpotBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (hotSpotBean.isInstance(bean)
+                    && (Boolean) hotSpotBean.getMethod("isThreadAllocatedMemorySupported").invoke(bean)) {
+                hotSpotBean.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(bean, true);
+                threadBean = bean;
+                allocatedBytes = hotSpotBean.getMethod("getThreadAllocatedBytes", long.class);
+            }
+            for (Object gcBean : (List<?>) factory.getMethod("getGarbageCollectorMXBeans").invoke(null)) {
+                GC_BEANS.add(gcBean);
+            }
+            collectionCount = Class.forName("java.lang.management.GarbageCollectorMXBean")
+                    .getMethod("getCollectionCount");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            GC_BEANS.clear();
+        }
+        THREAD_BEAN = threadBean;
+        THREAD_ALLOCATED_BYTES = allocatedBytes;
+        GC_COLLECTION_COUNT = collectionCount;
+    }
+
+    /**
+     * Event sink that only counts the events it is given.
+     */
+    static final class CountingEventSink implements EventSink {
+        volatile boolean isReady = true;
+        long count = 0;
+
+        @Override
+        public boolean isReady() {
+            return isReady;
+        }
+
+        @Override
+        public void addEvent(@NonNull Event event) {
+            count++;
+        }
+    }
+
+    private JvmBenchmark() {}
+
+    /**
+     * Skips the calling test unless benchmarks were requested.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue("JVM benchmarks only run with -Pbenchmark", Boolean.getBoolean("gimbal.benchmark"));
+    }
+
+    /**
+     * Runs {@code operation} on the calling thread for a warmup period, then for a fixed time, and
+     * writes its average time and allocation per iteration, and the collections meanwhile, to
+     * {@code <name>.json}.
+     */
+    static void measure(@NonNull String name, @NonNull Runnable operation) {
+        measure(name, null, operation);
+    }
+
+    /**
+     * Like {@link #measure(String, Runnable)}, but runs {@code setUp} before each iteration,
+     * leaving it out of the iteration's time and allocation.
+     */
+    static void measure(@NonNull String name, @Nullable Runnable setUp, @NonNull Runnable operation) {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            if (setUp != null) {
+                setUp.run();
+            }
+            operation.run();
+        }
+
+        long gcCountBefore = gcCount();
+        boolean hasAllocation = allocatedBytes() >= 0;
+        long end = System.nanoTime() + MEASURE_NANOS;
+        long iterations = 0;
+        long nanos = 0;
+        long allocated = 0;
+        if (setUp == null) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long now;
+            do {
+                operation.run();
+                iterations++;
+                now = System.nanoTime();
+            } while (now < end);
+            nanos = now - start;
+            allocated = allocatedBytes() - allocatedBefore;
+        } else {
+            do {
+                setUp.run();
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                operation.run();
+                nanos += System.nanoTime() - start;
+                allocated += allocatedBytes() - allocatedBefore;
+                iterations++;
+            } while (System.nanoTime() < end);
+        }
+        long gcCount = gcCount() - gcCountBefore;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", name);
+        result.put("iterations", iterations);
+        result.put("nanosPerIteration", (double) nanos / iterations);
+        result.put("allocatedBytesPerIteration", hasAllocation ? (double) allocated / iterations : -1);
+        result.put("gcCount", gcCountBefore < 0 ? -1 : gcCount);
+        write(name, result);
+    }
+
+    /**
+     * @return The bytes allocated so far by the calling thread, or {@code -1} if not available.
+     */
+    static long allocatedBytes() {
+        return allocatedBytes(Thread.currentThread());
+    }
+
+    /**
+     * @return The bytes allocated so far by the given thread, or {@code -1} if not available.
+     */
+    static long allocatedBytes(@NonNull Thread thread) {
+        if (THREAD_ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) THREAD_ALLOCATED_BYTES.invoke(THREAD_BEAN, thread.getId());
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The bytes allocated so far by all live threads, or {@code -1} if not available.
+     * Threads that have ended are not counted, so only compare totals of long-lived threads.
+     */
+    static long allocatedBytesOfAllThreads() {
+        if (THREAD_ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            long allocated = allocatedBytes(thread);
+            if (allocated < 0) {
+                return -1;
+            }
+            total += allocated;
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of garbage collections so far, or {@code -1} if not available.
+     */
+    static long gcCount() {
+        if (GC_COLLECTION_COUNT == null || GC_BEANS.isEmpty()) {
+            return -1;
+        }
+        long count = 0;
+        try {
+            for (Object bean : GC_BEANS) {
+                count += Math.max(0, (Long) GC_COLLECTION_COUNT.invoke(bean));
+            }
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Writes a result to {@code <name>.json} in the output directory, and prints it.
+     */
+    static void write(@NonNull String name, @NonNull Map<String, Object> result) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey()).append("\": ");
+            Object value = entry.getValue();
+            if (value instanceof Number || value instanceof Boolean) {
+                json.append(value);
+            } else {
+                json.append('"').append(String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+        json.append('}');
+        System.out.println(json);
+
+        File directory = new File(System.getProperty("gimbal.benchmark.outputDir", "build/jvm-benchmark"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Unable to create " + directory);
+            return;
+        }
+        try (Writer writer = new FileWriter(new File(directory, name + ".json"))) {
+            writer.write(json.append('\n').toString());
+        } catch (IOException e) {
+            System.err.println("Unable to write " + name + ".json: " + e);
+        }
+    }
+
+    /**
+     * A context stub whose files live in {@code directory}, with the given values in every
+     * shared preferences file, as left by adapters before the config file.
+     */
+    @NonNull
+    static Context context(@NonNull File directory, @NonNull Map<String, ?> preferenceValues) {
+        SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class, withSettings().stubOnly());
+        when(editor.clear()).thenReturn(editor);
+        SharedPreferences preferences = mock(SharedPreferences.class, withSettings().stubOnly());
+        when(preferences.getAll()).thenAnswer(invocation -> preferenceValues);
+        when(preferences.getBoolean(anyString(), anyBoolean())).thenAnswer(invocation -> {
+            Object value = preferenceValues.get(invocation.<String>getArgument(0));
+            return value instanceof Boolean ? value : invocation.getArgument(1);
+        });
+        when(preferences.getString(anyString(), isNull())).thenAnswer(invocation -> {
+            Object value = preferenceValues.get(invocation.<String>getArgument(0));
+            return value instanceof String ? value : null;
+        });
+        when(preferences.edit()).thenReturn(editor);
+
+        Context context = mock(Context.class, withSettings().stubOnly());
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getFilesDir()).thenReturn(directory);
+        when(context.getNoBackupFilesDir()).thenReturn(directory);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        return context;
+    }
+
+    @NonNull
+    static Map<String, String> attributes(int count) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            attributes.put("attribute" + i, "value" + i);
+        }
+        return attributes;
+    }
+
+    /**
+     * A Gimbal attributes stub.  Stubs answer calls without recording them, so that they do not
+     * grow while being measured.
+     */
+    @NonNull
+    static Attributes gimbalAttributes(int count) {
+        Attributes attributes = mock(Attributes.class, withSettings().stubOnly());
+        List<String> keys = Collections.unmodifiableList(new ArrayList<>(attributes(count).keySet()));
+        when(attributes.getAllKeys()).thenReturn(keys);
+        for (String key : keys) {
+            when(attributes.getValue(key)).thenReturn(key.replace("attribute", "value"));
+        }
+        return attributes;
+    }
+
+    @NonNull
+    static Place place(@NonNull String placeId, @NonNull String placeName, @NonNull Attributes attributes) {
+        Place place = mock(Place.class, withSettings().stubOnly());
+        when(place.getIdentifier()).thenReturn(placeId);
+        when(place.getName()).thenReturn(placeName);
+        when(place.getAttributes()).thenReturn(attributes);
+        return place;
+    }
+
+    /**
+     * A Gimbal visit stub at the given place, with the record's visit ID and times.
+     */
+    @NonNull
+    static Visit visit(@NonNull VisitRecord record, @NonNull Place place) {
+        Visit visit = mock(Visit.class, withSettings().stubOnly());
+        when(visit.getVisitID()).thenReturn(record.visitId);
+        when(visit.getPlace()).thenReturn(place);
+        when(visit.getArrivalTimeInMillis()).thenReturn(record.arrivalTimeInMillis);
+        when(visit.getDepartureTimeInMillis()).thenReturn(record.departureTimeInMillis);
+        when(visit.getDwellTimeInMillis()).thenReturn(record.dwellTimeInMillis);
+        return visit;
+    }
+
+    @NonNull
+    static VisitRecord record(@NonNull String visitId, @NonNull String placeId, int boundaryEvent,
+                              int attributeCount) {
+        boolean isExit = boundaryEvent == RegionEvent.BOUNDARY_EVENT_EXIT;
+        return new VisitRecord(boundaryEvent,
+                visitId,
+                placeId,
+                "Benchmark Place",
+                1_600_000_000_000L,
+                isExit ? 1_600_000_600_000L : 0,
+                isExit ? 600_000L : 0,
+                PlaceProperties.of(attributes(attributeCount)));
+    }
+}
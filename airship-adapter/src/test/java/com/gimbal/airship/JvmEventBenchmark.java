@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures event construction, dispatch to listeners and cached visit replay on the JVM.  See
+ * {@link JvmBenchmark} for how to run it.
+ */
+public class JvmEventBenchmark {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final int EXIT = RegionEvent.BOUNDARY_EVENT_EXIT;
+    private static final int BACKLOG_SIZE = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JvmBenchmark.CountingEventSink sink = new JvmBenchmark.CountingEventSink();
+    private AirshipAdapter adapter;
+
+    @Before
+    public void setUp() {
+        JvmBenchmark.assumeEnabled();
+        adapter = new AirshipAdapter(TestFakes.context(folder.getRoot()), sink);
+        adapter.setShouldTrackRegionEvent(true);
+        adapter.setShouldTrackCustomEntryEvent(true);
+        adapter.setShouldTrackCustomExitEvent(true);
+        adapter.setTraceEnabled(false);
+    }
+
+    @After
+    public void tearDown() {
+        if (adapter != null) {
+            adapter.configStore.flush();
+        }
+    }
+
+    @Test
+    public void createCustomEvent() {
+        for (int attributeCount : new int[] {0, 5, 20, 100}) {
+            VisitRecord record = JvmBenchmark.record("visit", "place", EXIT, attributeCount);
+            JvmBenchmark.measure("createCustomEvent-attributes" + attributeCount, () ->
+                    AirshipAdapter.createCustomEvent(AirshipAdapter.CUSTOM_EXIT_EVENT_NAME, record, EXIT));
+        }
+    }
+
+    @Test
+    public void createAirshipEvent() {
+        VisitRecord record = JvmBenchmark.record("visit", "place", ENTER, 5);
+        Visit visit = JvmBenchmark.visit(record,
+                JvmBenchmark.place(record.placeId, record.placeName, JvmBenchmark.gimbalAttributes(5)));
+        int listenerCount = 0;
+        for (int targetCount : new int[] {1, 10, 50}) {
+            for (; listenerCount < targetCount; listenerCount++) {
+                adapter.addListener(new AirshipAdapter.Listener() {});
+            }
+            JvmBenchmark.measure("createAirshipEvent-listeners" + listenerCount, () ->
+                    adapter.createAirshipEvent(record, visit));
+        }
+    }
+
+    @Test
+    public void replayCachedVisits() {
+        // The same backlog is replayed every iteration
+        adapter.setDuplicateVisitWindow(0);
+        List<VisitRecord> backlog = new ArrayList<>(BACKLOG_SIZE);
+        for (int i = 0; i < BACKLOG_SIZE; i++) {
+            // Short identifiers keep the backlog within the journal's size cap
+            backlog.add(new VisitRecord(i % 2 == 0 ? ENTER : EXIT, "v" + i / 2, "p" + i % 100, "Place",
+                    i, i + 1, 1, PlaceProperties.EMPTY));
+        }
+
+        JvmBenchmark.measure("replayCachedVisits-visits" + BACKLOG_SIZE, () -> {
+            for (VisitRecord record : backlog) {
+                adapter.cachedVisits.append(record);
+            }
+            adapter.cachedVisits.flush();
+        }, () -> {
+            adapter.replayCachedVisits(Integer.MAX_VALUE);
+            assertEquals(0, adapter.cachedVisits.getPendingCount());
+        });
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures creating and restoring the adapter, and loading, migrating and writing its config, on
+ * the JVM.  Like {@code StartupBenchmark}, every iteration creates a new adapter, which loads its
+ * config from disk as on a cold start, and each test writes its time, config load time, config
+ * write count and bytes allocated per iteration, and the garbage collections during the run, to
+ * {@code startup-<test>.json}.
+ * <p>
+ * Airship never takes off on the JVM, so a restore here leaves the stored started state for the
+ * next restore rather than starting Gimbal, and {@code start()} and the initializer are left to
+ * the device suite.  Allocation is that of the measuring thread and the adapter's I/O thread,
+ * where the config, visit journal and dedup index are loaded.
+ */
+public class JvmStartupBenchmark {
+    private static final String GIMBAL_API_KEY = "00000000-0000-0000-0000-000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private Thread ioThread;
+
+    /**
+     * Per-test totals, reported once the test's iterations are done.
+     */
+    private static final class Totals {
+        long iterations = 0;
+        long nanos = 0;
+        long configWrites = 0;
+        long configLoadMillis = 0;
+        long allocatedBytes = 0;
+        boolean isAllocationKnown = true;
+        long gcCount = 0;
+
+        void addAllocated(long before, long after) {
+            if (before < 0 || after < 0) {
+                isAllocationKnown = false;
+            } else {
+                allocatedBytes += after - before;
+            }
+        }
+    }
+
+    /**
+     * One measured iteration, returning the adapter it created.
+     */
+    private interface Iteration {
+        @NonNull
+        AirshipAdapter run(@NonNull AtomicReference<RestoreResult> lastResult);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        JvmBenchmark.assumeEnabled();
+        context = JvmBenchmark.context(folder.getRoot(), Collections.<String, Object>emptyMap());
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        AdapterExecutors.io().submit(() -> thread.set(Thread.currentThread())).get();
+        ioThread = thread.get();
+    }
+
+    @Test
+    public void createAndRestore() throws Exception {
+        seedConfig(true);
+        report("createAndRestore", run(null, lastResult -> {
+            AirshipAdapter adapter = new AirshipAdapter(context, new JvmBenchmark.CountingEventSink());
+            adapter.addRestoreCallback(lastResult::set);
+            adapter.restore();
+            return adapter;
+        }));
+    }
+
+    @Test
+    public void createRestoreAndConfigure() throws Exception {
+        seedConfig(true);
+        AdapterConfig config = AdapterConfig.newBuilder()
+                .setTrackRegionEvents(true)
+                .setTrackCustomEntryEvents(true)
+                .setTrackCustomExitEvents(true)
+                .build();
+        report("createRestoreAndConfigure", run(null, lastResult -> {
+            AirshipAdapter adapter = new AirshipAdapter(context, new JvmBenchmark.CountingEventSink());
+            adapter.addRestoreCallback(lastResult::set);
+            adapter.restore();
+            adapter.configure(config);
+            return adapter;
+        }));
+    }
+
+    @Test
+    public void createAndMigrate() throws Exception {
+        Map<String, Object> legacyPreferences = new HashMap<>();
+        legacyPreferences.put("com.urbanairship.gimbal.is_started", true);
+        legacyPreferences.put("com.urbanairship.gimbal.api_key", GIMBAL_API_KEY);
+        legacyPreferences.put("com.gimbal.track_region_event", true);
+        legacyPreferences.put("com.gimbal.track_custom_entry", true);
+        Context legacyContext = JvmBenchmark.context(folder.newFolder(), legacyPreferences);
+        File configFile = new File(legacyContext.getFilesDir(), ConfigStore.FILE_NAME);
+
+        // The stub's preferences are never cleared, so every iteration migrates them again
+        report("createAndMigrate", run(() -> assertTrue(!configFile.exists() || configFile.delete()),
+                lastResult -> {
+                    AirshipAdapter adapter = new AirshipAdapter(legacyContext, new JvmBenchmark.CountingEventSink());
+                    adapter.addRestoreCallback(lastResult::set);
+                    adapter.restore();
+                    return adapter;
+                }));
+    }
+
+    /**
+     * Runs {@code iteration} for a warmup period, then for a fixed time, running {@code setUp},
+     * if given, and waiting for the adapter's I/O to finish outside of each measured iteration.
+     */
+    @NonNull
+    private Totals run(Runnable setUp, @NonNull Iteration iteration) throws Exception {
+        AtomicReference<RestoreResult> lastResult = new AtomicReference<>();
+        long warmupEnd = System.nanoTime() + JvmBenchmark.WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            if (setUp != null) {
+                setUp.run();
+            }
+            finish(iteration.run(lastResult));
+        }
+
+        Totals totals = new Totals();
+        long gcCountBefore = JvmBenchmark.gcCount();
+        long end = System.nanoTime() + JvmBenchmark.MEASURE_NANOS;
+        do {
+            if (setUp != null) {
+                setUp.run();
+            }
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            AirshipAdapter adapter = iteration.run(lastResult);
+            totals.nanos += System.nanoTime() - start;
+
+            finish(adapter);
+            totals.addAllocated(allocatedBefore, allocatedBytes());
+            assertFalse("Restore started the adapter without Airship", lastResult.get().isStarted());
+            totals.configLoadMillis += lastResult.get().getConfigLoadMillis();
+            totals.configWrites += adapter.configStore.getWriteCount();
+            totals.iterations++;
+        } while (System.nanoTime() < end);
+        totals.gcCount = gcCountBefore < 0 ? -1 : JvmBenchmark.gcCount() - gcCountBefore;
+        return totals;
+    }
+
+    /**
+     * Waits for the writes and loads the adapter queued on its I/O thread.
+     */
+    private static void finish(@NonNull AirshipAdapter adapter) throws ExecutionException, InterruptedException {
+        adapter.configStore.flush();
+        AdapterExecutors.io().submit(() -> {}).get();
+    }
+
+    /**
+     * Stores the adapter config as left by a previous app run.
+     */
+    private void seedConfig(boolean isStarted) {
+        ConfigStore store = new ConfigStore(context,
+                new File(context.getFilesDir(), ConfigStore.FILE_NAME),
+                AdapterExecutors.io());
+        store.setStarted(isStarted, GIMBAL_API_KEY);
+        store.flush();
+    }
+
+    private long allocatedBytes() {
+        long measuring = JvmBenchmark.allocatedBytes();
+        long io = JvmBenchmark.allocatedBytes(ioThread);
+        return measuring < 0 || io < 0 ? -1 : measuring + io;
+    }
+
+    private static void report(@NonNull String test, @NonNull Totals totals) {
+        long iterations = totals.iterations;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", "startup-" + test);
+        result.put("iterations", iterations);
+        result.put("nanosPerIteration", (double) totals.nanos / iterations);
+        result.put("configWritesPerIteration", (double) totals.configWrites / iterations);
+        result.put("configLoadMillisPerIteration", (double) totals.configLoadMillis / iterations);
+        result.put("allocatedBytesPerIteration", totals.isAllocationKnown
+                ? (double) totals.allocatedBytes / iterations : -1);
+        result.put("gcCount", totals.gcCount);
+        JvmBenchmark.write("startup-" + test, result);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.annotation.NonNull;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.PlaceEventListener;
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.Event;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the synthetic visit streams of {@code VisitLoadBenchmark} through the adapter's place
+ * event listener on the JVM, for a fixed duration each.  Each scenario writes its events per
+ * second, p50/p99/p99.9 intake-to-emit latency, GC count and bytes allocated per visit to
+ * {@code load-<scenario>.json}.
+ * <p>
+ * The adapter tracks exactly one CustomEvent per visit, with duplicate suppression disabled, so
+ * that the n-th event added to the sink belongs to the n-th visit sent.  Allocation is summed
+ * over every live thread, so that work handed to the adapter's threads is counted too.  Latency
+ * here reflects the machine's cores and HotSpot's collectors, so compare it only between runs
+ * on the same machine and JDK; see {@link JvmBenchmark} for how to run it.
+ */
+public class JvmVisitLoadBenchmark {
+    private static final int MAX_EVENTS = 1_000_000;
+    private static final long DURATION_MILLIS = 5_000;
+    private static final long DRAIN_TIMEOUT_MS = 30_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Shape of a synthetic visit stream.
+     */
+    private static final class Scenario {
+        final String name;
+        int placeCount = 50;
+        double exitFraction = 0.5;
+        int attributeCount = 5;
+        int burstSize = 1;
+        long burstIntervalMillis = 0;
+
+        Scenario(@NonNull String name) {
+            this.name = name;
+        }
+
+        Scenario places(int count) {
+            placeCount = count;
+            return this;
+        }
+
+        Scenario attributes(int count) {
+            attributeCount = count;
+            return this;
+        }
+
+        /**
+         * Sends visits in bursts of {@code size}, pausing {@code intervalMillis} between bursts.
+         */
+        Scenario bursts(int size, long intervalMillis) {
+            burstSize = size;
+            burstIntervalMillis = intervalMillis;
+            return this;
+        }
+    }
+
+    /**
+     * Event sink that records when each event is added.
+     */
+    private static final class TimingEventSink implements EventSink {
+        final long[] addedNanos = new long[MAX_EVENTS];
+        private final AtomicInteger claimed = new AtomicInteger();
+        final AtomicInteger added = new AtomicInteger();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void addEvent(@NonNull Event event) {
+            int index = claimed.getAndIncrement();
+            if (index < addedNanos.length) {
+                addedNanos[index] = System.nanoTime();
+            }
+            added.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        JvmBenchmark.assumeEnabled();
+    }
+
+    @Test
+    public void steady() throws InterruptedException {
+        run(new Scenario("steady"), false);
+    }
+
+    @Test
+    public void manyPlaces() throws InterruptedException {
+        run(new Scenario("manyPlaces").places(5000), false);
+    }
+
+    @Test
+    public void largeAttributes() throws InterruptedException {
+        run(new Scenario("largeAttributes").attributes(50), false);
+    }
+
+    @Test
+    public void bursts() throws InterruptedException {
+        run(new Scenario("bursts").places(500).bursts(200, 100), false);
+    }
+
+    @Test
+    public void burstsAsync() throws InterruptedException {
+        run(new Scenario("burstsAsync").places(500).bursts(200, 100), true);
+    }
+
+    private void run(@NonNull Scenario scenario, boolean isAsync) throws InterruptedException {
+        Visit[] enters = new Visit[scenario.placeCount];
+        Visit[] exits = new Visit[scenario.placeCount];
+        Attributes attributes = JvmBenchmark.gimbalAttributes(scenario.attributeCount);
+        for (int i = 0; i < scenario.placeCount; i++) {
+            String placeId = "place-" + i;
+            Place place = JvmBenchmark.place(placeId, "Load Place " + i, attributes);
+            enters[i] = JvmBenchmark.visit(JvmBenchmark.record("visit-" + i, placeId,
+                    RegionEvent.BOUNDARY_EVENT_ENTER, 0), place);
+            exits[i] = JvmBenchmark.visit(JvmBenchmark.record("visit-" + i, placeId,
+                    RegionEvent.BOUNDARY_EVENT_EXIT, 0), place);
+        }
+
+        TimingEventSink sink = new TimingEventSink();
+        AirshipAdapter adapter = new AirshipAdapter(
+                JvmBenchmark.context(folder.getRoot(), Collections.<String, Object>emptyMap()), sink);
+        adapter.configure(AdapterConfig.newBuilder()
+                .setTrackCustomEntryEvents(true)
+                .setTrackCustomExitEvents(true)
+                .build());
+        adapter.setDuplicateVisitWindow(0);
+        adapter.setTraceEnabled(false);
+        if (isAsync) {
+            adapter.enableAsyncDispatch(1024, AirshipAdapter.OverflowPolicy.BLOCK);
+        }
+
+        PlaceEventListener listener = adapter.placeEventListener;
+        long[] intakeNanos = new long[MAX_EVENTS];
+        Random random = new Random(scenario.name.hashCode());
+
+        long gcCountBefore = JvmBenchmark.gcCount();
+        long allocatedBefore = JvmBenchmark.allocatedBytesOfAllThreads();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        int sent = 0;
+        while (sent < intakeNanos.length && System.nanoTime() < end) {
+            for (int i = 0; i < scenario.burstSize && sent < intakeNanos.length; i++) {
+                int place = random.nextInt(scenario.placeCount);
+                boolean isExit = random.nextDouble() < scenario.exitFraction;
+                intakeNanos[sent++] = System.nanoTime();
+                if (isExit) {
+                    listener.onVisitEnd(exits[place]);
+                } else {
+                    listener.onVisitStart(enters[place]);
+                }
+            }
+            if (scenario.burstIntervalMillis > 0) {
+                Thread.sleep(scenario.burstIntervalMillis);
+            }
+        }
+
+        long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+        while (sink.added.get() < sent && System.nanoTime() < drainDeadline) {
+            Thread.sleep(1);
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        long gcCount = JvmBenchmark.gcCount() - gcCountBefore;
+        long allocated = JvmBenchmark.allocatedBytesOfAllThreads() - allocatedBefore;
+        if (isAsync) {
+            adapter.disableAsyncDispatch();
+        }
+        adapter.configStore.flush();
+
+        int emitted = Math.min(sent, sink.added.get());
+        long[] latencies = new long[emitted];
+        for (int i = 0; i < emitted; i++) {
+            latencies[i] = sink.addedNanos[i] - intakeNanos[i];
+        }
+        Arrays.sort(latencies);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("scenario", scenario.name);
+        result.put("places", scenario.placeCount);
+        result.put("exitFraction", scenario.exitFraction);
+        result.put("attributes", scenario.attributeCount);
+        result.put("burstSize", scenario.burstSize);
+        result.put("burstIntervalMillis", scenario.burstIntervalMillis);
+        result.put("visitsSent", sent);
+        result.put("eventsEmitted", sink.added.get());
+        result.put("eventsPerSecond", sink.added.get() * 1e9 / elapsedNanos);
+        result.put("p50LatencyMicros", percentileMicros(latencies, 50));
+        result.put("p99LatencyMicros", percentileMicros(latencies, 99));
+        result.put("p999LatencyMicros", percentileMicros(latencies, 99.9));
+        result.put("gcCount", gcCountBefore < 0 ? -1 : gcCount);
+        result.put("allocatedBytesPerVisit", allocatedBefore < 0 || sent == 0 ? -1 : (double) allocated / sent);
+        JvmBenchmark.write("load-" + scenario.name, result);
+    }
+
+    private static long percentileMicros(@NonNull long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(sortedNanos.length * percentile / 100) - 1);
+        return sortedNanos[Math.max(0, index)] / 1000;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ListenerTableTest {
+    private static final int REGION_ENTER = AirshipAdapter.EVENT_REGION_ENTER;
+    private static final int REGION_EXIT = AirshipAdapter.EVENT_REGION_EXIT;
+    private static final int CUSTOM_ENTER = AirshipAdapter.EVENT_CUSTOM_ENTRY;
+    private static final int CUSTOM_EXIT = AirshipAdapter.EVENT_CUSTOM_EXIT;
+    // The adapter's route bits for raw visits, which sit above the public event types
+    private static final int VISIT_EVENT_TYPES = (1 << 4) | (1 << 5);
+
+    private final AirshipAdapter.Listener first = new AirshipAdapter.Listener() {};
+    private final AirshipAdapter.Listener second = new AirshipAdapter.Listener() {};
+
+    @Test
+    public void rowsHoldOnlySubscribedListenersInOrder() {
+        ListenerTable.Subscription enterOnly =
+                new ListenerTable.Subscription(first, REGION_ENTER | CUSTOM_ENTER, false);
+        ListenerTable.Subscription all = new ListenerTable.Subscription(second,
+                REGION_ENTER | REGION_EXIT | CUSTOM_ENTER | CUSTOM_EXIT, false);
+        ListenerTable table = new ListenerTable(Arrays.asList(enterOnly, all),
+                Collections.<AirshipAdapter.VisitListener>emptyList(), VISIT_EVENT_TYPES);
+
+        assertArrayEquals(new ListenerTable.Subscription[] {enterOnly, all},
+                table.subscriptions(REGION_ENTER));
+        assertArrayEquals(new ListenerTable.Subscription[] {all}, table.subscriptions(CUSTOM_EXIT));
+        assertEquals(REGION_ENTER | REGION_EXIT | CUSTOM_ENTER | CUSTOM_EXIT, table.listenedEventTypes);
+    }
+
+    @Test
+    public void trackedOnlySubscriptionsAreListenedButNotUntracked() {
+        ListenerTable table = new ListenerTable(Arrays.asList(
+                new ListenerTable.Subscription(first, REGION_ENTER, true),
+                new ListenerTable.Subscription(second, CUSTOM_EXIT, false)),
+                Collections.<AirshipAdapter.VisitListener>emptyList(), VISIT_EVENT_TYPES);
+
+        assertEquals(REGION_ENTER | CUSTOM_EXIT, table.listenedEventTypes);
+        assertEquals(CUSTOM_EXIT, table.untrackedEventTypes);
+    }
+
+    @Test
+    public void visitListenersAddTheVisitEventTypes() {
+        AirshipAdapter.VisitListener visitListener = (visit, boundaryEvent) -> {};
+        ListenerTable table = new ListenerTable(Collections.<ListenerTable.Subscription>emptyList(),
+                Collections.singletonList(visitListener), VISIT_EVENT_TYPES);
+
+        assertEquals(VISIT_EVENT_TYPES, table.listenedEventTypes);
+        assertEquals(VISIT_EVENT_TYPES, table.untrackedEventTypes);
+        assertArrayEquals(new AirshipAdapter.VisitListener[] {visitListener}, table.visitListeners());
+        assertEquals(0, table.subscriptions(REGION_ENTER).length);
+    }
+
+    @Test
+    public void emptyTableListensToNothing() {
+        assertEquals(0, ListenerTable.EMPTY.listenedEventTypes);
+        assertEquals(0, ListenerTable.EMPTY.untrackedEventTypes);
+        assertEquals(0, ListenerTable.EMPTY.visitListeners().length);
+        assertEquals(0, ListenerTable.EMPTY.subscriptions(CUSTOM_EXIT).length);
+    }
+}
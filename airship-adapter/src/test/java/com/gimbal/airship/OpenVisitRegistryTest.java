@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+import com.gimbal.android.Visit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class OpenVisitRegistryTest {
+    private final OpenVisitRegistry registry = new OpenVisitRegistry();
+
+    @Test
+    public void openReplacesTheVisitOpenAtThePlace() {
+        registry.open("p1", "Place", "v1", 100);
+        registry.open("p1", "Renamed", "v2", 200);
+
+        OpenVisit visit = registry.get("p1");
+        assertNotNull(visit);
+        assertEquals("Renamed", visit.getPlaceName());
+        assertEquals("v2", visit.getVisitId());
+        assertEquals(200, visit.getArrivalTimeInMillis());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void closeIgnoresAVisitNoLongerOpen() {
+        registry.open("p1", "Place", "v1", 100);
+        registry.open("p1", "Place", "v2", 200);
+        registry.close("p1", "v1");
+        assertEquals("v2", registry.get("p1").getVisitId());
+
+        registry.close("p1", "v2");
+        assertNull(registry.get("p1"));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void closeKeepsCollidingPlacesReachable() {
+        // "Aa" and "BB" share a hash code, so they take consecutive slots of one probe run
+        registry.open("Aa", null, "v1", 1);
+        registry.open("BB", null, "v2", 2);
+        registry.open("AaAa", null, "v3", 3);
+        registry.open("BBBB", null, "v4", 4);
+
+        registry.close("Aa", "v1");
+        registry.close("AaAa", "v3");
+        assertNull(registry.get("Aa"));
+        assertEquals("v2", registry.get("BB").getVisitId());
+        assertEquals("v4", registry.get("BBBB").getVisitId());
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void visitsWithoutIdentifiersAreIgnored() {
+        registry.open("p1", "Place", "v1", 100);
+        registry.open(null, "Place", "v2", 200);
+        registry.open("p2", "Place", null, 200);
+        registry.close(null, "v1");
+        registry.close("p1", null);
+
+        assertEquals("v1", registry.get("p1").getVisitId());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void matchesAMapThroughResizesAndRemovals() {
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String placeId = "p" + random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                String visitId = expected.remove(placeId);
+                if (visitId != null) {
+                    registry.close(placeId, visitId);
+                }
+            } else {
+                String visitId = "v" + i;
+                expected.put(placeId, visitId);
+                registry.open(placeId, null, visitId, i);
+            }
+        }
+
+        assertEquals(expected.size(), registry.size());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), registry.get(entry.getKey()).getVisitId());
+        }
+        Set<String> snapshotIds = new HashSet<>();
+        for (OpenVisit visit : registry.snapshot()) {
+            snapshotIds.add(visit.getPlaceIdentifier());
+        }
+        assertEquals(expected.keySet(), snapshotIds);
+    }
+
+    @Test
+    public void reconcileReplacesOpenVisitsAndSkipsIncompleteOnes() {
+        registry.open("stale", "Stale", "v0", 1);
+        Visit current = TestFakes.visit("v1", TestFakes.place("p1", "Place"));
+        when(current.getArrivalTimeInMillis()).thenReturn(100L);
+        Visit withoutId = TestFakes.visit("v2", TestFakes.place("p2", "Place"));
+        when(withoutId.getVisitID()).thenReturn(null);
+
+        registry.reconcile(Arrays.asList(current, withoutId));
+
+        assertNull(registry.get("stale"));
+        assertNull(registry.get("p2"));
+        assertEquals(100, registry.get("p1").getArrivalTimeInMillis());
+        assertEquals(1, registry.snapshot().size());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class PlaceFilterTest {
+
+    @Test
+    public void visitsMatchingNoRuleAreDroppedByDefault() {
+        PlaceFilter filter = PlaceFilter.newBuilder().addPlaceId("other", 1).build();
+        assertFalse(filter.accepts(TestFakes.visit("v1", TestFakes.place("place", "Place"))));
+    }
+
+    @Test
+    public void placeIdRuleTakesPrecedenceOverNameRules() {
+        PlaceFilter filter = PlaceFilter.newBuilder()
+                .addPlaceId("place", 1)
+                .addPlaceName("Place", 0)
+                .addPlaceNamePattern("Pl.*", 0)
+                .build();
+        assertTrue(filter.accepts(TestFakes.visit("v1", TestFakes.place("place", "Place"))));
+    }
+
+    @Test
+    public void attributeRuleTakesPrecedenceOverNameRules() {
+        Attributes attributes = TestFakes.attributes(Collections.singletonMap("type", "store"));
+        Place place = TestFakes.place("place", "Store 12");
+        when(place.getAttributes()).thenReturn(attributes);
+        Visit visit = TestFakes.visit("v1", place);
+
+        PlaceFilter filter = PlaceFilter.newBuilder()
+                .addAttribute("type", "store", 1)
+                .addPlaceNamePattern("Store \\d+", 0)
+                .build();
+        assertTrue(filter.accepts(visit));
+    }
+
+    @Test
+    public void namePatternMustMatchTheWholeName() {
+        PlaceFilter filter = PlaceFilter.newBuilder().addPlaceNamePattern("Store", 1).build();
+        assertFalse(filter.accepts(TestFakes.visit("v1", TestFakes.place("place", "Store 12"))));
+        assertTrue(filter.accepts(TestFakes.visit("v1", TestFakes.place("place", "Store"))));
+    }
+
+    @Test
+    public void samplingKeepsEntryAndExitOfAVisitTogether() {
+        PlaceFilter filter = PlaceFilter.newBuilder().setDefaultSampleRate(0.5).build();
+        Place place = TestFakes.place("place", "Place");
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            boolean isEntryAccepted = filter.accepts(TestFakes.visit("visit-" + i, place));
+            assertEquals(isEntryAccepted, filter.accepts(TestFakes.visit("visit-" + i, place)));
+            if (isEntryAccepted) {
+                accepted++;
+            }
+        }
+        assertTrue("accepted " + accepted, accepted > 400 && accepted < 600);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSampleRateIsRejected() {
+        PlaceFilter.newBuilder().addPlaceId("place", -0.1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleRateAboveOneIsRejected() {
+        PlaceFilter.newBuilder().addPlaceNamePattern(".*", 1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nanSampleRateIsRejected() {
+        PlaceFilter.newBuilder().setDefaultSampleRate(Double.NaN);
+    }
+}
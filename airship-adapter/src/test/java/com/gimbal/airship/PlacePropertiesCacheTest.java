@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.gimbal.android.Attributes;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PlacePropertiesCacheTest {
+
+    private final PlacePropertiesCache cache = new PlacePropertiesCache(2);
+
+    @Test
+    public void reusesPropertiesForEqualAttributes() {
+        PlaceProperties first = cache.get("place", TestFakes.attributes(map("floor", "2")));
+        PlaceProperties second = cache.get("place", TestFakes.attributes(map("floor", "2")));
+
+        assertSame(first, second);
+        assertArrayEquals(new String[] { "GMBL_PA_floor" }, second.propertyNames);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void rebuildsPropertiesWhenAttributesChange() {
+        cache.get("place", TestFakes.attributes(map("floor", "2")));
+        PlaceProperties changed = cache.get("place", TestFakes.attributes(map("floor", "3")));
+
+        assertArrayEquals(new String[] { "3" }, changed.propertyValues);
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void rebuildsPropertiesWhenAttributesChangeToCollidingHashCodes() {
+        // "Aa" and "BB" have the same String.hashCode()
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        cache.get("place", TestFakes.attributes(map("key", "Aa")));
+        PlaceProperties changed = cache.get("place", TestFakes.attributes(map("key", "BB")));
+
+        assertArrayEquals(new String[] { "BB" }, changed.propertyValues);
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void rebuildsPropertiesWhenAKeyIsAddedOrRemoved() {
+        Map<String, String> values = map("floor", "2");
+        cache.get("place", TestFakes.attributes(values));
+        values.put("wing", "east");
+        PlaceProperties added = cache.get("place", TestFakes.attributes(values));
+        PlaceProperties removed = cache.get("place", TestFakes.attributes(map("floor", "2")));
+
+        assertEquals(2, added.propertyNames.length);
+        assertNotSame(added, removed);
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPlace() {
+        Attributes a = TestFakes.attributes(map("k", "a"));
+        PlaceProperties first = cache.get("a", a);
+        cache.get("b", TestFakes.attributes(map("k", "b")));
+        cache.get("c", TestFakes.attributes(map("k", "c")));
+
+        assertNotSame(first, cache.get("a", a));
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void missingAttributesMapToEmptyProperties() {
+        assertSame(PlaceProperties.EMPTY, cache.get("place", null));
+        assertSame(PlaceProperties.EMPTY,
+                cache.get("place", TestFakes.attributes(Collections.<String, String>emptyMap())));
+    }
+
+    private static Map<String, String> map(String key, String value) {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put(key, value);
+        return map;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Stand-ins for Gimbal objects used by the unit tests.
+ */
+final class TestFakes {
+
+    private TestFakes() {}
+
+    /**
+     * An application context whose files are kept in {@code directory}, with no legacy
+     * preferences to migrate.
+     */
+    @NonNull
+    static Context context(@NonNull File directory) {
+        SharedPreferences preferences = mock(SharedPreferences.class);
+        when(preferences.getAll()).thenAnswer(invocation -> Collections.emptyMap());
+        Context context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+        when(context.getFilesDir()).thenReturn(directory);
+        when(context.getNoBackupFilesDir()).thenReturn(directory);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        return context;
+    }
+
+    @NonNull
+    static Attributes attributes(@NonNull Map<String, String> values) {
+        Attributes attributes = mock(Attributes.class);
+        when(attributes.getAllKeys()).thenReturn(new ArrayList<>(values.keySet()));
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            when(attributes.getValue(entry.getKey())).thenReturn(entry.getValue());
+        }
+        return attributes;
+    }
+
+    @NonNull
+    static Place place(@NonNull String placeId, @NonNull String placeName) {
+        Place place = mock(Place.class);
+        when(place.getIdentifier()).thenReturn(placeId);
+        when(place.getName()).thenReturn(placeName);
+        return place;
+    }
+
+    @NonNull
+    static Visit visit(@NonNull String visitId, @NonNull Place place) {
+        Visit visit = mock(Visit.class);
+        when(visit.getVisitID()).thenReturn(visitId);
+        when(visit.getPlace()).thenReturn(place);
+        return visit;
+    }
+
+    @NonNull
+    static Visit visit(@NonNull String visitId) {
+        return visit(visitId, place("place", "Place"));
+    }
+
+    @NonNull
+    static VisitRecord record(@NonNull String visitId, int boundaryEvent) {
+        return new VisitRecord(boundaryEvent, visitId, "place", "Place",
+                1_600_000_000_000L, 0, 0, PlaceProperties.EMPTY);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.gimbal.android.Place;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class VisitDebouncerTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final int EXIT = RegionEvent.BOUNDARY_EVENT_EXIT;
+    // Long enough that nothing is released by the scheduler while a test runs
+    private static final long HOLD_MILLIS = 60_000;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+    private final MetricsRecorder.Counter suppressed = new MetricsRecorder.Counter();
+    private final Place place = TestFakes.place("place", "Place");
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void exitWithinMinimumDwellDiscardsEntryAndExit() {
+        VisitDebouncer debouncer = debouncer(HOLD_MILLIS, 0);
+        debouncer.accept(TestFakes.visit("v1", place), ENTER);
+        debouncer.accept(TestFakes.visit("v1", place), EXIT);
+        debouncer.flush();
+
+        assertTrue(released.isEmpty());
+        assertEquals(2, suppressed.sum());
+    }
+
+    @Test
+    public void reEntryWithinGracePeriodDiscardsExitAndReEntry() {
+        VisitDebouncer debouncer = debouncer(0, HOLD_MILLIS);
+        debouncer.accept(TestFakes.visit("v1", place), ENTER);
+        debouncer.accept(TestFakes.visit("v1", place), EXIT);
+        debouncer.accept(TestFakes.visit("v2", place), ENTER);
+        debouncer.accept(TestFakes.visit("v2", place), EXIT);
+        debouncer.flush();
+
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + EXIT), released);
+        assertEquals(2, suppressed.sum());
+    }
+
+    @Test
+    public void heldVisitsAreReleasedOnceTheirDeadlinePasses() throws InterruptedException {
+        VisitDebouncer debouncer = debouncer(20, 0);
+        debouncer.accept(TestFakes.visit("v1", TestFakes.place("a", "A")), ENTER);
+        debouncer.accept(TestFakes.visit("v2", TestFakes.place("b", "B")), ENTER);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (released.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + ENTER), released);
+        assertEquals(0, suppressed.sum());
+    }
+
+    private VisitDebouncer debouncer(long minDwellMillis, long reEntryGraceMillis) {
+        return new VisitDebouncer(minDwellMillis, reEntryGraceMillis, scheduler,
+                (visit, boundaryEvent) -> released.add(visit.getVisitID() + ":" + boundaryEvent),
+                suppressed);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class VisitDedupIndexTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final int EXIT = RegionEvent.BOUNDARY_EVENT_EXIT;
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), VisitDedupIndex.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void repeatedBoundaryIsDuplicate() {
+        VisitDedupIndex index = index(16);
+        assertFalse(index.isDuplicate("v1", ENTER, NOW));
+        assertFalse(index.isDuplicate("v1", EXIT, NOW));
+        assertTrue(index.isDuplicate("v1", ENTER, NOW + 1));
+        assertTrue(index.isDuplicate("v1", EXIT, NOW + 1));
+    }
+
+    @Test
+    public void visitWithoutIdIsNeverDuplicate() {
+        VisitDedupIndex index = index(16);
+        assertFalse(index.isDuplicate(null, ENTER, NOW));
+        assertFalse(index.isDuplicate(null, ENTER, NOW));
+    }
+
+    @Test
+    public void boundariesOlderThanTheWindowAreForgotten() {
+        VisitDedupIndex index = index(16);
+        index.setWindow(TimeUnit.HOURS.toMillis(1));
+        index.isDuplicate("v1", ENTER, NOW);
+
+        assertTrue(index.isDuplicate("v1", ENTER, NOW + TimeUnit.MINUTES.toMillis(59)));
+        assertFalse(index.isDuplicate("v1", ENTER, NOW + TimeUnit.MINUTES.toMillis(61)));
+    }
+
+    @Test
+    public void zeroWindowRemembersNothing() {
+        VisitDedupIndex index = index(16);
+        index.setWindow(0);
+        assertFalse(index.isDuplicate("v1", ENTER, NOW));
+        assertFalse(index.isDuplicate("v1", ENTER, NOW));
+    }
+
+    @Test
+    public void fullRingForgetsOldestFirstAcrossWraparound() {
+        int capacity = 64;
+        VisitDedupIndex index = index(capacity);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(index.isDuplicate("v" + i, ENTER, NOW + i));
+        }
+
+        // Checking a forgotten boundary records it again, so check the remembered ones first
+        for (int i = 1000 - capacity; i < 1000; i++) {
+            assertTrue("v" + i, index.isDuplicate("v" + i, ENTER, NOW + 1000));
+        }
+        for (int i = 0; i < 1000 - capacity; i += 97) {
+            assertFalse("v" + i, index.isDuplicate("v" + i, ENTER, NOW + 1000));
+        }
+    }
+
+    @Test
+    public void savedIndexIsReloaded() {
+        int capacity = 8;
+        VisitDedupIndex index = index(capacity);
+        // Wraps the ring, so that the saved entries start mid-ring
+        for (int i = 0; i < 12; i++) {
+            index.isDuplicate("v" + i, ENTER, NOW + i);
+        }
+        index.flush();
+
+        VisitDedupIndex reloaded = index(capacity);
+        for (int i = 12 - capacity; i < 12; i++) {
+            assertTrue("v" + i, reloaded.isDuplicate("v" + i, ENTER, NOW + 12));
+        }
+        assertFalse(reloaded.isDuplicate("v0", ENTER, NOW + 12));
+    }
+
+    @Test
+    public void reloadIntoSmallerIndexKeepsNewestEntries() {
+        VisitDedupIndex index = index(16);
+        for (int i = 0; i < 16; i++) {
+            index.isDuplicate("v" + i, ENTER, NOW + i);
+        }
+        index.flush();
+
+        VisitDedupIndex reloaded = index(4);
+        for (int i = 12; i < 16; i++) {
+            assertTrue("v" + i, reloaded.isDuplicate("v" + i, ENTER, NOW + 16));
+        }
+    }
+
+    @Test
+    public void truncatedFileKeepsCompleteEntries() throws IOException {
+        VisitDedupIndex index = index(16);
+        for (int i = 0; i < 4; i++) {
+            index.isDuplicate("v" + i, ENTER, NOW + i);
+        }
+        index.flush();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 8);
+        }
+
+        VisitDedupIndex reloaded = index(16);
+        assertTrue(reloaded.isDuplicate("v0", ENTER, NOW + 4));
+        assertTrue(reloaded.isDuplicate("v2", ENTER, NOW + 4));
+        assertFalse(reloaded.isDuplicate("v3", ENTER, NOW + 4));
+    }
+
+    @Test
+    public void unrecognizedFileIsIgnored() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+        }
+
+        VisitDedupIndex index = index(16);
+        assertFalse(index.isDuplicate("v1", ENTER, NOW));
+        assertTrue(index.isDuplicate("v1", ENTER, NOW));
+    }
+
+    private VisitDedupIndex index(int capacity) {
+        return new VisitDedupIndex(file, capacity, scheduler);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class VisitDispatcherTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final int EXIT = RegionEvent.BOUNDARY_EVENT_EXIT;
+
+    private final List<String> consumed = Collections.synchronizedList(new ArrayList<>());
+    private final MetricsRecorder.Histogram queueWait = new MetricsRecorder.Histogram();
+
+    @Test
+    public void replacementWaitsForPredecessorToDrain() throws InterruptedException {
+        CountDownLatch isFirstConsuming = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        VisitDispatcher first = new VisitDispatcher(16, AirshipAdapter.OverflowPolicy.BLOCK, null,
+                (visit, boundaryEvent) -> {
+                    if (consumed.isEmpty()) {
+                        isFirstConsuming.countDown();
+                        awaitQuietly(releaseFirst);
+                    }
+                    consumed.add(visit.getVisitID());
+                }, queueWait, null);
+        first.start();
+        first.dispatch(TestFakes.visit("a1"), ENTER);
+        first.dispatch(TestFakes.visit("a2"), ENTER);
+        assertTrue(isFirstConsuming.await(5, TimeUnit.SECONDS));
+
+        VisitDispatcher second = new VisitDispatcher(16, AirshipAdapter.OverflowPolicy.BLOCK, null,
+                (visit, boundaryEvent) -> consumed.add(visit.getVisitID()), queueWait, first);
+        second.start();
+        first.shutdown();
+        assertFalse(first.dispatch(TestFakes.visit("late"), ENTER));
+        second.dispatch(TestFakes.visit("b1"), ENTER);
+
+        // The replacement must not overtake the visit still being consumed
+        Thread.sleep(50);
+        assertTrue(consumed.isEmpty());
+
+        releaseFirst.countDown();
+        second.shutdown();
+        second.awaitDrained();
+        assertEquals(Arrays.asList("a1", "a2", "b1"), consumed);
+    }
+
+    @Test
+    public void awaitDrainedReturnsOnceQueuedVisitsAreConsumed() {
+        List<Runnable> tasks = new ArrayList<>();
+        VisitDispatcher dispatcher = new VisitDispatcher(16, AirshipAdapter.OverflowPolicy.BLOCK,
+                tasks::add, (visit, boundaryEvent) -> consumed.add(visit.getVisitID()), queueWait, null);
+        dispatcher.dispatch(TestFakes.visit("v1"), ENTER);
+        dispatcher.dispatch(TestFakes.visit("v2"), EXIT);
+        assertEquals(1, tasks.size());
+        assertEquals(2, dispatcher.size());
+
+        tasks.get(0).run();
+        dispatcher.awaitDrained();
+        assertEquals(Arrays.asList("v1", "v2"), consumed);
+        assertEquals(0, dispatcher.size());
+    }
+
+    @Test
+    public void coalescePolicyReplacesQueuedEntryWithExit() {
+        List<Runnable> tasks = new ArrayList<>();
+        List<Integer> boundaries = new ArrayList<>();
+        VisitDispatcher dispatcher = new VisitDispatcher(2, AirshipAdapter.OverflowPolicy.COALESCE,
+                tasks::add, (visit, boundaryEvent) -> {
+                    consumed.add(visit.getVisitID());
+                    boundaries.add(boundaryEvent);
+                }, queueWait, null);
+        dispatcher.dispatch(TestFakes.visit("v1"), ENTER);
+        dispatcher.dispatch(TestFakes.visit("v2"), ENTER);
+        dispatcher.dispatch(TestFakes.visit("v1"), EXIT);
+
+        assertEquals(1, dispatcher.getCoalescedCount());
+        assertEquals(0, dispatcher.getDroppedCount());
+        tasks.get(0).run();
+        assertEquals(Arrays.asList("v1", "v2"), consumed);
+        assertEquals(Arrays.asList(EXIT, ENTER), boundaries);
+    }
+
+    @Test
+    public void dropOldestPolicyCountsDroppedVisits() {
+        List<Runnable> tasks = new ArrayList<>();
+        VisitDispatcher dispatcher = new VisitDispatcher(1, AirshipAdapter.OverflowPolicy.DROP_OLDEST,
+                tasks::add, (visit, boundaryEvent) -> consumed.add(visit.getVisitID()), queueWait, null);
+        dispatcher.dispatch(TestFakes.visit("v1"), ENTER);
+        dispatcher.dispatch(TestFakes.visit("v2"), ENTER);
+
+        assertEquals(1, dispatcher.getDroppedCount());
+        tasks.get(0).run();
+        assertEquals(Collections.singletonList("v2"), consumed);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class VisitIntakeTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final String SCHEDULER_THREAD = "intake-test-scheduler";
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, SCHEDULER_THREAD));
+    private final FakeHandler handler = new FakeHandler();
+
+    /**
+     * Caches visits in memory and emits them to a list, in the order the intake hands them over.
+     */
+    private static final class FakeHandler implements VisitIntake.Handler {
+        volatile boolean isReady = false;
+        volatile int failuresLeft = 0;
+        final Queue<String> cached = new ArrayDeque<>();
+        final List<String> emitted = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> replaySizes = Collections.synchronizedList(new ArrayList<>());
+        final List<String> replayThreads = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public boolean isReady() {
+            return isReady;
+        }
+
+        @Override
+        public boolean replay(int maxVisits) {
+            replayThreads.add(Thread.currentThread().getName());
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IllegalStateException("Replay failed");
+            }
+            replaySizes.add(maxVisits);
+            for (int i = 0; i < maxVisits && !cached.isEmpty(); i++) {
+                emitted.add(cached.poll());
+            }
+            return !cached.isEmpty();
+        }
+
+        @Override
+        public void emit(@NonNull VisitRecord record, @Nullable Visit visit) {
+            emitted.add(record.visitId);
+        }
+
+        @Override
+        public void cache(@NonNull VisitRecord record, @Nullable Visit visit) {
+            cached.add(record.visitId);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void visitsAreCachedUntilReady() {
+        VisitIntake intake = new VisitIntake(handler, scheduler, 10, 0);
+        intake.offer(TestFakes.record("v1", ENTER), null);
+        intake.offer(TestFakes.record("v2", ENTER), null);
+
+        assertEquals(VisitIntake.NOT_READY, intake.getState());
+        assertEquals(Arrays.asList("v1", "v2"), new ArrayList<>(handler.cached));
+        assertTrue(handler.emitted.isEmpty());
+    }
+
+    @Test
+    public void liveVisitsAreHandledAfterTheBacklog() throws InterruptedException {
+        VisitIntake intake = new VisitIntake(handler, scheduler, 2, 5);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            intake.offer(TestFakes.record("cached" + i, ENTER), null);
+            expected.add("cached" + i);
+        }
+
+        handler.isReady = true;
+        intake.markReady();
+        // Visits keep arriving from another thread while the backlog is replayed
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                intake.offer(TestFakes.record("live" + i, ENTER), null);
+            }
+        });
+        producer.start();
+        producer.join();
+        for (int i = 0; i < 200; i++) {
+            expected.add("live" + i);
+        }
+
+        awaitState(intake, VisitIntake.READY);
+        intake.offer(TestFakes.record("last", ENTER), null);
+        expected.add("last");
+        assertEquals(expected, handler.emitted);
+    }
+
+    @Test
+    public void chunksOnlyRunOnTheScheduler() throws InterruptedException {
+        VisitIntake intake = new VisitIntake(handler, scheduler, 1, 1);
+        for (int i = 0; i < 10; i++) {
+            intake.offer(TestFakes.record("cached" + i, ENTER), null);
+        }
+        handler.isReady = true;
+        intake.markReady();
+        intake.requestReplay();
+        while (intake.getState() != VisitIntake.READY) {
+            intake.offer(TestFakes.record("live", ENTER), null);
+        }
+
+        for (String thread : handler.replayThreads) {
+            assertEquals(SCHEDULER_THREAD, thread);
+        }
+    }
+
+    @Test
+    public void requestedReplayRunsTheRestInOneChunk() throws InterruptedException {
+        VisitIntake intake = new VisitIntake(handler, scheduler, 1, TimeUnit.MINUTES.toMillis(10));
+        for (int i = 0; i < 5; i++) {
+            intake.offer(TestFakes.record("cached" + i, ENTER), null);
+        }
+        handler.isReady = true;
+        intake.markReady();
+        awaitCondition(() -> handler.replaySizes.size() == 1);
+
+        intake.requestReplay();
+        awaitState(intake, VisitIntake.READY);
+        assertEquals(Arrays.asList(1, Integer.MAX_VALUE), handler.replaySizes);
+        assertEquals(Arrays.asList("cached0", "cached1", "cached2", "cached3", "cached4"), handler.emitted);
+    }
+
+    @Test
+    public void failedChunkIsRetriedBeforeLiveVisitsAreEmitted() throws InterruptedException {
+        VisitIntake intake = new VisitIntake(handler, scheduler, 10, 0);
+        intake.offer(TestFakes.record("cached", ENTER), null);
+        handler.failuresLeft = 1;
+        handler.isReady = true;
+        intake.markReady();
+        awaitCondition(() -> handler.replayThreads.size() == 1);
+
+        intake.offer(TestFakes.record("live", ENTER), null);
+        assertEquals(VisitIntake.REPLAYING, intake.getState());
+        assertTrue(handler.emitted.isEmpty());
+
+        awaitState(intake, VisitIntake.READY);
+        assertEquals(Arrays.asList("cached", "live"), handler.emitted);
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void awaitState(VisitIntake intake, int state) throws InterruptedException {
+        awaitCondition(() -> intake.getState() == state);
+    }
+
+    private static void awaitCondition(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.isMet()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
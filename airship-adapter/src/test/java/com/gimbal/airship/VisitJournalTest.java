@@ -0,0 +1,351 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class VisitJournalTest {
+    private static final int ENTER = RegionEvent.BOUNDARY_EVENT_ENTER;
+    private static final int EXIT = RegionEvent.BOUNDARY_EVENT_EXIT;
+    private static final int HEADER_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+    private final List<VisitRecord> replayed = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        io.shutdownNow();
+    }
+
+    @Test
+    public void replayedRecordsOfAPlaceShareItsFields() throws IOException {
+        Map<String, String> attributes = Collections.singletonMap("key", "value");
+        VisitJournal journal = journal(file());
+        journal.append(record("v1", ENTER, "p1", "Place", attributes, 1));
+        journal.append(record("v2", ENTER, "p1", "Place", attributes, 2));
+        journal.append(record("v3", ENTER, "p1", "Place", Collections.singletonMap("key", "other"), 3));
+
+        assertEquals(3, journal.drain(replayed::add));
+        VisitRecord first = replayed.get(0);
+        VisitRecord second = replayed.get(1);
+        VisitRecord third = replayed.get(2);
+        assertSame(first.placeId, second.placeId);
+        assertSame(first.placeName, second.placeName);
+        assertSame(first.placeProperties, second.placeProperties);
+        assertSame(first.placeId, third.placeId);
+        assertNotSame(first.placeProperties, third.placeProperties);
+        assertEquals("other", third.placeProperties.attributes.get("key"));
+    }
+
+    @Test
+    public void exitIsFoldedIntoItsPendingEntry() throws IOException {
+        File file = file();
+        VisitJournal journal = journal(file);
+        journal.append(record("v1", ENTER));
+        journal.append(record("v2", ENTER));
+        journal.append(record("v1", EXIT));
+        journal.flush();
+
+        assertEquals(1, journal.getCoalescedCount());
+        assertEquals(3, journal.getPendingCount());
+        // The pending count survives a restart
+        VisitJournal reopened = journal(file);
+        assertEquals(3, reopened.getPendingCount());
+        assertEquals(3, reopened.drain(replayed::add));
+        assertEquals(Arrays.asList("v2:" + ENTER, "v1:" + ENTER, "v1:" + EXIT), describe(replayed));
+    }
+
+    @Test
+    public void exitIsNotFoldedWhenCoalescingIsDisabled() throws IOException {
+        VisitJournal journal = journal(file());
+        journal.setCoalescing(false);
+        journal.append(record("v1", ENTER));
+        journal.append(record("v2", ENTER));
+        journal.append(record("v1", EXIT));
+
+        assertEquals(0, journal.getCoalescedCount());
+        journal.drain(replayed::add);
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + ENTER, "v1:" + EXIT), describe(replayed));
+    }
+
+    @Test
+    public void dropNewestDropsAppendsOnceFull() throws IOException {
+        VisitJournal journal = journal(file());
+        journal.setLimits(2, VisitJournal.DEFAULT_MAX_FILE_SIZE, 0, AirshipAdapter.CacheEvictionPolicy.DROP_NEWEST);
+        assertTrue(journal.append(record("v1", ENTER)));
+        assertTrue(journal.append(record("v2", ENTER)));
+        // Limits are applied when the appends are committed
+        assertTrue(journal.append(record("v3", ENTER)));
+        assertTrue(journal.flush());
+
+        assertEquals(1, journal.getDroppedCount());
+        assertEquals(2, journal.getPendingCount());
+        assertEquals(0, journal.getEvictedCount());
+        journal.drain(replayed::add);
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + ENTER), describe(replayed));
+    }
+
+    @Test
+    public void dropOldestEvictsOldestRecordsWithHeadroom() throws IOException {
+        VisitJournal journal = journal(file());
+        journal.setLimits(10, VisitJournal.DEFAULT_MAX_FILE_SIZE, 0, AirshipAdapter.CacheEvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i <= 10; i++) {
+            assertTrue(journal.append(record("v" + i, ENTER)));
+        }
+        assertTrue(journal.flush());
+
+        // Eviction frees a tenth of the limit beyond the append, so v0 and v1 go at once
+        assertEquals(2, journal.getEvictedCount());
+        assertEquals(9, journal.getPendingCount());
+        journal.drain(replayed::add);
+        assertEquals("v2", replayed.get(0).visitId);
+        assertEquals("v10", replayed.get(8).visitId);
+    }
+
+    @Test
+    public void dropPairedEntriesEvictsEntriesWhoseExitIsPending() throws IOException {
+        VisitJournal journal = journal(file());
+        journal.setCoalescing(false);
+        journal.setLimits(10, VisitJournal.DEFAULT_MAX_FILE_SIZE, 0,
+                AirshipAdapter.CacheEvictionPolicy.DROP_PAIRED_ENTRIES);
+        journal.append(record("a", ENTER));
+        journal.append(record("a", EXIT));
+        journal.append(record("b", ENTER));
+        journal.append(record("b", EXIT));
+        for (int i = 0; i < 6; i++) {
+            journal.append(record("v" + i, ENTER));
+        }
+        assertTrue(journal.append(record("v6", ENTER)));
+        assertTrue(journal.flush());
+
+        assertEquals(2, journal.getEvictedCount());
+        journal.drain(replayed::add);
+        List<String> expected = new ArrayList<>(Arrays.asList("a:" + EXIT, "b:" + EXIT));
+        for (int i = 0; i <= 6; i++) {
+            expected.add("v" + i + ":" + ENTER);
+        }
+        assertEquals(expected, describe(replayed));
+    }
+
+    @Test
+    public void compactionReclaimsFoldedEntries() throws IOException {
+        // Records of about 1 KB, so that eight do not fit in the smallest journal
+        Map<String, String> attributes = Collections.singletonMap("key", new String(new char[1000]).replace('\0', 'x'));
+        VisitJournal journal = new VisitJournal(file(), 0, io);
+        journal.append(record("a0", ENTER, "p1", "Place", attributes, 1));
+        journal.append(record("a0", EXIT, "p1", "Place", attributes, 2));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(journal.append(record("v" + i, ENTER, "p1", "Place", attributes, 3)));
+        }
+        assertTrue(journal.flush());
+        long before = journal.getPendingBytes();
+
+        // Only fits once the folded entry's bytes, the size of the new record, are reclaimed
+        assertTrue(journal.append(record("v5", ENTER, "p1", "Place", attributes, 4)));
+        assertTrue(journal.flush());
+        assertEquals(0, journal.getDroppedCount());
+        assertEquals(before, journal.getPendingBytes());
+        assertEquals(8, journal.getPendingCount());
+        assertEquals(8, journal.drain(replayed::add));
+        assertEquals("a0:" + ENTER, describe(replayed).get(0));
+        assertEquals("v5:" + ENTER, describe(replayed).get(7));
+    }
+
+    @Test
+    public void expiredRecordsAreEvictedOnReplay() throws IOException {
+        VisitJournal journal = journal(file());
+        long now = System.currentTimeMillis();
+        journal.append(record("old", ENTER, "p1", "Place", Collections.<String, String>emptyMap(), now - 120_000));
+        journal.append(record("new", ENTER, "p1", "Place", Collections.<String, String>emptyMap(), now));
+        journal.setLimits(10, VisitJournal.DEFAULT_MAX_FILE_SIZE, 60_000, AirshipAdapter.CacheEvictionPolicy.DROP_NEWEST);
+
+        assertEquals(1, journal.drain(replayed::add));
+        assertEquals(Collections.singletonList("new:" + ENTER), describe(replayed));
+        assertEquals(1, journal.getEvictedCount());
+    }
+
+    @Test
+    public void partialDrainResumesAfterRestart() throws IOException {
+        File file = file();
+        VisitJournal journal = journal(file);
+        journal.append(record("v1", ENTER));
+        journal.append(record("v2", ENTER));
+        journal.append(record("v3", ENTER));
+        assertEquals(1, journal.drain(replayed::add, 1));
+
+        VisitJournal reopened = journal(file);
+        assertEquals(2, reopened.getPendingCount());
+        reopened.drain(replayed::add);
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + ENTER, "v3:" + ENTER), describe(replayed));
+        assertFalse(reopened.hasPending());
+        assertEquals(HEADER_SIZE, file.length());
+    }
+
+    @Test
+    public void corruptRecordDiscardsTheRestOfTheJournal() throws IOException {
+        File file = file();
+        VisitJournal journal = journal(file);
+        journal.append(record("v1", ENTER));
+        journal.append(record("v2", ENTER));
+        journal.append(record("v3", ENTER));
+        journal.flush();
+
+        long recordSize = (file.length() - HEADER_SIZE) / 3;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(HEADER_SIZE + recordSize);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        VisitJournal reopened = journal(file);
+        assertEquals(1, reopened.getPendingCount());
+        assertEquals(1, reopened.drain(replayed::add));
+        assertEquals(Collections.singletonList("v1:" + ENTER), describe(replayed));
+        assertFalse(reopened.hasPending());
+    }
+
+    @Test
+    public void truncatedRecordIsDiscarded() throws IOException {
+        File file = file();
+        VisitJournal journal = journal(file);
+        journal.append(record("v1", ENTER));
+        journal.append(record("v2", ENTER));
+        journal.append(record("v3", ENTER));
+        journal.flush();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 5);
+        }
+
+        VisitJournal reopened = journal(file);
+        assertEquals(2, reopened.getPendingCount());
+        assertEquals(2, reopened.drain(replayed::add));
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + ENTER), describe(replayed));
+        assertFalse(reopened.hasPending());
+    }
+
+    @Test
+    public void unrecognizedFileIsReplacedWithAnEmptyJournal() throws IOException {
+        File file = file();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeUTF("not a visit journal");
+        }
+
+        VisitJournal journal = journal(file);
+        assertFalse(journal.hasPending());
+        assertTrue(journal.append(record("v1", ENTER)));
+        assertEquals(1, journal.drain(replayed::add));
+    }
+
+    @Test
+    public void appendsAreOnlyStagedUntilCommitted() throws Exception {
+        File file = file();
+        CountDownLatch release = new CountDownLatch(1);
+        io.execute(() -> awaitQuietly(release));
+        VisitJournal journal = journal(file);
+        try {
+            assertTrue(journal.append(record("v1", ENTER)));
+            assertTrue(journal.append(record("v1", EXIT)));
+            // The executor has not opened the file, let alone written to it
+            assertFalse(file.exists());
+        } finally {
+            release.countDown();
+        }
+
+        assertTrue(journal.flush());
+        assertEquals(1, journal.getCoalescedCount());
+        assertEquals(2, journal(file).getPendingCount());
+    }
+
+    @Test
+    public void consumerIsCalledWithoutTheJournalLocked() throws Exception {
+        VisitJournal journal = journal(file());
+        journal.append(record("v1", ENTER));
+        journal.append(record("v2", ENTER));
+
+        ExecutorService appender = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(2, journal.drain(record -> {
+                replayed.add(record);
+                Future<Boolean> appended = appender.submit(() -> journal.append(record("late", ENTER)));
+                try {
+                    assertTrue(appended.get(5, TimeUnit.SECONDS));
+                } catch (Exception e) {
+                    throw new AssertionError("Append blocked by the replay", e);
+                }
+            }));
+        } finally {
+            appender.shutdownNow();
+        }
+
+        // Visits appended while replaying are left for the next replay
+        assertEquals(2, journal.getPendingCount());
+        assertEquals(2, journal.drain(replayed::add));
+        assertEquals(Arrays.asList("v1:" + ENTER, "v2:" + ENTER, "late:" + ENTER, "late:" + ENTER),
+                describe(replayed));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private File file() throws IOException {
+        return new File(folder.getRoot(), VisitJournal.FILE_NAME);
+    }
+
+    private VisitJournal journal(File file) {
+        return new VisitJournal(file, VisitJournal.DEFAULT_MAX_FILE_SIZE, io);
+    }
+
+    private static VisitRecord record(String visitId, int boundaryEvent) {
+        return record(visitId, boundaryEvent, "p1", "Place", Collections.<String, String>emptyMap(), 1);
+    }
+
+    private static VisitRecord record(String visitId, int boundaryEvent, String placeId, String placeName,
+                                      Map<String, String> attributes, long timeMillis) {
+        return new VisitRecord(boundaryEvent, visitId, placeId, placeName,
+                timeMillis, boundaryEvent == ENTER ? 0 : timeMillis, 0, PlaceProperties.of(attributes));
+    }
+
+    private static List<String> describe(List<VisitRecord> records) {
+        List<String> descriptions = new ArrayList<>(records.size());
+        for (VisitRecord record : records) {
+            descriptions.add(record.visitId + ":" + record.boundaryEvent);
+        }
+        return descriptions;
+    }
+}
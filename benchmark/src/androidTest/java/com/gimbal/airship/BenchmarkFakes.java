@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import androidx.annotation.NonNull;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.CustomEvent;
+import com.urbanairship.analytics.Event;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-ins for Gimbal and Airship objects used by the benchmarks.
+ */
+final class BenchmarkFakes {
+
+    private BenchmarkFakes() {}
+
+    /**
+     * Event sink that only counts the events it is given.
+     */
+    static final class CountingEventSink implements EventSink {
+        volatile boolean isReady = true;
+        long count = 0;
+
+        @Override
+        public boolean isReady() {
+            return isReady;
+        }
+
+        @Override
+        public void addEvent(@NonNull Event event) {
+            count++;
+        }
+    }
+
+    /**
+     * Listener that does nothing, so that only the adapter's dispatch cost is measured.
+     */
+    static final class NoOpListener implements AirshipAdapter.Listener {
+        @Override
+        public void onRegionEntered(@NonNull RegionEvent event, @NonNull Visit visit) {}
+
+        @Override
+        public void onRegionExited(@NonNull RegionEvent event, @NonNull Visit visit) {}
+
+        @Override
+        public void onCustomRegionEntry(@NonNull CustomEvent event, @NonNull Visit visit) {}
+
+        @Override
+        public void onCustomRegionExit(@NonNull CustomEvent event, @NonNull Visit visit) {}
+    }
+
+    @NonNull
+    static Map<String, String> attributes(int count) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            attributes.put("attribute" + i, "value" + i);
+        }
+        return attributes;
+    }
+
+    @NonNull
+    static VisitRecord record(int boundaryEvent, int attributeCount) {
+        return new VisitRecord(boundaryEvent,
+                "8f1f2a4c-6a5e-4b8e-9c3d-2b1e0f9a7d11",
+                "0c5e3f1a-2d4b-4e6f-8a9b-1c2d3e4f5a6b",
+                "Benchmark Place",
+                1_600_000_000_000L,
+                boundaryEvent == RegionEvent.BOUNDARY_EVENT_EXIT ? 1_600_000_600_000L : 0,
+                boundaryEvent == RegionEvent.BOUNDARY_EVENT_EXIT ? 600_000L : 0,
+                PlaceProperties.of(attributes(attributeCount)));
+    }
+
+    /**
+     * A Gimbal attributes stub.  Stubbed calls are answered without recording invocations.
+     */
+    @NonNull
+    static Attributes gimbalAttributes(int count) {
+        Attributes attributes = mock(Attributes.class, withSettings().stubOnly());
+        List<String> keys = new ArrayList<>(attributes(count).keySet());
+        when(attributes.getAllKeys()).thenReturn(keys);
+        for (String key : keys) {
+            when(attributes.getValue(key)).thenReturn(key.replace("attribute", "value"));
+        }
+        return attributes;
+    }
+
+    /**
+     * A Gimbal visit stub.  Stubbed calls are answered without recording invocations.
+     */
+    @NonNull
+    static Visit visit(int boundaryEvent, @NonNull Attributes attributes) {
+        VisitRecord record = record(boundaryEvent, 0);
+        return visit(record, place(record.placeId, record.placeName, attributes));
+    }
+
+    /**
+     * A Gimbal place stub.  Stubbed calls are answered without recording invocations.
+     */
+    @NonNull
+    static Place place(@NonNull String placeId, @NonNull String placeName, @NonNull Attributes attributes) {
+        Place place = mock(Place.class, withSettings().stubOnly());
+        when(place.getIdentifier()).thenReturn(placeId);
+        when(place.getName()).thenReturn(placeName);
+        when(place.getAttributes()).thenReturn(attributes);
+        return place;
+    }
+
+    /**
+     * A Gimbal visit stub at the given place, with the record's visit ID and times.
+     */
+    @NonNull
+    static Visit visit(@NonNull VisitRecord record, @NonNull Place place) {
+        Visit visit = mock(Visit.class, withSettings().stubOnly());
+        when(visit.getVisitID()).thenReturn(record.visitId);
+        when(visit.getPlace()).thenReturn(place);
+        when(visit.getArrivalTimeInMillis()).thenReturn(record.arrivalTimeInMillis);
+        when(visit.getDepartureTimeInMillis()).thenReturn(record.departureTimeInMillis);
+        when(visit.getDwellTimeInMillis()).thenReturn(record.dwellTimeInMillis);
+        return visit;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Measures building Airship events from Gimbal visits, across place attribute counts.
+ */
+@RunWith(Parameterized.class)
+public class EventConstructionBenchmark {
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "attributes={0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] { { 0 }, { 5 }, { 20 }, { 100 } });
+    }
+
+    private final int attributeCount;
+
+    public EventConstructionBenchmark(int attributeCount) {
+        this.attributeCount = attributeCount;
+    }
+
+    @Test
+    public void createCustomEvent() {
+        VisitRecord record = BenchmarkFakes.record(RegionEvent.BOUNDARY_EVENT_EXIT, attributeCount);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            AirshipAdapter.createCustomEvent(AirshipAdapter.CUSTOM_EXIT_EVENT_NAME,
+                    record, RegionEvent.BOUNDARY_EVENT_EXIT);
+        }
+    }
+
+    @Test
+    public void createRegionEvent() {
+        VisitRecord record = BenchmarkFakes.record(RegionEvent.BOUNDARY_EVENT_EXIT, attributeCount);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            AirshipAdapter.createRegionEvent(record, RegionEvent.BOUNDARY_EVENT_EXIT);
+        }
+    }
+
+    @Test
+    public void createVisitRecord_cachedAttributes() {
+        Visit visit = BenchmarkFakes.visit(RegionEvent.BOUNDARY_EVENT_EXIT,
+                BenchmarkFakes.gimbalAttributes(attributeCount));
+        PlacePropertiesCache cache = new PlacePropertiesCache(16);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            VisitRecord.from(visit, RegionEvent.BOUNDARY_EVENT_EXIT, cache);
+        }
+    }
+
+    @Test
+    public void createPlaceProperties_uncached() {
+        Attributes attributes = BenchmarkFakes.gimbalAttributes(attributeCount);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PlaceProperties.of(attributes);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Measures creating, tracking and dispatching the events of one visit, across listener counts.
+ */
+@RunWith(Parameterized.class)
+public class EventDispatchBenchmark {
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "listeners={0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] { { 1 }, { 10 }, { 50 } });
+    }
+
+    private final int listenerCount;
+    private AirshipAdapter adapter;
+    private BenchmarkFakes.CountingEventSink sink;
+
+    public EventDispatchBenchmark(int listenerCount) {
+        this.listenerCount = listenerCount;
+    }
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        sink = new BenchmarkFakes.CountingEventSink();
+        adapter = new AirshipAdapter(context, sink);
+        adapter.setShouldTrackRegionEvent(true);
+        adapter.setShouldTrackCustomEntryEvent(true);
+        adapter.setShouldTrackCustomExitEvent(true);
+        adapter.setTraceEnabled(false);
+        for (int i = 0; i < listenerCount; i++) {
+            adapter.addListener(new BenchmarkFakes.NoOpListener());
+        }
+    }
+
+    @Test
+    public void createAirshipEvent_enter() {
+        measure(RegionEvent.BOUNDARY_EVENT_ENTER);
+    }
+
+    @Test
+    public void createAirshipEvent_exit() {
+        measure(RegionEvent.BOUNDARY_EVENT_EXIT);
+    }
+
+    @Test
+    public void createAirshipEvent_enterWithSecondarySink() {
+        adapter.addEventSink(new BenchmarkFakes.CountingEventSink());
+        measure(RegionEvent.BOUNDARY_EVENT_ENTER);
+    }
+
+    private void measure(int boundaryEvent) {
+        VisitRecord record = BenchmarkFakes.record(boundaryEvent, 5);
+        Visit visit = BenchmarkFakes.visit(boundaryEvent, BenchmarkFakes.gimbalAttributes(5));
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            adapter.createAirshipEvent(record, visit);
+        }
+    }
+}
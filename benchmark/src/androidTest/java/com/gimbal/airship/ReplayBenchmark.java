@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures replaying a backlog of cached visits once Airship is ready.
+ * <p>
+ * The backlog is replayed in one chunk on the benchmark thread.  The adapter is never started,
+ * so its intake never replays the journal on the scheduler meanwhile.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReplayBenchmark {
+    private static final int BACKLOG_SIZE = 10_000;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private AirshipAdapter adapter;
+    private BenchmarkFakes.CountingEventSink sink;
+    private final List<VisitRecord> backlog = new ArrayList<>(BACKLOG_SIZE);
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        sink = new BenchmarkFakes.CountingEventSink();
+        adapter = new AirshipAdapter(context, sink);
+        adapter.setShouldTrackCustomEntryEvent(true);
+        adapter.setShouldTrackCustomExitEvent(true);
+        adapter.setTraceEnabled(false);
+        // The same backlog is replayed every iteration
+        adapter.setDuplicateVisitWindow(0);
+
+        // Short identifiers keep the backlog within the journal's size cap
+        for (int i = 0; i < BACKLOG_SIZE; i++) {
+            int boundaryEvent = i % 2 == 0
+                    ? RegionEvent.BOUNDARY_EVENT_ENTER : RegionEvent.BOUNDARY_EVENT_EXIT;
+            backlog.add(new VisitRecord(boundaryEvent, "v" + i / 2, "p" + i % 100, "Place",
+                    i, i + 1, 1, PlaceProperties.EMPTY));
+        }
+    }
+
+    @Test
+    public void replayCachedVisits() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            for (VisitRecord record : backlog) {
+                adapter.cachedVisits.append(record);
+            }
+            adapter.cachedVisits.flush();
+            state.resumeTiming();
+
+            adapter.replayCachedVisits(Integer.MAX_VALUE);
+
+            state.pauseTiming();
+            assertEquals(0, adapter.cachedVisits.getPendingCount());
+            state.resumeTiming();
+        }
+    }
+}
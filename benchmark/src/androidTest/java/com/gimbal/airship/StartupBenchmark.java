@@ -0,0 +1,274 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Application;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.urbanairship.AirshipConfigOptions;
+import com.urbanairship.UAirship;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures what creating, restoring and starting the adapter adds to app startup.
+ * <p>
+ * Airship takes off once with placeholder keys, and the adapter starts the real Gimbal SDK, as
+ * in an app.  Every iteration creates a new adapter, which loads its config from disk as on a
+ * cold start.  The restore tests seed a config stored by a previously started adapter, so that
+ * the restore starts Gimbal.  Besides the benchmark library's own results, each test writes its
+ * config load time, Gimbal start time, config write count and bytes allocated per iteration to
+ * {@code startup-<test>.json} in the target app's external files directory.
+ * <p>
+ * Creating, restoring, configuring and migrating the config are also measured on the JVM by the
+ * adapter's {@code JvmStartupBenchmark}.  Starting Gimbal is only measured here, as Airship never
+ * takes off on the JVM and the adapter does not start without it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final String TAG = "StartupBenchmark";
+    private static final String GIMBAL_API_KEY = "00000000-0000-0000-0000-000000000000";
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+    private AirshipAdapter adapter;
+
+    /**
+     * Per-test totals, reported once the test's iterations are done.
+     */
+    private static final class Totals {
+        int iterations = 0;
+        long configWrites = 0;
+        long configLoadMillis = 0;
+        long gimbalStartMillis = 0;
+        long allocatedBytes = 0;
+        boolean isAllocationKnown = true;
+
+        void addAllocated(long before, long after) {
+            if (before < 0 || after < 0) {
+                isAllocationKnown = false;
+            } else {
+                allocatedBytes += after - before;
+            }
+        }
+    }
+
+    @BeforeClass
+    public static void takeOff() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        AirshipConfigOptions options = AirshipConfigOptions.newBuilder()
+                .setDevelopmentAppKey("benchmarkbenchmarkbenc")
+                .setDevelopmentAppSecret("benchmarkbenchmarkbenc")
+                .setInProduction(false)
+                .build();
+        UAirship.takeOff((Application) context.getApplicationContext(), options);
+    }
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @After
+    public void tearDown() {
+        stopAdapter();
+        AirshipAdapter.clearSharedInstance();
+    }
+
+    @Test
+    public void createAndRestore() {
+        seedConfig(true);
+        BenchmarkState state = benchmarkRule.getState();
+        AtomicReference<RestoreResult> lastResult = new AtomicReference<>();
+        Totals totals = new Totals();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            stopAdapter();
+            long allocatedBefore = allocatedBytes();
+            state.resumeTiming();
+
+            adapter = new AirshipAdapter(context, new BenchmarkFakes.CountingEventSink());
+            adapter.addRestoreCallback(lastResult::set);
+            adapter.restore();
+
+            state.pauseTiming();
+            totals.addAllocated(allocatedBefore, allocatedBytes());
+            assertTrue("Restore did not start the adapter", lastResult.get().isStarted());
+            adapter.configStore.flush();
+            totals.configLoadMillis += lastResult.get().getConfigLoadMillis();
+            totals.gimbalStartMillis += lastResult.get().getGimbalStartMillis();
+            totals.configWrites += adapter.configStore.getWriteCount();
+            totals.iterations++;
+            state.resumeTiming();
+        }
+        report("createAndRestore", totals);
+    }
+
+    @Test
+    public void createRestoreAndConfigure() {
+        seedConfig(true);
+        BenchmarkState state = benchmarkRule.getState();
+        AdapterConfig config = AdapterConfig.newBuilder()
+                .setTrackRegionEvents(true)
+                .setTrackCustomEntryEvents(true)
+                .setTrackCustomExitEvents(true)
+                .build();
+        Totals totals = new Totals();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            stopAdapter();
+            long allocatedBefore = allocatedBytes();
+            state.resumeTiming();
+
+            adapter = new AirshipAdapter(context, new BenchmarkFakes.CountingEventSink());
+            adapter.restore();
+            adapter.configure(config);
+
+            state.pauseTiming();
+            totals.addAllocated(allocatedBefore, allocatedBytes());
+            adapter.configStore.flush();
+            totals.configWrites += adapter.configStore.getWriteCount();
+            totals.iterations++;
+            state.resumeTiming();
+        }
+        report("createRestoreAndConfigure", totals);
+    }
+
+    @Test
+    public void start() {
+        seedConfig(false);
+        BenchmarkState state = benchmarkRule.getState();
+        Totals totals = new Totals();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            stopAdapter();
+            seedConfig(false);
+            adapter = new AirshipAdapter(context, new BenchmarkFakes.CountingEventSink());
+            adapter.restore();
+            long allocatedBefore = allocatedBytes();
+            state.resumeTiming();
+
+            boolean isStarted = adapter.start(GIMBAL_API_KEY);
+
+            state.pauseTiming();
+            totals.addAllocated(allocatedBefore, allocatedBytes());
+            assertTrue("start() did not start the adapter", isStarted);
+            adapter.configStore.flush();
+            totals.configWrites += adapter.configStore.getWriteCount();
+            totals.iterations++;
+            state.resumeTiming();
+        }
+        report("start", totals);
+    }
+
+    @Test
+    public void initializerCreate() {
+        seedConfig(true);
+        BenchmarkState state = benchmarkRule.getState();
+        AtomicReference<RestoreResult> lastResult = new AtomicReference<>();
+        AirshipAdapterInitializer initializer = new AirshipAdapterInitializer();
+        Totals totals = new Totals();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            stopAdapter();
+            AirshipAdapter.clearSharedInstance();
+            long allocatedBefore = allocatedBytes();
+            state.resumeTiming();
+
+            adapter = initializer.create(context);
+
+            state.pauseTiming();
+            totals.addAllocated(allocatedBefore, allocatedBytes());
+            adapter.addRestoreCallback(lastResult::set);
+            assertTrue("The initializer did not start the adapter", lastResult.get().isStarted());
+            adapter.configStore.flush();
+            totals.configLoadMillis += lastResult.get().getConfigLoadMillis();
+            totals.gimbalStartMillis += lastResult.get().getGimbalStartMillis();
+            totals.configWrites += adapter.configStore.getWriteCount();
+            totals.iterations++;
+            state.resumeTiming();
+        }
+        report("initializerCreate", totals);
+    }
+
+    /**
+     * Stops the adapter created by the last iteration, if any, and stores the started state it
+     * had, so that the next iteration restores the same config.
+     */
+    private void stopAdapter() {
+        if (adapter == null) {
+            return;
+        }
+        ConfigStore.State stored = adapter.configStore.get();
+        adapter.stop();
+        adapter.configStore.setStarted(stored.isStarted, stored.apiKey);
+        adapter.configStore.flush();
+        adapter = null;
+    }
+
+    /**
+     * Stores the adapter config as left by a previous app run.
+     */
+    private void seedConfig(boolean isStarted) {
+        ConfigStore store = new ConfigStore(context,
+                new File(context.getFilesDir(), ConfigStore.FILE_NAME),
+                AdapterExecutors.io());
+        store.setStarted(isStarted, GIMBAL_API_KEY);
+        store.flush();
+    }
+
+    private static long allocatedBytes() {
+        return VisitLoadGenerator.runtimeStat("art.gc.bytes-allocated");
+    }
+
+    private void report(String test, Totals totals) {
+        int iterations = totals.iterations;
+        try {
+            JSONObject json = new JSONObject()
+                    .put("test", test)
+                    .put("iterations", iterations)
+                    .put("configWritesPerIteration", perIteration(totals.configWrites, iterations))
+                    .put("configLoadMillisPerIteration", perIteration(totals.configLoadMillis, iterations))
+                    .put("gimbalStartMillisPerIteration", perIteration(totals.gimbalStartMillis, iterations))
+                    .put("allocatedBytesPerIteration", totals.isAllocationKnown
+                            ? perIteration(totals.allocatedBytes, iterations) : -1);
+            Log.i(TAG, json.toString());
+
+            File file = new File(context.getExternalFilesDir(null), "startup-" + test + ".json");
+            try (Writer writer = new FileWriter(file)) {
+                writer.write(json.toString(2));
+            }
+        } catch (JSONException | IOException e) {
+            Log.w(TAG, "Unable to write startup results", e);
+        }
+    }
+
+    private static double perIteration(long total, int iterations) {
+        return iterations == 0 ? 0 : (double) total / iterations;
+    }
+}
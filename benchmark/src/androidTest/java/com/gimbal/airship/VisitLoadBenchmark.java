@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Runs synthetic visit streams through the adapter for a fixed duration, to size it for busy
+ * venues.  Each test writes its throughput, latency percentiles, GC count and allocation per
+ * visit to {@code load-<scenario>.json} in the target app's external files directory.
+ * <p>
+ * {@code JvmVisitLoadBenchmark} runs the same scenarios on the JVM.  This device run is the one
+ * to size against: its GC count and allocation are those of ART's allocator and collector, and its
+ * latency percentiles reflect the device's cores and CPU governor, which the adapter's scheduler
+ * and dispatch threads share with the app.  Compare results only between runs on the same device
+ * model and OS version.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VisitLoadBenchmark {
+    private static final String TAG = "VisitLoadBenchmark";
+    private static final int MAX_EVENTS = 1_000_000;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @Test
+    public void steady() throws JSONException {
+        run(new VisitLoadGenerator.Scenario("steady"), false);
+    }
+
+    @Test
+    public void manyPlaces() throws JSONException {
+        run(new VisitLoadGenerator.Scenario("manyPlaces").places(5000), false);
+    }
+
+    @Test
+    public void largeAttributes() throws JSONException {
+        run(new VisitLoadGenerator.Scenario("largeAttributes").attributes(50), false);
+    }
+
+    @Test
+    public void bursts() throws JSONException {
+        run(new VisitLoadGenerator.Scenario("bursts").places(500).bursts(200, 100), false);
+    }
+
+    @Test
+    public void burstsAsync() throws JSONException {
+        run(new VisitLoadGenerator.Scenario("burstsAsync").places(500).bursts(200, 100), true);
+    }
+
+    private void run(VisitLoadGenerator.Scenario scenario, boolean isAsync) throws JSONException {
+        VisitLoadGenerator generator = new VisitLoadGenerator(scenario);
+        VisitLoadGenerator.TimingEventSink sink = new VisitLoadGenerator.TimingEventSink(MAX_EVENTS);
+        AirshipAdapter adapter = new AirshipAdapter(context, sink);
+        adapter.configure(AdapterConfig.newBuilder()
+                .setTrackCustomEntryEvents(true)
+                .setTrackCustomExitEvents(true)
+                .build());
+        adapter.setDuplicateVisitWindow(0);
+        adapter.setTraceEnabled(false);
+        if (isAsync) {
+            adapter.enableAsyncDispatch(1024, AirshipAdapter.OverflowPolicy.BLOCK);
+        }
+
+        JSONObject result = generator.run(adapter, sink);
+        if (isAsync) {
+            adapter.disableAsyncDispatch();
+        }
+        report(scenario.name, result);
+    }
+
+    private void report(String scenario, JSONObject result) {
+        Log.i(TAG, result.toString());
+        File file = new File(context.getExternalFilesDir(null), "load-" + scenario + ".json");
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(result.toString(2));
+        } catch (JSONException | IOException e) {
+            Log.w(TAG, "Unable to write load results", e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 Urban Airship and Contributors
+ */
+
+package com.gimbal.airship;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.gimbal.android.Attributes;
+import com.gimbal.android.Place;
+import com.gimbal.android.PlaceEventListener;
+import com.gimbal.android.Visit;
+import com.urbanairship.analytics.Event;
+import com.urbanairship.analytics.location.RegionEvent;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives an adapter's {@link PlaceEventListener} with a synthetic stream of visits for a fixed
+ * duration, and measures event throughput, intake-to-emit latency, garbage collections and
+ * allocation.
+ * <p>
+ * The adapter must track exactly one event per visit, e.g. CustomEvents for entries and exits,
+ * with duplicate suppression disabled, so that the n-th event added to the sink belongs to the
+ * n-th visit sent.
+ * <p>
+ * Garbage collections and allocation are read from ART's runtime stats, so they are only
+ * reported on a device running API 23 or later; otherwise they are {@code -1}.
+ */
+final class VisitLoadGenerator {
+    private static final long DRAIN_TIMEOUT_MS = 30_000;
+
+    /**
+     * Shape of a synthetic visit stream.
+     */
+    static final class Scenario {
+        final String name;
+        int placeCount = 50;
+        double exitFraction = 0.5;
+        int attributeCount = 5;
+        int burstSize = 1;
+        long burstIntervalMillis = 0;
+        long durationMillis = 10_000;
+        int maxVisits = 1_000_000;
+
+        Scenario(@NonNull String name) {
+            this.name = name;
+        }
+
+        Scenario places(int count) {
+            placeCount = count;
+            return this;
+        }
+
+        Scenario exitFraction(double fraction) {
+            exitFraction = fraction;
+            return this;
+        }
+
+        Scenario attributes(int count) {
+            attributeCount = count;
+            return this;
+        }
+
+        /**
+         * Sends visits in bursts of {@code size}, pausing {@code intervalMillis} between bursts.
+         */
+        Scenario bursts(int size, long intervalMillis) {
+            burstSize = size;
+            burstIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        Scenario duration(long millis) {
+            durationMillis = millis;
+            return this;
+        }
+    }
+
+    /**
+     * Event sink that records when each event is added.
+     */
+    static final class TimingEventSink implements EventSink {
+        final long[] addedNanos;
+        private final AtomicInteger claimed = new AtomicInteger();
+        final AtomicInteger added = new AtomicInteger();
+
+        TimingEventSink(int capacity) {
+            addedNanos = new long[capacity];
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void addEvent(@NonNull Event event) {
+            int index = claimed.getAndIncrement();
+            if (index < addedNanos.length) {
+                addedNanos[index] = System.nanoTime();
+            }
+            added.incrementAndGet();
+        }
+    }
+
+    private final Scenario scenario;
+    private final Visit[] enters;
+    private final Visit[] exits;
+
+    VisitLoadGenerator(@NonNull Scenario scenario) {
+        this.scenario = scenario;
+        this.enters = new Visit[scenario.placeCount];
+        this.exits = new Visit[scenario.placeCount];
+
+        Attributes attributes = BenchmarkFakes.gimbalAttributes(scenario.attributeCount);
+        for (int i = 0; i < scenario.placeCount; i++) {
+            String placeId = "place-" + i;
+            Place place = BenchmarkFakes.place(placeId, "Load Place " + i, attributes);
+            enters[i] = BenchmarkFakes.visit(record("visit-" + i, placeId, RegionEvent.BOUNDARY_EVENT_ENTER), place);
+            exits[i] = BenchmarkFakes.visit(record("visit-" + i, placeId, RegionEvent.BOUNDARY_EVENT_EXIT), place);
+        }
+    }
+
+    /**
+     * Runs the scenario against the adapter, whose events must be added to {@code sink}.
+     */
+    @NonNull
+    JSONObject run(@NonNull AirshipAdapter adapter, @NonNull TimingEventSink sink) throws JSONException {
+        PlaceEventListener listener = adapter.placeEventListener;
+        long[] intakeNanos = new long[Math.min(scenario.maxVisits, sink.addedNanos.length)];
+        Random random = new Random(scenario.name.hashCode());
+
+        long gcCountBefore = runtimeStat("art.gc.gc-count");
+        long allocatedBefore = runtimeStat("art.gc.bytes-allocated");
+        long start = SystemClock.elapsedRealtime();
+        long end = start + scenario.durationMillis;
+        int sent = 0;
+        while (sent < intakeNanos.length && SystemClock.elapsedRealtime() < end) {
+            for (int i = 0; i < scenario.burstSize && sent < intakeNanos.length; i++) {
+                int place = random.nextInt(scenario.placeCount);
+                boolean isExit = random.nextDouble() < scenario.exitFraction;
+                intakeNanos[sent++] = System.nanoTime();
+                if (isExit) {
+                    listener.onVisitEnd(exits[place]);
+                } else {
+                    listener.onVisitStart(enters[place]);
+                }
+            }
+            if (scenario.burstIntervalMillis > 0) {
+                SystemClock.sleep(scenario.burstIntervalMillis);
+            }
+        }
+
+        long drainDeadline = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT_MS;
+        while (sink.added.get() < sent && SystemClock.elapsedRealtime() < drainDeadline) {
+            SystemClock.sleep(1);
+        }
+        long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - start);
+        long gcCount = runtimeStat("art.gc.gc-count") - gcCountBefore;
+        long allocated = runtimeStat("art.gc.bytes-allocated") - allocatedBefore;
+
+        int emitted = Math.min(sent, sink.added.get());
+        long[] latencies = new long[emitted];
+        for (int i = 0; i < emitted; i++) {
+            latencies[i] = sink.addedNanos[i] - intakeNanos[i];
+        }
+        Arrays.sort(latencies);
+
+        return new JSONObject()
+                .put("scenario", scenario.name)
+                .put("places", scenario.placeCount)
+                .put("exitFraction", scenario.exitFraction)
+                .put("attributes", scenario.attributeCount)
+                .put("burstSize", scenario.burstSize)
+                .put("burstIntervalMillis", scenario.burstIntervalMillis)
+                .put("visitsSent", sent)
+                .put("eventsEmitted", sink.added.get())
+                .put("eventsPerSecond", sink.added.get() * 1000.0 / elapsedMillis)
+                .put("p50LatencyMicros", percentileMicros(latencies, 50))
+                .put("p99LatencyMicros", percentileMicros(latencies, 99))
+                .put("p999LatencyMicros", percentileMicros(latencies, 99.9))
+                .put("gcCount", gcCountBefore < 0 ? -1 : gcCount)
+                .put("allocatedBytesPerVisit", allocatedBefore < 0 || sent == 0 ? -1 : (double) allocated / sent);
+    }
+
+    @NonNull
+    private static VisitRecord record(@NonNull String visitId, @NonNull String placeId, int boundaryEvent) {
+        boolean isExit = boundaryEvent == RegionEvent.BOUNDARY_EVENT_EXIT;
+        return new VisitRecord(boundaryEvent,
+                visitId,
+                placeId,
+                null,
+                1_600_000_000_000L,
+                isExit ? 1_600_000_600_000L : 0,
+                isExit ? 600_000L : 0,
+                PlaceProperties.of(BenchmarkFakes.attributes(0)));
+    }
+
+    private static long percentileMicros(@NonNull long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(sortedNanos.length * percentile / 100) - 1);
+        return sortedNanos[Math.max(0, index)] / 1000;
+    }
+
+    /**
+     * @return An ART runtime statistic, or {@code -1} if it is not available.
+     */
+    static long runtimeStat(@NonNull String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
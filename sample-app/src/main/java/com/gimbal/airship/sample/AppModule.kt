@@ -11,6 +11,9 @@ import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.components.SingletonComponent
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
 import okhttp3.OkHttpClient
 import okhttp3.logging.HttpLoggingInterceptor
 import retrofit2.Retrofit
@@ -59,12 +62,17 @@ object AppModule {
             .build()
     }
 
+    @Provides
+    @Singleton
+    fun provideApplicationScope(): CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
     @Provides
     @Singleton
     fun placeEventsRepository(
         appDatabase: AppDatabase,
+        scope: CoroutineScope,
     ): PlaceEventRepository {
-        return PlaceEventRepositoryImpl(appDatabase.getPlaceEventDao())
+        return PlaceEventRepositoryImpl(appDatabase.getPlaceEventDao(), scope)
     }
 
     @Provides
@@ -9,7 +9,7 @@ import kotlinx.coroutines.flow.Flow
 @Dao
 interface PlaceEventDao {
     @Insert(onConflict = REPLACE)
-    fun insertPlaceEvent(item: PlaceEventDataModel)
+    suspend fun insertPlaceEvents(items: List<PlaceEventDataModel>)
 
     @Query("SELECT * FROM place_events ORDER BY timestamp DESC")
     fun getPlaceEvents(): Flow<List<PlaceEventDataModel>>
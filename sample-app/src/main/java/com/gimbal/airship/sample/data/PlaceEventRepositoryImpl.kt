@@ -1,16 +1,38 @@
 package com.gimbal.airship.sample.data
 
+import android.os.SystemClock
 import com.gimbal.airship.sample.domain.PlaceEventDomainModel
 import com.gimbal.airship.sample.domain.PlaceEventRepository
 import com.gimbal.airship.sample.mapper.toDomainModel
 import com.gimbal.airship.sample.mapper.toLocalDataModel
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.selects.select
+import timber.log.Timber
 import javax.inject.Inject
 
+/**
+ * Place events are handed to a channel and written by a single coroutine, in batches of up to
+ * [MAX_BATCH_SIZE] events that each take one transaction.  A batch is written once it is full or
+ * [FLUSH_INTERVAL_MS] after its first event, so adding an event never blocks the caller.  At most
+ * [MAX_PENDING_EVENTS] events wait to be written; if the writer falls that far behind, further
+ * events are dropped and logged rather than held in memory.
+ */
 class PlaceEventRepositoryImpl @Inject constructor(
     private val placeEventDao: PlaceEventDao,
+    scope: CoroutineScope,
 ) : PlaceEventRepository {
 
+    private val pendingPlaceEvents = Channel<PlaceEventDataModel>(MAX_PENDING_EVENTS)
+
+    init {
+        scope.launch { writePlaceEvents() }
+    }
+
     override fun getPlaceEvents() = placeEventDao.getPlaceEvents().map { placeEvents ->
         placeEvents.map {
             it.toDomainModel
@@ -18,10 +40,46 @@ class PlaceEventRepositoryImpl @Inject constructor(
     }
 
     override fun addPlaceEvent(placeEvent: PlaceEventDomainModel) {
-        placeEventDao.insertPlaceEvent(placeEvent.toLocalDataModel)
+        if (pendingPlaceEvents.trySend(placeEvent.toLocalDataModel).isFailure) {
+            Timber.w("Dropped place event, $MAX_PENDING_EVENTS events are waiting to be written")
+        }
     }
 
     override suspend fun clearPlaceEvents() {
         placeEventDao.deleteAllPlaceEvents()
     }
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private suspend fun writePlaceEvents() {
+        val batch = ArrayList<PlaceEventDataModel>(MAX_BATCH_SIZE)
+        for (first in pendingPlaceEvents) {
+            batch.add(first)
+            val deadline = SystemClock.elapsedRealtime() + FLUSH_INTERVAL_MS
+            while (batch.size < MAX_BATCH_SIZE) {
+                val remaining = deadline - SystemClock.elapsedRealtime()
+                if (remaining <= 0) break
+                // Unlike receive() under a timeout, select never loses an event it has received
+                val next = select<PlaceEventDataModel?> {
+                    pendingPlaceEvents.onReceive { it }
+                    onTimeout(remaining) { null }
+                } ?: break
+                batch.add(next)
+            }
+
+            try {
+                placeEventDao.insertPlaceEvents(batch.toList())
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Timber.e(e, "Failed to write ${batch.size} place events")
+            }
+            batch.clear()
+        }
+    }
+
+    companion object {
+        const val MAX_BATCH_SIZE = 100
+        const val FLUSH_INTERVAL_MS = 250L
+        const val MAX_PENDING_EVENTS = 1000
+    }
 }
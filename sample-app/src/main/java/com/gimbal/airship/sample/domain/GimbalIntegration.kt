@@ -2,6 +2,7 @@ package com.gimbal.airship.sample.domain
 
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ProcessLifecycleOwner
+import com.gimbal.airship.AdapterConfig
 import com.gimbal.airship.AirshipAdapter
 import com.urbanairship.UAirship
 import timber.log.Timber
@@ -30,8 +31,12 @@ class GimbalIntegration @Inject constructor(
         UAirship.shared() {
             it.pushManager.userNotificationsEnabled = true
         }
-        airshipAdapter.setShouldTrackCustomEntryEvent(true)
-        airshipAdapter.setShouldTrackCustomExitEvent(true)
+        airshipAdapter.configure(
+            AdapterConfig.newBuilder()
+                .setTrackCustomEntryEvents(true)
+                .setTrackCustomExitEvents(true)
+                .build()
+        )
         airshipAdapter.start(GIMBAL_API_KEY)
         Timber.i("Enabling Gimbal place monitoring w/ Airship custom events")
     }